@@ -0,0 +1,422 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+// Benchmarks for the hot paths of the checker. They run on synthetic data (see SyntheticExport) so they
+// can be run anywhere and with any size, from 1 to 1000 sensors.
+// Every benchmark runs a few warmup iterations and then a few measured ones, each iteration calls it again
+// and again for a fixed time, like JMH does. (JMH itself refuses benchmark classes in the default package,
+// which is where all of this lives.)
+//
+// Run it with ./bench.sh [--sensors n] [--days d] [--warmup n] [--iterations n] [--time ms] [name ...]
+// where the names select the benchmarks whose name contains one of them.
+public class Benchmarks {
+
+	interface Body {
+		public Object run() throws Exception;
+	}
+
+	// Results of the benchmarks go here, so the JIT can not throw away the work that made them
+	static volatile Object sink;
+
+	Benchmarks(int warmup, int iterations, long iterationMillis, List<String> filters) {
+		this.warmup = warmup;
+		this.iterations = iterations;
+		this.iterationMillis = iterationMillis;
+		this.filters = filters;
+	}
+
+	void run(String name, Body body) throws Exception {
+		if (!selected(name)) return;
+		for (int i = 0; i < warmup; i++) {
+			iteration(body);
+		}
+		double[] nanosPerOp = new double[iterations];
+		double mean = 0;
+		for (int i = 0; i < iterations; i++) {
+			nanosPerOp[i] = iteration(body);
+			mean += nanosPerOp[i] / iterations;
+		}
+		double variance = 0;
+		for (int i = 0; i < iterations; i++) {
+			variance += (nanosPerOp[i] - mean) * (nanosPerOp[i] - mean) / Math.max(1, iterations - 1);
+		}
+		System.out.println(String.format("%-45s %14.3f us/op  +- %10.3f  %12.1f ops/s",
+										 name, mean / 1000, Math.sqrt(variance) / 1000, 1e9 / mean));
+	}
+
+	private boolean selected(String name) {
+		if (filters.isEmpty()) return true;
+		for (String filter : filters) {
+			if (name.contains(filter)) return true;
+		}
+		return false;
+	}
+
+	// Calls body again and again for iterationMillis, returns the nanoseconds per call.
+	private double iteration(Body body) throws Exception {
+		long start = System.nanoTime();
+		long end = start + iterationMillis * 1000000;
+		long now;
+		int ops = 0;
+		do {
+			sink = body.run();
+			ops++;
+			now = System.nanoTime();
+		} while (now < end);
+		return (double)(now - start) / ops;
+	}
+
+	// The algorithm after all the readings and calibrations of the trace, pushed like the checker does.
+	static StreamingBgAlgorithm Calibrated(BgAlgorithm algorithm, SensorTrace trace) {
+		StreamingBgAlgorithm streaming = StreamingAdapter.Wrap(algorithm);
+		streaming.startSensor(trace.sensor.started_at);
+		int rawIndex = 0;
+		for (int i = 0; i < trace.calibrationSize; i++) {
+			int end = rawIndex;
+			while (end < trace.rawSize && trace.timestamps[end] <= trace.calib_timestamps[i]) {
+				end++;
+			}
+			streaming.onRawReadings(trace.timestamps, trace.raw_values, rawIndex, end, null);
+			rawIndex = end;
+			streaming.onCalibration(trace.getCalibration(i));
+		}
+		streaming.onRawReadings(trace.timestamps, trace.raw_values, rawIndex, trace.rawSize, null);
+		return streaming;
+	}
+
+	// Only the BgAlgorithm side of an algorithm, so that it runs through a StreamingAdapter.
+	static BgAlgorithm Plain(BgAlgorithm algorithm) {
+		return new BgAlgorithm() {
+			public void startSensor(long sensorStartTime) {
+				algorithm.startSensor(sensorStartTime);
+			}
+
+			public void calibrationReceived(List<Calibration> cal, List<RawData> rawData) {
+				algorithm.calibrationReceived(cal, rawData);
+			}
+
+			public double calculateBG(List<RawData> rawData, long bgTimeStamp) {
+				return algorithm.calculateBG(rawData, bgTimeStamp);
+			}
+
+			public Object snapshot() {
+				return algorithm.snapshot();
+			}
+
+			public void restore(Object state) {
+				algorithm.restore(state);
+			}
+		};
+	}
+
+	// Two calibrated copies of the algorithm get the same readings after the end of the trace, one at a time and in
+	// one call (from the middle of the arrays), and have to calculate the same bg for all of them.
+	static void CheckBatch(String name, AlgorithmFactory factory, SensorTrace trace) {
+		int offset = 7;
+		int count = 4 * trace.rawSize;
+		long[] timestamps = new long[offset + count];
+		double[] raw_values = new double[offset + count];
+		for (int i = 0; i < count; i++) {
+			timestamps[offset + i] = trace.timestamps[trace.rawSize - 1] + (i + 1) * 300000L;
+			raw_values[offset + i] = trace.raw_values[i % trace.rawSize];
+		}
+		StreamingBgAlgorithm perReading = Calibrated(factory.create(), trace);
+		StreamingBgAlgorithm batch = Calibrated(factory.create(), trace);
+		double[] expected = new double[offset + count];
+		double[] bg = new double[offset + count];
+		for (int i = offset; i < offset + count; i++) {
+			perReading.onRawReading(timestamps[i], raw_values[i]);
+			expected[i] = perReading.calculateBG(timestamps[i]);
+		}
+		batch.onRawReadings(timestamps, raw_values, offset, offset + count, bg);
+		for (int i = offset; i < offset + count; i++) {
+			if (Double.doubleToLongBits(bg[i]) != Double.doubleToLongBits(expected[i])) {
+				throw new IllegalStateException(name + " calculates " + bg[i] + " in one call and " + expected[i] +
+												" one at a time for reading " + (i - offset));
+			}
+		}
+	}
+
+	// The loaders print a lot, that is not what we want to measure.
+	static Object Silently(Body body) throws Exception {
+		PrintStream out = System.out;
+		PrintStream err = System.err;
+		PrintStream nowhere = new PrintStream(new OutputStream() {
+			public void write(int b) {
+			}
+			public void write(byte[] b, int off, int len) {
+			}
+		});
+		System.setOut(nowhere);
+		System.setErr(nowhere);
+		try {
+			return body.run();
+		} finally {
+			System.setOut(out);
+			System.setErr(err);
+		}
+	}
+
+	public static void main(String args[]) throws Exception {
+		int numSensors = 10;
+		double days = 7;
+		int warmup = 3;
+		int iterations = 5;
+		long iterationMillis = 1000;
+		List<String> filters = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--sensors") && i + 1 < args.length) {
+				numSensors = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--days") && i + 1 < args.length) {
+				days = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("--warmup") && i + 1 < args.length) {
+				warmup = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--iterations") && i + 1 < args.length) {
+				iterations = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--time") && i + 1 < args.length) {
+				iterationMillis = Long.parseLong(args[++i]);
+			} else {
+				filters.add(args[i]);
+			}
+		}
+		Benchmarks benchmarks = new Benchmarks(warmup, iterations, iterationMillis, filters);
+
+		// The data, once as traces, once as the lists that the old loaders return and once as a database
+		List<SensorTrace> traces = SyntheticExport.Generate(numSensors, days, 1);
+		List<RawData> rawBg = new LinkedList<RawData>();
+		List<Calibration> calibrations = new LinkedList<Calibration>();
+		for (SensorTrace trace : traces) {
+			for (int i = 0; i < trace.rawSize; i++) {
+				rawBg.add(trace.getRaw(i));
+			}
+			for (int i = 0; i < trace.calibrationSize; i++) {
+				calibrations.add(trace.getCalibration(i));
+			}
+		}
+		File db = File.createTempFile("benchmark", ".sqlite");
+		db.delete();
+		db.deleteOnExit();
+		SyntheticExport.Write(traces, db.getPath());
+		String dbName = db.getPath();
+		System.out.println(numSensors + " sensors of " + days + " days, " + rawBg.size() + " readings and " + calibrations.size() + " calibrations\n");
+
+		benchmarks.run("load.ReadSensors", () -> Silently(() -> SQLiteJdbc.ReadSensors(dbName)));
+		benchmarks.run("load.ReadRawBg", () -> Silently(() -> SQLiteJdbc.ReadRawBg(dbName)));
+		benchmarks.run("load.ReadCalibrations", () -> Silently(() -> SQLiteJdbc.ReadCalibrations(dbName)));
+		benchmarks.run("load.ReadExport", () -> Silently(() -> SQLiteJdbc.ReadExport(dbName)));
+		// The first call writes the snapshot, all the others read it
+		ExportSnapshot.SnapshotFile(dbName).deleteOnExit();
+		benchmarks.run("load.ExportSnapshot", () -> Silently(() -> ExportSnapshot.Read(dbName, false)));
+		benchmarks.run("load.LazyExport", () -> {
+			int rows = 0;
+			try (LazyExport export = new LazyExport(dbName, true)) {
+				for (SensorTrace sensorTrace : export) {
+					rows += sensorTrace.rawSize + sensorTrace.calibrationSize;
+				}
+			}
+			return rows;
+		});
+
+		SensorTrace trace = traces.get(traces.size() / 2);
+		int sensorId = trace.sensor.id;
+		long dayStart = trace.sensor.started_at + 86400000;
+		benchmarks.run("filter.RawData.FilterBySensor", () -> RawData.FilterBySensor(rawBg, sensorId));
+		benchmarks.run("filter.Calibration.FilterBySensor", () -> Calibration.FilterBySensor(calibrations, sensorId));
+		benchmarks.run("filter.RawData.FilterByDate", () -> RawData.FilterByDate(rawBg, dayStart, dayStart + 86400000));
+		benchmarks.run("filter.Calibration.FilterByDate", () -> Silently(() -> Calibration.FilterByDate(calibrations, dayStart, dayStart + 86400000)));
+		benchmarks.run("filter.SensorTrace.Build", () -> SensorTrace.Build(trace.sensor, rawBg, calibrations));
+
+		// Filtering all the raw readings of the sensor
+		for (String spec : new String[] { "avg(3)", "sg(7,2)", "kalman(10,25)", "outliers(7,3)", "outliers+kalman" }) {
+			RawFilter rawFilter = FilterChain.Parse(spec).get();
+			benchmarks.run("rawfilter." + spec, () -> {
+				rawFilter.reset();
+				double sum = 0;
+				for (int i = 0; i < trace.rawSize; i++) {
+					sum += rawFilter.filter(trace.timestamps[i], trace.raw_values[i]);
+				}
+				return sum;
+			});
+		}
+
+		// The quality detector over all the raw readings of the sensor
+		benchmarks.run("quality.SensorQuality", () -> {
+			SensorQuality quality = new SensorQuality();
+			for (int i = 0; i < trace.rawSize; i++) {
+				quality.onRawReading(trace.timestamps[i], trace.raw_values[i]);
+			}
+			return quality;
+		});
+
+		// Look ups at times spread over the sensor, always within its readings
+		List<RawData> sensorRawBg = RawData.FilterBySensor(rawBg, sensorId);
+		List<RawData> traceRawBg = trace.rawPrefix(trace.rawSize);
+		long[] times = new long[1024];
+		Random random = new Random(2);
+		for (int i = 0; i < times.length; i++) {
+			times[i] = trace.timestamps[0] + (long)(random.nextDouble() * (trace.timestamps[trace.rawSize - 1] - trace.timestamps[0]));
+		}
+		int[] next = new int[1];
+		benchmarks.run("lookup.getByTime.LinkedList", () -> RawData.getByTime(sensorRawBg, times[next[0]++ & 1023]));
+		benchmarks.run("lookup.getByTime.SensorTrace", () -> RawData.getByTime(traceRawBg, times[next[0]++ & 1023]));
+		benchmarks.run("lookup.TimeIndex.nearest", () -> trace.rawIndex().nearest(times[next[0]++ & 1023], RawData.MAX_DISTANCE));
+
+		// Replaying one sensor, for every algorithm
+		AlgorithmChecker checker = new AlgorithmChecker();
+		checker.quiet = true;
+		for (String name : AlgorithmRegistry.Names()) {
+			AlgorithmFactory factory = AlgorithmRegistry.Find(name);
+			String[] names = { name };
+			benchmarks.run("replay.checkSensor." + name, () -> checker.checkSensor(trace, new BgAlgorithm[] { factory.create() }, names, null, null, null, System.out, System.err));
+		}
+		// What the instrumentation costs when it is on
+		Instrumentation.enabled = true;
+		benchmarks.run("replay.checkSensor.xDripAlgorithm.instrumented", () -> checker.checkSensor(trace, new BgAlgorithm[] { new xDripAlgorithm() }, new String[] { "xDripAlgorithm" }, null, null, null, System.out, System.err));
+		Instrumentation.enabled = false;
+
+		// The bg of a million readings one at a time and in one call, after the calibrations of the sensor. Copying
+		// the readings is as fast as the memory goes, for comparing.
+		int batchSize = 1 << 20;
+		long[] batchTimestamps = new long[batchSize];
+		double[] batchRawValues = new double[batchSize];
+		double[] batchBg = new double[batchSize];
+		for (int i = 0; i < batchSize; i++) {
+			batchTimestamps[i] = trace.sensor.started_at + i * 300000L;
+			batchRawValues[i] = trace.raw_values[i % trace.rawSize];
+		}
+		// The batch has to give the same bg as one reading at a time, also for plain algorithms through the adapter
+		int checked = 0;
+		for (String name : AlgorithmRegistry.Names()) {
+			CheckBatch(name, AlgorithmRegistry.Find(name), trace);
+			CheckBatch(name + " (plain)", () -> Plain(AlgorithmRegistry.Find(name).create()), trace);
+			checked += 2;
+		}
+		System.out.println(String.format("%-45s same bg one at a time and in one call for %d algorithms", "batch.check", checked));
+		benchmarks.run("batch.copy", () -> {
+			System.arraycopy(batchRawValues, 0, batchBg, 0, batchSize);
+			return batchBg;
+		});
+		for (String name : new String[] { "xDripAlgorithm", "LineFitAlgorithm", "InitialAlgorithm" }) {
+			BgAlgorithm algorithm = AlgorithmRegistry.Find(name).create();
+			checker.checkSensor(trace, new BgAlgorithm[] { algorithm }, new String[] { name }, null, null, null, System.out, System.err);
+			StreamingBgAlgorithm streaming = StreamingAdapter.Wrap(algorithm);
+			benchmarks.run("batch." + name + ".perReading", () -> {
+				for (int i = 0; i < batchSize; i++) {
+					streaming.onRawReading(batchTimestamps[i], batchRawValues[i]);
+					batchBg[i] = streaming.calculateBG(batchTimestamps[i]);
+				}
+				return batchBg;
+			});
+			benchmarks.run("batch." + name, () -> {
+				streaming.onRawReadings(batchTimestamps, batchRawValues, 0, batchSize, batchBg);
+				return batchBg;
+			});
+		}
+
+		// The calibration schedules of one sensor, branching from snapshots and replaying every schedule from the start
+		List<SensorTrace> simulated = new ArrayList<SensorTrace>();
+		simulated.add(trace);
+		AlgorithmFactory[] simulatedFactories = { AlgorithmRegistry.Find("LineFitAlgorithm") };
+		String[] simulatedNames = { "LineFitAlgorithm" };
+		for (boolean checkpoints : new boolean[] { true, false }) {
+			ScheduleSimulator simulator = new ScheduleSimulator(simulatedFactories, simulatedNames);
+			simulator.checkpoints = checkpoints;
+			benchmarks.run("simulate.ScheduleSimulator" + (checkpoints ? "" : ".fromStart"), () -> simulator.run(simulated, 1));
+		}
+		LineFitAlgorithm snapshotted = new LineFitAlgorithm();
+		checker.checkSensor(trace, new BgAlgorithm[] { snapshotted }, new String[] { "LineFit" }, null, null, null, System.out, System.err);
+		benchmarks.run("simulate.LineFitAlgorithm.snapshot", () -> snapshotted.snapshot());
+
+		// Cross validation, leaving one sensor out: the global fit of a trainable algorithm, and tuning in every fold
+		benchmarks.run("cv.InitialAlgorithm.train", () -> new InitialAlgorithm(1.0).train(traces));
+		int[] sensorGroups = new int[traces.size()];
+		for (int i = 0; i < sensorGroups.length; i++) {
+			sensorGroups[i] = i;
+		}
+		int[] folds = CrossValidation.Split(sensorGroups, 0, 1);
+		ParameterizedFactory tunable = AlgorithmRegistry.FindTunable("xDripAlgorithm");
+		List<double[]> configurations = new ParameterSweep(tunable, Arrays.asList(ParameterRange.Parse("ageAdjustDays=0:4:5"))).grid();
+		benchmarks.run("cv.CrossValidation.tuned", () -> {
+			CrossValidation.Candidate candidate = new CrossValidation.Candidate("xDripAlgorithm", AlgorithmRegistry.Find("xDripAlgorithm"));
+			candidate.tunable = tunable;
+			candidate.configurations = configurations;
+			new CrossValidation(traces, folds, traces.size()).run(Arrays.asList(candidate), 1);
+			return candidate;
+		});
+
+		// The result cache, what a hit costs instead of the replay
+		File cacheDir = File.createTempFile("benchmark", "cache");
+		cacheDir.delete();
+		ResultCache cache = new ResultCache(cacheDir, 1L << 30);
+		AlgorithmChecker cachedChecker = new AlgorithmChecker();
+		cachedChecker.quiet = true;
+		cachedChecker.metrics = true;
+		cachedChecker.cache = cache;
+		AlgorithmFactory[] cachedFactories = { AlgorithmRegistry.Find("xDripAlgorithm") };
+		String[] cachedNames = { "xDripAlgorithm" };
+		List<SensorTrace> cachedTraces = new ArrayList<SensorTrace>();
+		cachedTraces.add(trace);
+		benchmarks.run("cache.Hash", () -> ResultCache.Hash(trace, RawData.MAX_DISTANCE));
+		benchmarks.run("cache.Fingerprint", () -> ResultCache.Fingerprint(new LineFitAlgorithm(11, new SteepestDescent())));
+		benchmarks.run("cache.checkSensors.hit", () -> cachedChecker.checkSensors(cachedTraces, cachedFactories, cachedNames, 1));
+		for (File file : cacheDir.listFiles()) {
+			file.delete();
+		}
+		cacheDir.delete();
+
+		// Fitting a line to the last calibrations of a sensor
+		LineFitAlgorithm lineFit = new LineFitAlgorithm(11, new SteepestDescent());
+		checker.checkSensor(trace, new BgAlgorithm[] { lineFit }, new String[] { "LineFit" }, null, null, null, System.out, System.err);
+		double[] start = new double[2];
+		benchmarks.run("optimizer.SteepestDescent.optimize", () -> new SteepestDescent().optimize(start, 0.00001, 100, 0, lineFit));
+		benchmarks.run("optimizer.GradientDescent", () -> new GradientDescent().minimize(start, lineFit));
+		benchmarks.run("optimizer.LBFGS", () -> new LBFGS().minimize(start, lineFit));
+		benchmarks.run("optimizer.NelderMead", () -> new NelderMead().minimize(start, lineFit));
+		benchmarks.run("optimizer.RollingLineFit", () -> {
+			RollingLineFit fit = new RollingLineFit(11, LineFitAlgorithm.ORIGIN_WEIGHT);
+			for (CalibPoint point : lineFit.calibPnts) {
+				fit.add(point.raw_value[0], point.bg_value);
+			}
+			double[] parms = new double[2];
+			fit.solve(parms);
+			return parms;
+		});
+
+		// Writing the results of one sensor, the raw values stand for the calculated bg
+		File outputDir = File.createTempFile("benchmark", "output");
+		outputDir.delete();
+		outputDir.mkdir();
+		String[] outputNames = { "xDripAlgorithm" };
+		ResultSink[] sinks = { new CsvSink(outputDir, false), new CsvSink(outputDir, true), new CsvSink(outputDir, false, 1000, "lttb"),
+							   new CsvSink(outputDir, false, 1000, "minmax"), new BinarySink(outputDir), new StatsSink() };
+		String[] sinkNames = { "output.CsvSink", "output.CsvSink.gzip", "output.CsvSink.lttb", "output.CsvSink.minmax", "output.BinarySink", "output.StatsSink" };
+		for (int s = 0; s < sinks.length; s++) {
+			ResultSink resultSink = sinks[s];
+			benchmarks.run(sinkNames[s], () -> {
+				SensorSink sink = resultSink.open(trace, outputNames);
+				for (int i = 0; i < trace.rawSize; i++) {
+					sink.onRawReading(trace.timestamps[i], trace.raw_values[i]);
+					sink.onCalculated(0, trace.timestamps[i], trace.raw_values[i]);
+				}
+				for (int i = 0; i < trace.calibrationSize; i++) {
+					sink.onCalibration(trace.calib_timestamps[i], trace.measured_bg[i]);
+				}
+				sink.close();
+				return sink;
+			});
+		}
+		for (File file : outputDir.listFiles()) {
+			file.delete();
+		}
+		outputDir.delete();
+	}
+
+	final int warmup;
+	final int iterations;
+	final long iterationMillis;
+	final List<String> filters;
+}
@@ -1,9 +1,63 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
 import java.sql.*;
 import java.text.DecimalFormat;
 import java.text.SimpleDateFormat;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
 
 class Sensor {
 	
@@ -12,13 +66,17 @@ class Sensor {
 		this.stopped_at = stopped_at;
 		this.uuid = uuid;
 		this.id = id;
+		updateDays();
+	}
+
+	// Call after the start or stop time were changed.
+	void updateDays() {
 		double hours = (stopped_at - started_at) / 60000 / 60;
 		days = hours / 24;
 	}
 
 	public String toString() {
-		double hours = (stopped_at - started_at) / 60000 / 60;
-		days = hours / 24;
+		updateDays();
 		DecimalFormat df = new DecimalFormat("#.00"); 
 		
 		SimpleDateFormat dateFormat = new SimpleDateFormat("dd-MM-yyyy HH:mm:ss");
@@ -74,10 +132,10 @@ class RawData {
 		return RawDataList;
 	}
 
-	// This function makes sure that we do not return data that is not far away (more than 12 minutes)
+	// This function makes sure that we do not return data that is not far away (more than maxDistance)
 	// from the time that we wanted
-	private static RawData limitData(RawData raw, long timeStamp) {
-		if (Math.abs(raw.timestamp - timeStamp) > 30* 60000) {
+	private static RawData limitData(RawData raw, long timeStamp, long maxDistance) {
+		if (Math.abs(raw.timestamp - timeStamp) > maxDistance) {
 			// they are too far apart
 			System.err.println("Skiping point because distance is " + (raw.timestamp - timeStamp) / 60000 + " minutes");
 			return null;
@@ -88,17 +146,49 @@ class RawData {
 	
 	// Get the last point before the calibration.
 	public static RawData getByTime(List<RawData> rawBg, long timestamp) {
-		RawData rawLast = rawBg.get(0);
+		return getByTime(rawBg, timestamp, MAX_DISTANCE);
+	}
+
+	// Get the last point before timestamp, or null if it is more than maxDistance away from it.
+	public static RawData getByTime(List<RawData> rawBg, long timestamp, long maxDistance) {
+		// If all points are after timestamp, try the first one, we might be over the border but not in much.
+		int index = Math.max(FloorIndex(rawBg, timestamp), 0);
+		return limitData(rawBg.get(index), timestamp, maxDistance);
+	}
+
+	// Index of the last point at or before timestamp, -1 if all the points are after it.
+	// Lists that come from a SensorTrace use its time index, other random access lists are
+	// searched with a binary search, and only linked lists are scanned.
+	static int FloorIndex(List<RawData> rawBg, long timestamp) {
+		if (rawBg instanceof SensorTrace.RawDataView) {
+			return ((SensorTrace.RawDataView)rawBg).timeIndex().floor(timestamp);
+		}
+		if (rawBg instanceof RandomAccess) {
+			int low = 0;
+			int high = rawBg.size() - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				if (rawBg.get(mid).timestamp <= timestamp) {
+					low = mid + 1;
+				} else {
+					high = mid - 1;
+				}
+			}
+			return high;
+		}
+		int index = -1;
 		for(RawData raw : rawBg) {
 			if(raw.timestamp > timestamp) {
 				// We have gone too far, return the previous one
-				return limitData(rawLast, timestamp);
+				break;
 			}
-			rawLast = raw;
+			index++;
 		}
-		// try returning the last one, we might be over the border but not in much.
-		return limitData(rawLast, timestamp);
+		return index;
 	}
+
+	// Calibrations that are further than this from any raw reading are ignored.
+	static final long MAX_DISTANCE = 30 * 60000;
 	
 	double raw_value;
 	long timestamp;
@@ -170,6 +260,241 @@ class Calibration {
 }
 
 
+// Binary search over the first size entries of a sorted column of timestamps.
+// It does not copy the column, so it is cheap to create one for a prefix.
+class TimeIndex {
+
+	TimeIndex(long[] times, int size) {
+		this.times = times;
+		this.size = size;
+	}
+
+	// Index of the last time at or before timestamp, -1 if there is none.
+	int floor(long timestamp) {
+		int low = 0;
+		int high = size - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (times[mid] <= timestamp) {
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return high;
+	}
+
+	// Index of the first time at or after timestamp, -1 if there is none.
+	int ceiling(long timestamp) {
+		int low = 0;
+		int high = size - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (times[mid] < timestamp) {
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low < size ? low : -1;
+	}
+
+	// Index of the time closest to timestamp, -1 if there is none within maxDistance.
+	int nearest(long timestamp, long maxDistance) {
+		int before = floor(timestamp);
+		int after = before + 1 < size ? before + 1 : -1;
+		int best = before;
+		if (best < 0 || (after >= 0 && times[after] - timestamp < timestamp - times[before])) {
+			best = after;
+		}
+		if (best < 0 || Math.abs(times[best] - timestamp) > maxDistance) {
+			return -1;
+		}
+		return best;
+	}
+
+	// Index of the last time at or before timestamp, -1 if there is none within maxDistance.
+	int floor(long timestamp, long maxDistance) {
+		int index = floor(timestamp);
+		if (index < 0 || timestamp - times[index] > maxDistance) {
+			return -1;
+		}
+		return index;
+	}
+
+	int size() {
+		return size;
+	}
+
+	private final long[] times;
+	private final int size;
+}
+
+
+// All the raw readings and calibrations of one sensor, kept in primitive columns.
+// The loaders fill it once and the checker walks it by index. Algorithms only get
+// read only views over a prefix of it, so nothing is copied while replaying.
+class SensorTrace {
+
+	SensorTrace(Sensor sensor) {
+		this.sensor = sensor;
+	}
+
+	void addRaw(long timestamp, double raw_value) {
+		if (rawSize == timestamps.length) {
+			int capacity = Math.max(16, rawSize * 2);
+			timestamps = Arrays.copyOf(timestamps, capacity);
+			raw_values = Arrays.copyOf(raw_values, capacity);
+		}
+		timestamps[rawSize] = timestamp;
+		raw_values[rawSize] = raw_value;
+		rawSize++;
+	}
+
+	void addCalibration(long timestamp, double measured_bg, double xdrip_dist, double xdrip_slope, double xdrip_intercept) {
+		if (calibrationSize == calib_timestamps.length) {
+			int capacity = Math.max(8, calibrationSize * 2);
+			calib_timestamps = Arrays.copyOf(calib_timestamps, capacity);
+			this.measured_bg = Arrays.copyOf(this.measured_bg, capacity);
+			this.xdrip_dist = Arrays.copyOf(this.xdrip_dist, capacity);
+			this.xdrip_slope = Arrays.copyOf(this.xdrip_slope, capacity);
+			this.xdrip_intercept = Arrays.copyOf(this.xdrip_intercept, capacity);
+		}
+		calib_timestamps[calibrationSize] = timestamp;
+		this.measured_bg[calibrationSize] = measured_bg;
+		this.xdrip_dist[calibrationSize] = xdrip_dist;
+		this.xdrip_slope[calibrationSize] = xdrip_slope;
+		this.xdrip_intercept[calibrationSize] = xdrip_intercept;
+		calibrationSize++;
+	}
+
+	RawData getRaw(int index) {
+		return new RawData(raw_values[index], timestamps[index], sensor.id);
+	}
+
+	Calibration getCalibration(int index) {
+		return new Calibration(measured_bg[index], calib_timestamps[index], sensor.id,
+							   xdrip_dist[index], xdrip_slope[index], xdrip_intercept[index]);
+	}
+
+	// Time index over the raw readings (only the ones that were added so far).
+	TimeIndex rawIndex() {
+		return new TimeIndex(timestamps, rawSize);
+	}
+
+	TimeIndex calibrationIndex() {
+		return new TimeIndex(calib_timestamps, calibrationSize);
+	}
+
+	// A read only list of the first size raw readings.
+	List<RawData> rawPrefix(int size) {
+		return new RawDataView(size);
+	}
+
+	// A read only list of the first size calibrations.
+	List<Calibration> calibrationPrefix(int size) {
+		return new CalibrationView(size);
+	}
+
+	// A trace of the first size readings in the arrays, they are not copied.
+	static SensorTrace Wrap(long[] timestamps, double[] raw_values, int size) {
+		SensorTrace trace = new SensorTrace(new Sensor(0, 0, null, 0));
+		trace.timestamps = timestamps;
+		trace.raw_values = raw_values;
+		trace.rawSize = size;
+		return trace;
+	}
+
+	// A copy with only the data that was added so far, adding to one does not change the other.
+	SensorTrace copy() {
+		SensorTrace copy = new SensorTrace(sensor);
+		copy.timestamps = Arrays.copyOf(timestamps, rawSize);
+		copy.raw_values = Arrays.copyOf(raw_values, rawSize);
+		copy.rawSize = rawSize;
+		copy.calib_timestamps = Arrays.copyOf(calib_timestamps, calibrationSize);
+		copy.measured_bg = Arrays.copyOf(measured_bg, calibrationSize);
+		copy.xdrip_dist = Arrays.copyOf(xdrip_dist, calibrationSize);
+		copy.xdrip_slope = Arrays.copyOf(xdrip_slope, calibrationSize);
+		copy.xdrip_intercept = Arrays.copyOf(xdrip_intercept, calibrationSize);
+		copy.calibrationSize = calibrationSize;
+		return copy;
+	}
+
+	// Split the raw readings and calibrations of the whole database to the given sensor.
+	static SensorTrace Build(Sensor sensor, List<RawData> rawBg, List<Calibration> calibrations) {
+		SensorTrace trace = new SensorTrace(sensor);
+		for (RawData raw : rawBg) {
+			if (raw.sensor_id == sensor.id) {
+				trace.addRaw(raw.timestamp, raw.raw_value);
+			}
+		}
+		for (Calibration cal : calibrations) {
+			if (cal.sensor_id == sensor.id) {
+				trace.addCalibration(cal.timestamp, cal.measured_bg, cal.xdrip_dist, cal.xdrip_slope, cal.xdrip_intercept);
+			}
+		}
+		return trace;
+	}
+
+	class RawDataView extends AbstractList<RawData> implements RandomAccess {
+		RawDataView(int size) {
+			this.size = size;
+		}
+
+		TimeIndex timeIndex() {
+			return new TimeIndex(timestamps, size);
+		}
+
+		public RawData get(int index) {
+			if (index < 0 || index >= size) {
+				throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+			}
+			return getRaw(index);
+		}
+
+		public int size() {
+			return size;
+		}
+
+		final int size;
+	}
+
+	private class CalibrationView extends AbstractList<Calibration> implements RandomAccess {
+		CalibrationView(int size) {
+			this.size = size;
+		}
+
+		public Calibration get(int index) {
+			if (index < 0 || index >= size) {
+				throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+			}
+			return getCalibration(index);
+		}
+
+		public int size() {
+			return size;
+		}
+
+		final int size;
+	}
+
+	final Sensor sensor;
+
+	// Raw readings, sorted by time.
+	long[] timestamps = new long[0];
+	double[] raw_values = new double[0];
+	int rawSize;
+
+	// Calibrations, sorted by time.
+	long[] calib_timestamps = new long[0];
+	double[] measured_bg = new double[0];
+	double[] xdrip_dist = new double[0];
+	double[] xdrip_slope = new double[0];
+	double[] xdrip_intercept = new double[0];
+	int calibrationSize;
+}
+
+
 // The return type of the algorithm
 //FIXME: This should be internal to the algorithm
 class CalibrationParameters {
@@ -190,28 +515,208 @@ interface BgAlgorithm {
 	public void calibrationReceived(List<Calibration> cal, List<RawData> rawData);
 	// Calculate the BG at time bgTimeStamp, given the raw data.
 	public double calculateBG(List<RawData> rawData, long bgTimeStamp);
+
+	// Calculates the BG of the readings from to to - 1 into bg[from] to bg[to - 1], with the calibrations that were
+	// received so far, as calculateBG(List, long) does at the time of every reading with the readings up to it as
+	// the raw data. The readings are in time order. Algorithms whose BG between two calibrations only depends on the
+	// reading do it in one loop over the arrays, which is what the plots need for every reading of a sensor.
+	public default void calculateBG(long[] timestamps, double[] raw_values, int from, int to, double[] bg) {
+		SensorTrace history = SensorTrace.Wrap(timestamps, raw_values, to);
+		for (int i = from; i < to; i++) {
+			bg[i] = calculateBG(history.rawPrefix(i + 1), timestamps[i]);
+		}
+	}
+
+	// A copy of the state of the algorithm after the data it got so far, restore goes back to it. The copy is
+	// never changed, so it can be restored many times and to other instances of the same configuration (the
+	// ScheduleSimulator branches from it on several threads). An algorithm that can not do that returns null, it
+	// is then replayed from the start instead and restore is never called.
+	public Object snapshot();
+
+	// Only called with what snapshot returned.
+	public void restore(Object state);
+}
+
+// Streaming version of BgAlgorithm, the data is pushed to it one reading and one calibration at a time
+// and the algorithm keeps its own state. This is what a live feed looks like, and it does not need the
+// whole history on every call. Use StreamingAdapter.Wrap to run a plain BgAlgorithm this way.
+interface StreamingBgAlgorithm {
+
+	// Start a new sensor with the given starting time
+	public void startSensor(long sensorStartTime);
+	// A new raw reading was received, readings come in time order
+	public void onRawReading(long timestamp, double raw_value);
+	// A new calibration was received, all the raw readings before it were already pushed
+	public void onCalibration(Calibration calibration);
+	// A calibration without a raw reading close enough to it. The checker does not give it to the algorithm, but a
+	// BgAlgorithm always found it in the calibration history of the next ones, so the ones that count the
+	// calibrations count it too. The checker still measures the third calibration when the first two were
+	// skipped, an algorithm without any parameters by then can start from this one.
+	public default void onSkippedCalibration(Calibration calibration) {
+	}
+	// Calculate the BG at time bgTimeStamp, given the raw data that was pushed so far.
+	public double calculateBG(long bgTimeStamp);
+
+	// Pushes the readings from to to - 1, all of them before the next calibration, and puts in bg[i] what
+	// calculateBG returns right after reading i was pushed (null to only push them).
+	public default void onRawReadings(long[] timestamps, double[] raw_values, int from, int to, double[] bg) {
+		for (int i = from; i < to; i++) {
+			onRawReading(timestamps[i], raw_values[i]);
+			if (bg != null) bg[i] = calculateBG(timestamps[i]);
+		}
+	}
+
+	// Like BgAlgorithm.snapshot and restore, with the data that was pushed so far.
+	public Object snapshot();
+
+	public void restore(Object state);
+}
+
+// An algorithm with something to learn from many sensors at once, like a value that is the same for every sensor.
+// Cross validation fits it on the training sensors only and checks it on the others (see CrossValidation).
+// The fit is made from sums over the sensors, so cross validation works out what every sensor adds once and every
+// fold takes the sums of all the sensors without the ones of its test sensors.
+interface TrainableAlgorithm {
+
+	// What the sensor adds to the sums of the fit, null if nothing.
+	public double[] statistics(SensorTrace trace);
+
+	// The global fit from the sums of the statistics of the training sensors (null if none of them added anything).
+	// Returns the algorithms that use what was learned, every checked sensor gets a new one. This instance is not
+	// changed.
+	public AlgorithmFactory train(double[] statistics);
+
+	public default AlgorithmFactory train(List<SensorTrace> training) {
+		double[] sum = null;
+		for (SensorTrace trace : training) {
+			sum = Add(sum, statistics(trace), 1);
+		}
+		return train(sum);
+	}
+
+	// sum + sign * statistics, in sum when there is one. Either can be null for nothing.
+	static double[] Add(double[] sum, double[] statistics, int sign) {
+		if (statistics == null) return sum;
+		if (sum == null) sum = new double[statistics.length];
+		for (int i = 0; i < statistics.length; i++) {
+			sum[i] += sign * statistics[i];
+		}
+		return sum;
+	}
+}
+
+// Runs a BgAlgorithm as a StreamingBgAlgorithm. The pushed data is kept in a SensorTrace and the
+// algorithm gets views of it, so it sees exactly the history that the checker used to build for it.
+class StreamingAdapter implements StreamingBgAlgorithm {
+
+	static StreamingBgAlgorithm Wrap(BgAlgorithm algorithm) {
+		if (algorithm instanceof StreamingBgAlgorithm) {
+			return (StreamingBgAlgorithm)algorithm;
+		}
+		return new StreamingAdapter(algorithm);
+	}
+
+	StreamingAdapter(BgAlgorithm algorithm) {
+		this.algorithm = algorithm;
+	}
+
+	public void startSensor(long sensorStartTime) {
+		history = new SensorTrace(new Sensor(sensorStartTime, sensorStartTime, null, 0));
+		algorithm.startSensor(sensorStartTime);
+	}
+
+	public void onRawReading(long timestamp, double raw_value) {
+		history.addRaw(timestamp, raw_value);
+	}
+
+	public void onCalibration(Calibration calibration) {
+		history.addCalibration(calibration.timestamp, calibration.measured_bg,
+							   calibration.xdrip_dist, calibration.xdrip_slope, calibration.xdrip_intercept);
+		algorithm.calibrationReceived(history.calibrationPrefix(history.calibrationSize), history.rawPrefix(history.rawSize));
+	}
+
+	public void onSkippedCalibration(Calibration calibration) {
+		history.addCalibration(calibration.timestamp, calibration.measured_bg,
+							   calibration.xdrip_dist, calibration.xdrip_slope, calibration.xdrip_intercept);
+	}
+
+	public double calculateBG(long bgTimeStamp) {
+		return algorithm.calculateBG(history.rawPrefix(history.rawSize), bgTimeStamp);
+	}
+
+	// The segment is added to the history and the algorithm calculates all of it in one call. Its bg goes to the
+	// places of the readings in the history, so it is calculated in calculated and copied to bg.
+	public void onRawReadings(long[] timestamps, double[] raw_values, int from, int to, double[] bg) {
+		int start = history.rawSize;
+		for (int i = from; i < to; i++) {
+			history.addRaw(timestamps[i], raw_values[i]);
+		}
+		if (bg == null || to <= from) return;
+		if (calculated.length < history.rawSize) {
+			calculated = new double[history.timestamps.length];
+		}
+		algorithm.calculateBG(history.timestamps, history.raw_values, start, history.rawSize, calculated);
+		System.arraycopy(calculated, start, bg, from, to - from);
+	}
+
+	// The history and the state of the algorithm, only if the algorithm has one.
+	public Object snapshot() {
+		Object state = algorithm.snapshot();
+		if (state == null) return null;
+		return new Object[] { history.copy(), state };
+	}
+
+	public void restore(Object state) {
+		Object[] saved = (Object[])state;
+		history = ((SensorTrace)saved[0]).copy();
+		algorithm.restore(saved[1]);
+	}
+
+	public String toString() {
+		return algorithm.toString();
+	}
+
+	final BgAlgorithm algorithm;
+	SensorTrace history;
+	// Where onRawReadings has the algorithm calculate a segment, as long as the history
+	private double[] calculated = new double[0];
 }
 
 // An example algorithm just to get going...
-class InitialAlgorithm implements BgAlgorithm {
+class InitialAlgorithm implements BgAlgorithm, StreamingBgAlgorithm, TrainableAlgorithm {
 	InitialAlgorithm(double initialSlope) {
 		this.initialSlope = initialSlope;
 	}
 	
 	public void startSensor(long sensorStartTime) {
 		params = null;
+		provisional = false;
+		firstCalib = null;
+		numCalibrations = 0;
+		hasRaw = false;
 	}
 
+	// Starts from the first calibration and the first one after it that was given (the second one unless it had
+	// no reading to pair it with). Until then the first one alone gives the bg, if it was given.
 	public void calibrationReceived(List<Calibration> cal, List<RawData> rawData) {
-		if (cal.size()==2) {
-			params =  new CalibrationParameters();
+		double raw_value = rawData.get(rawData.size()-1).raw_value;
+		if (cal.size()==1) {
+			initialCalibration(cal.get(0), cal.get(0), raw_value);
+			provisional = true;
+		} else if (params == null || provisional) {
+			initialCalibration(cal.get(0), cal.get(cal.size()-1), raw_value);
+			provisional = false;
+		}
+	}
 
-			Calibration calAverage = new Calibration((cal.get(0).measured_bg + cal.get(1).measured_bg) /2, (cal.get(0).timestamp + cal.get(1).timestamp) /2, cal.get(0).sensor_id,
-										 cal.get(0).xdrip_dist, cal.get(0).xdrip_slope, cal.get(0).xdrip_intercept);
+	private void initialCalibration(Calibration cal0, Calibration cal1, double raw_value) {
+		params =  new CalibrationParameters();
 
-			params.slope = initialSlope; // Just a guess
-			params.intercept = calAverage.measured_bg  - params.slope * rawData.get(rawData.size()-1).raw_value;
-		}
+		Calibration calAverage = new Calibration((cal0.measured_bg + cal1.measured_bg) /2, (cal0.timestamp + cal1.timestamp) /2, cal0.sensor_id,
+									 cal0.xdrip_dist, cal0.xdrip_slope, cal0.xdrip_intercept);
+
+		params.slope = initialSlope; // Just a guess
+		params.intercept = calAverage.measured_bg  - params.slope * raw_value;
 	}
 
 	public double calculateBG(List<RawData> rawData, long bgTimeStamp) {
@@ -220,12 +725,138 @@ class InitialAlgorithm implements BgAlgorithm {
 		return calculatedBg;
 	}
 
+	public void onRawReading(long timestamp, double raw_value) {
+		lastRawValue = raw_value;
+		hasRaw = true;
+	}
+
+	public void onCalibration(Calibration calibration) {
+		numCalibrations++;
+		if (numCalibrations==1) {
+			firstCalib = calibration;
+			initialCalibration(calibration, calibration, lastRawValue);
+			provisional = true;
+		} else if (params == null || provisional) {
+			initialCalibration(firstCalib, calibration, lastRawValue);
+			provisional = false;
+		}
+	}
+
+	// Counted like calibrationReceived sees it in the history, without being used as the second one. Before any
+	// calibration was given, it gives the bg alone with the last reading, far as it is.
+	public void onSkippedCalibration(Calibration calibration) {
+		numCalibrations++;
+		if (numCalibrations==1) {
+			firstCalib = calibration;
+		}
+		if (params == null && hasRaw) {
+			initialCalibration(calibration, calibration, lastRawValue);
+			provisional = true;
+		}
+	}
+
+	// The checker only asks for the time of the last reading (or of a calibration right after it).
+	public double calculateBG(long bgTimeStamp) {
+		return params.slope * lastRawValue + params.intercept;
+	}
+
+	public void calculateBG(long[] timestamps, double[] raw_values, int from, int to, double[] bg) {
+		double slope = params.slope;
+		double intercept = params.intercept;
+		for (int i = from; i < to; i++) {
+			bg[i] = slope * raw_values[i] + intercept;
+		}
+	}
+
+	public void onRawReadings(long[] timestamps, double[] raw_values, int from, int to, double[] bg) {
+		if (to <= from) return;
+		if (bg != null) calculateBG(timestamps, raw_values, from, to, bg);
+		onRawReading(timestamps[to - 1], raw_values[to - 1]);
+	}
+
+	// The parameters and calibrations are replaced, never changed, so the state can share them.
+	public Object snapshot() {
+		InitialAlgorithm state = new InitialAlgorithm(initialSlope);
+		state.restore(this);
+		return state;
+	}
+
+	public void restore(Object state) {
+		InitialAlgorithm from = (InitialAlgorithm)state;
+		params = from.params;
+		provisional = from.provisional;
+		firstCalib = from.firstCalib;
+		numCalibrations = from.numCalibrations;
+		hasRaw = from.hasRaw;
+		lastRawValue = from.lastRawValue;
+	}
+
+	// The initial slope that fits the calibrations of the training sensors best, as they are measured by the checker.
+	// Every calibration after the first two is off by bg - (average of the first two bg) - slope * (raw - raw at the
+	// second one), or by the same from the first calibration alone before the second one was given (or from a
+	// skipped one before any was given). The slope with
+	// the least sum of these squared, relative to the bg, comes from two sums.
+	public double[] statistics(SensorTrace trace) {
+		if (AlgorithmChecker.Ignored(trace)) return null;
+		double sumDeltas = 0;
+		double sumSquares = 0;
+		int rawIndex = 0;
+		boolean started = false;
+		// Whether the algorithm has params, from the first calibration or from both
+		boolean anchored = false;
+		double firstBg = 0;
+		double averageBg = 0;
+		double secondRaw = 0;
+		for (int i = 0; i < trace.calibrationSize; i++) {
+			long timestamp = trace.calib_timestamps[i];
+			while (rawIndex < trace.rawSize && trace.timestamps[rawIndex] <= timestamp) {
+				rawIndex++;
+			}
+			int reading = Math.max(rawIndex - 1, 0);
+			// Not measured and not given to the algorithm, but still counted as one of the first two
+			boolean skipped = Math.abs(trace.timestamps[reading] - timestamp) > RawData.MAX_DISTANCE;
+			double bg = trace.measured_bg[i];
+			double raw = trace.raw_values[reading];
+			if (AlgorithmChecker.Measured(i) && anchored && !skipped) {
+				double delta = (raw - secondRaw) / bg;
+				sumDeltas += delta * (bg - averageBg) / bg;
+				sumSquares += delta * delta;
+			}
+			if (i == 0) {
+				firstBg = bg;
+			}
+			if (skipped ? !anchored && rawIndex > 0 : i == 0) {
+				averageBg = bg;
+				secondRaw = raw;
+				anchored = true;
+			} else if (!skipped && !started) {
+				averageBg = (firstBg + bg) / 2;
+				secondRaw = raw;
+				started = anchored = true;
+			}
+		}
+		return new double[] { sumDeltas, sumSquares };
+	}
+
+	public AlgorithmFactory train(double[] statistics) {
+		double slope = statistics != null && statistics[1] > 0 ? statistics[0] / statistics[1] : initialSlope;
+		return () -> new InitialAlgorithm(slope);
+	}
+
 	public String toString() {
 		return  "Algorithm is initialSlope = " + initialSlope;
 	}
 	
 	final double initialSlope;
 	CalibrationParameters params;
+	// params only come from the first calibration, the second one was not given yet
+	boolean provisional;
+
+	// Streaming state
+	Calibration firstCalib;
+	int numCalibrations;
+	boolean hasRaw;
+	double lastRawValue;
 }
 
 class CalibPoint {
@@ -242,79 +873,465 @@ class CalibPoint {
 interface Evaluator {
 	// evaluate how well the parameters fit the algoritm to the target
 	public double evaluate(double[] p);
+
+	// Put the gradient of evaluate at p in grad. Evaluators that can not do it return false and the
+	// optimizers fall back to finite differences, which cost more calls to evaluate.
+	public default boolean gradient(double[] p, double[] grad) {
+		return false;
+	}
 }
 
-class SteepestDescent {
-	public static final double GRAD_DELTA = 1e-8;
+// The outcome of one Optimizer.minimize call.
+class OptimizerResult {
+	// The best point that was evaluated and its value
 	double[] solution;
+	double value;
+	// False if the optimizer gave up or ran out of its budget before it converged
+	boolean converged;
+	boolean budgetExhausted;
+	int evaluations;
+	int gradientEvaluations;
+	long nanos;
 
-	public boolean optimize(double[] startPos, double tolerance, int maxIter, int gradType, Evaluator evalFunc) {
-		int numVar = startPos.length;
-		double  gVal;
-		double  LHSval;
-		double  RHSval;
-		double[] temp = new double[numVar];
-		double[] z = new double[numVar];
+	public String toString() {
+		return "value = " + value + " evaluations = " + evaluations + " gradients = " + gradientEvaluations +
+			" time = " + (nanos / 1000) + "us" + (converged ? "" : budgetExhausted ? " (budget exhausted)" : " (not converged)");
+	}
+}
 
-		solution = startPos.clone();
-		int numIter = 1;
+// Finds parameters that minimize an Evaluator.
+interface Optimizer {
+	// Starts from startPos, give it the previous solution to warm start.
+	public OptimizerResult minimize(double[] startPos, Evaluator evalFunc);
+}
 
-		while (numIter <= maxIter) {
-			double g1 = evalFunc.evaluate(solution);
-			double centVal = g1;
-			double zMag = 0.0;
-			for (int i = 0; i < numVar; i++) {
-				switch(gradType) {
-					//simple forward gradient
-					case 0  :
-						solution[i] += GRAD_DELTA;
-						RHSval = evalFunc.evaluate(solution);
-						solution[i] -= GRAD_DELTA;
-						z[i] = (RHSval - centVal) / GRAD_DELTA;
-						break;
-					//central gradient
-					case 1  :
-						solution[i] += GRAD_DELTA;
-						RHSval = evalFunc.evaluate(solution);
-						solution[i] -= 2 * GRAD_DELTA;
-						LHSval = evalFunc.evaluate(solution);
-						solution[i] += GRAD_DELTA;
-						z[i]         = (RHSval - LHSval) / (2.0 * GRAD_DELTA);
-						break;
-					//quadratic fit using cramers rule then deriv = 2ax+b
-					case 2  :
-					default :
-						solution[i] += GRAD_DELTA;
-						double Xr = solution[i];
-						double Yr = evalFunc.evaluate(solution);
-						solution[i] -= 2 * GRAD_DELTA;
-						double Xl = solution[i];
-						double Yl = evalFunc.evaluate(solution);
-						solution[i] += GRAD_DELTA;
-						double Xc = solution[i];
-						double Yc = g1;
+// Counts the calls to an Evaluator, remembers the best point that it saw, and throws
+// BudgetExhausted once the evaluation budget is used up.
+class CountingEvaluator implements Evaluator {
 
-						double detA  = Xr*Xr*(Xl-Xc) - Xr*(Xl*Xl-Xc*Xc) + (Xl*Xl*Xc-Xc*Xc*Xl);
-						double detA1 = Yr*(Xl-Xc) - Xr*(Yl-Yc) + (Yl*Xc-Yc*Xl);
-						double detA2 = Xr*Xr*(Yl-Yc) - Yr*(Xl*Xl-Xc*Xc) + (Xl*Xl*Yc-Xc*Xc*Yl);
-						z[i]  = (2 * detA1 * Xc + detA2) / detA;
-						break;
-				}
-				zMag += z[i] * z[i];
-			}
-			zMag = Math.sqrt(zMag);
+	static class BudgetExhausted extends RuntimeException {
+		private static final long serialVersionUID = 1L;
 
-			if (zMag < 1e-12) {
-				// Zero Gradient - might be a minimum
-				return true;
-			}
+		BudgetExhausted() {
+			super("evaluation budget exhausted", null, false, false);
+		}
+	}
 
-			double alpha1 = 0.0;
-			double alpha3 = 1.0;
-			for (int i = 0; i < numVar; i++) {
-				z[i] /= zMag;
-				temp[i] = solution[i] - alpha3 * z[i];
-			}
+	CountingEvaluator(Evaluator evaluator, int maxEvaluations) {
+		this.evaluator = evaluator;
+		this.maxEvaluations = maxEvaluations;
+	}
+
+	public double evaluate(double[] p) {
+		if (evaluations >= maxEvaluations) {
+			throw new BudgetExhausted();
+		}
+		evaluations++;
+		double value = evaluator.evaluate(p);
+		if (best == null || value < bestValue) {
+			best = p.clone();
+			bestValue = value;
+		}
+		return value;
+	}
+
+	// A gradient counts as one evaluation of the budget.
+	public boolean gradient(double[] p, double[] grad) {
+		if (evaluations >= maxEvaluations) {
+			throw new BudgetExhausted();
+		}
+		if (!evaluator.gradient(p, grad)) {
+			return false;
+		}
+		evaluations++;
+		gradientEvaluations++;
+		return true;
+	}
+
+	final Evaluator evaluator;
+	final int maxEvaluations;
+	int evaluations;
+	int gradientEvaluations;
+	double[] best;
+	double bestValue;
+}
+
+// Takes care of the evaluation budget and of the counting and timing for the optimizers.
+abstract class BudgetedOptimizer implements Optimizer {
+
+	// Hard limit on the calls to the evaluator (gradients count too), --optimizer-budget sets it for all of them
+	static int DefaultMaxEvaluations = Integer.MAX_VALUE;
+	int maxEvaluations = DefaultMaxEvaluations;
+
+	public OptimizerResult minimize(double[] startPos, Evaluator evalFunc) {
+		long start = System.nanoTime();
+		CountingEvaluator counter = new CountingEvaluator(evalFunc, maxEvaluations);
+		OptimizerResult result = new OptimizerResult();
+		try {
+			result.converged = run(startPos.clone(), counter);
+		} catch (CountingEvaluator.BudgetExhausted e) {
+			result.budgetExhausted = true;
+		}
+		if (counter.best == null) {
+			result.solution = startPos.clone();
+			result.value = Double.NaN;
+		} else {
+			result.solution = counter.best;
+			result.value = counter.bestValue;
+		}
+		result.evaluations = counter.evaluations;
+		result.gradientEvaluations = counter.gradientEvaluations;
+		result.nanos = System.nanoTime() - start;
+		return result;
+	}
+
+	// Returns true if it converged. The best point is taken from the counter.
+	abstract boolean run(double[] startPos, CountingEvaluator evalFunc);
+
+	// The analytic gradient if there is one, central differences otherwise.
+	static void Gradient(double[] p, double[] grad, CountingEvaluator evalFunc) {
+		if (evalFunc.gradient(p, grad)) {
+			return;
+		}
+		for (int i = 0; i < p.length; i++) {
+			double h = SteepestDescent.GRAD_DELTA * Math.max(1.0, Math.abs(p[i]));
+			double saved = p[i];
+			p[i] = saved + h;
+			double right = evalFunc.evaluate(p);
+			p[i] = saved - h;
+			double left = evalFunc.evaluate(p);
+			p[i] = saved;
+			grad[i] = (right - left) / (2 * h);
+		}
+	}
+}
+
+// Limited memory BFGS with a backtracking (Armijo) line search. With warmStart the curvature pairs are kept
+// between calls, so the next, slightly different, problem starts with a good idea of its shape.
+class LBFGS extends BudgetedOptimizer {
+
+	LBFGS() {
+		this(5, 1e-6, 200, false);
+	}
+
+	LBFGS(int memory, double tolerance, int maxIter, boolean warmStart) {
+		this.memory = memory;
+		this.tolerance = tolerance;
+		this.maxIter = maxIter;
+		this.warmStart = warmStart;
+	}
+
+	boolean run(double[] x, CountingEvaluator evalFunc) {
+		int n = x.length;
+		if (s == null || s[0].length != n || !warmStart) {
+			s = new double[memory][n];
+			y = new double[memory][n];
+			rho = new double[memory];
+			pairs = 0;
+			newest = -1;
+		}
+		double[] grad = new double[n];
+		double[] newGrad = new double[n];
+		double[] direction = new double[n];
+		double[] next = new double[n];
+		double[] alpha = new double[memory];
+
+		double f = evalFunc.evaluate(x);
+		Gradient(x, grad, evalFunc);
+		for (int iter = 0; iter < maxIter; iter++) {
+			if (Norm(grad) < tolerance) {
+				return true;
+			}
+			// Two loop recursion, direction = -H * grad
+			for (int i = 0; i < n; i++) {
+				direction[i] = -grad[i];
+			}
+			for (int k = 0; k < pairs; k++) {
+				int j = (newest - k + memory) % memory;
+				alpha[j] = rho[j] * Dot(s[j], direction);
+				for (int i = 0; i < n; i++) {
+					direction[i] -= alpha[j] * y[j][i];
+				}
+			}
+			if (pairs > 0) {
+				double gamma = Dot(s[newest], y[newest]) / Dot(y[newest], y[newest]);
+				for (int i = 0; i < n; i++) {
+					direction[i] *= gamma;
+				}
+			}
+			for (int k = pairs - 1; k >= 0; k--) {
+				int j = (newest - k + memory) % memory;
+				double beta = rho[j] * Dot(y[j], direction);
+				for (int i = 0; i < n; i++) {
+					direction[i] += s[j][i] * (alpha[j] - beta);
+				}
+			}
+			double slope = Dot(grad, direction);
+			if (slope >= 0) {
+				// Not a descent direction (stale history), go down the gradient instead
+				pairs = 0;
+				for (int i = 0; i < n; i++) {
+					direction[i] = -grad[i];
+				}
+				slope = Dot(grad, direction);
+			}
+
+			double step = 1.0;
+			double newF;
+			while (true) {
+				for (int i = 0; i < n; i++) {
+					next[i] = x[i] + step * direction[i];
+				}
+				newF = evalFunc.evaluate(next);
+				if (newF <= f + 1e-4 * step * slope) {
+					break;
+				}
+				step /= 2;
+				if (step < 1e-20) {
+					// No step makes it better, we are as low as we can get
+					return true;
+				}
+			}
+			Gradient(next, newGrad, evalFunc);
+
+			int j = (newest + 1) % memory;
+			double sy = 0;
+			for (int i = 0; i < n; i++) {
+				s[j][i] = next[i] - x[i];
+				y[j][i] = newGrad[i] - grad[i];
+				sy += s[j][i] * y[j][i];
+			}
+			if (sy > 1e-12) {
+				rho[j] = 1.0 / sy;
+				newest = j;
+				pairs = Math.min(pairs + 1, memory);
+			}
+
+			boolean done = Math.abs(f - newF) < tolerance * Math.max(1.0, Math.abs(f));
+			System.arraycopy(next, 0, x, 0, n);
+			System.arraycopy(newGrad, 0, grad, 0, n);
+			f = newF;
+			if (done) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	static double Dot(double[] a, double[] b) {
+		double sum = 0;
+		for (int i = 0; i < a.length; i++) {
+			sum += a[i] * b[i];
+		}
+		return sum;
+	}
+
+	static double Norm(double[] a) {
+		return Math.sqrt(Dot(a, a));
+	}
+
+	final int memory;
+	final double tolerance;
+	final int maxIter;
+	final boolean warmStart;
+
+	// Curvature pairs, a ring of the last memory steps
+	private double[][] s;
+	private double[][] y;
+	private double[] rho;
+	private int pairs;
+	private int newest;
+}
+
+// Nelder-Mead simplex, needs no gradient at all. The first simplex is built around the start point
+// with initialStep relative to every coordinate.
+class NelderMead extends BudgetedOptimizer {
+
+	NelderMead() {
+		this(0.1, 1e-8, 500);
+	}
+
+	NelderMead(double initialStep, double tolerance, int maxIter) {
+		this.initialStep = initialStep;
+		this.tolerance = tolerance;
+		this.maxIter = maxIter;
+	}
+
+	boolean run(double[] startPos, CountingEvaluator evalFunc) {
+		int n = startPos.length;
+		double[][] simplex = new double[n + 1][];
+		double[] values = new double[n + 1];
+		simplex[0] = startPos.clone();
+		values[0] = evalFunc.evaluate(simplex[0]);
+		for (int i = 0; i < n; i++) {
+			simplex[i + 1] = startPos.clone();
+			simplex[i + 1][i] += initialStep * Math.max(1.0, Math.abs(startPos[i]));
+			values[i + 1] = evalFunc.evaluate(simplex[i + 1]);
+		}
+		double[] centroid = new double[n];
+		double[] reflected = new double[n];
+		double[] changed = new double[n];
+
+		for (int iter = 0; iter < maxIter; iter++) {
+			// Find the best, worst and second worst vertex
+			int best = 0;
+			int worst = 0;
+			for (int i = 1; i <= n; i++) {
+				if (values[i] < values[best]) best = i;
+				if (values[i] > values[worst]) worst = i;
+			}
+			int secondWorst = best;
+			for (int i = 0; i <= n; i++) {
+				if (i != worst && values[i] > values[secondWorst]) secondWorst = i;
+			}
+			if (Math.abs(values[worst] - values[best]) <= tolerance * (Math.abs(values[best]) + 1e-12)) {
+				return true;
+			}
+
+			Arrays.fill(centroid, 0);
+			for (int i = 0; i <= n; i++) {
+				if (i == worst) continue;
+				for (int k = 0; k < n; k++) {
+					centroid[k] += simplex[i][k] / n;
+				}
+			}
+			for (int k = 0; k < n; k++) {
+				reflected[k] = centroid[k] + (centroid[k] - simplex[worst][k]);
+			}
+			double reflectedValue = evalFunc.evaluate(reflected);
+			if (reflectedValue < values[best]) {
+				// Try to go further that way
+				for (int k = 0; k < n; k++) {
+					changed[k] = centroid[k] + 2 * (centroid[k] - simplex[worst][k]);
+				}
+				double expandedValue = evalFunc.evaluate(changed);
+				if (expandedValue < reflectedValue) {
+					replace(simplex, values, worst, changed, expandedValue);
+				} else {
+					replace(simplex, values, worst, reflected, reflectedValue);
+				}
+			} else if (reflectedValue < values[secondWorst]) {
+				replace(simplex, values, worst, reflected, reflectedValue);
+			} else {
+				// Contract towards the centroid, from the better of the worst and the reflected point
+				boolean outside = reflectedValue < values[worst];
+				double[] from = outside ? reflected : simplex[worst];
+				for (int k = 0; k < n; k++) {
+					changed[k] = centroid[k] + 0.5 * (from[k] - centroid[k]);
+				}
+				double contractedValue = evalFunc.evaluate(changed);
+				if (contractedValue < Math.min(values[worst], reflectedValue)) {
+					replace(simplex, values, worst, changed, contractedValue);
+				} else {
+					// Shrink everything towards the best vertex
+					for (int i = 0; i <= n; i++) {
+						if (i == best) continue;
+						for (int k = 0; k < n; k++) {
+							simplex[i][k] = simplex[best][k] + 0.5 * (simplex[i][k] - simplex[best][k]);
+						}
+						values[i] = evalFunc.evaluate(simplex[i]);
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	private static void replace(double[][] simplex, double[] values, int index, double[] point, double value) {
+		System.arraycopy(point, 0, simplex[index], 0, point.length);
+		values[index] = value;
+	}
+
+	final double initialStep;
+	final double tolerance;
+	final int maxIter;
+}
+
+// The optimizer that LineFitAlgorithm started with, kept as it was to compare the others with. It has no budget,
+// does not use the analytic gradient and returns where it stopped, minimize() only counts and times it.
+class SteepestDescent implements Optimizer {
+	public static final double GRAD_DELTA = 1e-8;
+	double[] solution;
+
+	public OptimizerResult minimize(double[] startPos, Evaluator evalFunc) {
+		long start = System.nanoTime();
+		CountingEvaluator counter = new CountingEvaluator(evalFunc, Integer.MAX_VALUE);
+		OptimizerResult result = new OptimizerResult();
+		result.converged = optimize(startPos, 0.00001, 100, 0, counter);
+		result.solution = solution.clone();
+		result.value = evalFunc.evaluate(result.solution);
+		result.evaluations = counter.evaluations;
+		result.nanos = System.nanoTime() - start;
+		return result;
+	}
+
+	public boolean optimize(double[] startPos, double tolerance, int maxIter, int gradType, Evaluator evalFunc) {
+		int numVar = startPos.length;
+		double  gVal;
+		double  LHSval;
+		double  RHSval;
+		double[] temp = new double[numVar];
+		double[] z = new double[numVar];
+
+		solution = startPos.clone();
+		int numIter = 1;
+
+		while (numIter <= maxIter) {
+			double g1 = evalFunc.evaluate(solution);
+			double centVal = g1;
+			double zMag = 0.0;
+			for (int i = 0; i < numVar; i++) {
+				switch(gradType) {
+					//simple forward gradient
+					case 0  :
+						solution[i] += GRAD_DELTA;
+						RHSval = evalFunc.evaluate(solution);
+						solution[i] -= GRAD_DELTA;
+						z[i] = (RHSval - centVal) / GRAD_DELTA;
+						break;
+					//central gradient
+					case 1  :
+						solution[i] += GRAD_DELTA;
+						RHSval = evalFunc.evaluate(solution);
+						solution[i] -= 2 * GRAD_DELTA;
+						LHSval = evalFunc.evaluate(solution);
+						solution[i] += GRAD_DELTA;
+						z[i]         = (RHSval - LHSval) / (2.0 * GRAD_DELTA);
+						break;
+					//quadratic fit using cramers rule then deriv = 2ax+b
+					case 2  :
+					default :
+						solution[i] += GRAD_DELTA;
+						double Xr = solution[i];
+						double Yr = evalFunc.evaluate(solution);
+						solution[i] -= 2 * GRAD_DELTA;
+						double Xl = solution[i];
+						double Yl = evalFunc.evaluate(solution);
+						solution[i] += GRAD_DELTA;
+						double Xc = solution[i];
+						double Yc = g1;
+
+						double detA  = Xr*Xr*(Xl-Xc) - Xr*(Xl*Xl-Xc*Xc) + (Xl*Xl*Xc-Xc*Xc*Xl);
+						double detA1 = Yr*(Xl-Xc) - Xr*(Yl-Yc) + (Yl*Xc-Yc*Xl);
+						double detA2 = Xr*Xr*(Yl-Yc) - Yr*(Xl*Xl-Xc*Xc) + (Xl*Xl*Yc-Xc*Xc*Yl);
+						z[i]  = (2 * detA1 * Xc + detA2) / detA;
+						break;
+				}
+				zMag += z[i] * z[i];
+			}
+			zMag = Math.sqrt(zMag);
+
+			if (zMag < 1e-12) {
+				// Zero Gradient - might be a minimum
+				return true;
+			}
+
+			double alpha1 = 0.0;
+			double alpha3 = 1.0;
+			for (int i = 0; i < numVar; i++) {
+				z[i] /= zMag;
+				temp[i] = solution[i] - alpha3 * z[i];
+			}
 			double g3 = evalFunc.evaluate(temp);
 
 			while (g3 >= g1) {
@@ -383,248 +1400,5908 @@ class SteepestDescent {
 	}
 }
 
-class LineFitAlgorithm implements BgAlgorithm, Evaluator {
-	long startTime;
-	double[] parms = new double[2];
-
-	List<CalibPoint> calibPnts = new LinkedList<CalibPoint>();
+// SteepestDescent with what was learned from it: it uses the analytic gradient when there is one, takes the
+// better of the two bracketing steps instead of giving up when the quadratic step would divide by zero, keeps
+// to the evaluation budget and returns the best point that it evaluated.
+class GradientDescent extends BudgetedOptimizer {
+	double[] solution;
 
-	LineFitAlgorithm() {
-	}
+	// Settings for minimize()
+	final double tolerance;
+	final int maxIter;
+	final int gradType;
 
-	public String toString() {
-		return  "LineFitAlgorithm";
+	GradientDescent() {
+		this(0.00001, 100, 0);
 	}
 
-	public double evaluate(double[] p) {
-		double err = 0;
-		int idx = 0;
-
-		for (CalibPoint pnt : calibPnts) {
-			idx++;
-			double bg = p[0] * pnt.raw_value[0] + p[1];
-			if (idx<calibPnts.size()-10) continue;
-			err += (bg-pnt.bg_value)*(bg-pnt.bg_value);//*idx;
-		}
-		// minimize the mean square error
-		err /= calibPnts.size();
-		return err;
+	GradientDescent(double tolerance, int maxIter, int gradType) {
+		this.tolerance = tolerance;
+		this.maxIter = maxIter;
+		this.gradType = gradType;
 	}
 
-	public void startSensor(long sensorStartTime) {
-		startTime = sensorStartTime;
-		calibPnts.clear();
+	boolean run(double[] startPos, CountingEvaluator evalFunc) {
+		return optimize(startPos, tolerance, maxIter, gradType, evalFunc);
 	}
 
-	public void calibrationReceived(List<Calibration> cal, List<RawData> rawData) {
-		if (cal.size()==0 || rawData.size()==0) return;
-		RawData lastRaw = rawData.get(rawData.size()-1);
-		Calibration lastCalib = cal.get(cal.size()-1);
-		if (Math.abs(lastRaw.timestamp - lastCalib.timestamp) > 12*60000) {
-			// Calibration and raw values too far apart > 12 minutes.
-			return;
-		}
-		double[] raw_values = new double[1];
-		raw_values[0] = lastRaw.raw_value;
-		calibPnts.add(new CalibPoint(raw_values, lastCalib.measured_bg, lastCalib.timestamp));
-		// Fit parameters to line
-		SteepestDescent opti = new SteepestDescent();
-		boolean result = opti.optimize(parms, 0.00001, 100, 0, this);
-		for (int i=0;i<parms.length;i++) {
-			parms[i] = opti.solution[i];
-		}
-		double err = evaluate(parms);
-		//System.out.println("Error = "+err+ " "+parms[0]+" "+parms[1]);
-	}
+	public boolean optimize(double[] startPos, double tolerance, int maxIter, int gradType, Evaluator evalFunc) {
+		int numVar = startPos.length;
+		double  gVal;
+		double  LHSval;
+		double  RHSval;
+		double[] temp = new double[numVar];
+		double[] z = new double[numVar];
 
-	public double calculateBG(List<RawData> rawData, long bgTimeStamp) {
-		double bg = parms[0] * rawData.get(rawData.size()-1).raw_value + parms[1];
-		return bg;
-	}
-}
+		solution = startPos.clone();
+		int numIter = 1;
 
-class xDripAlgorithm implements BgAlgorithm {
-	long startTime;
+		while (numIter <= maxIter) {
+			double g1 = evalFunc.evaluate(solution);
+			double centVal = g1;
+			double zMag = 0.0;
+			boolean analytic = evalFunc.gradient(solution, z);
+			for (int i = 0; i < numVar; i++) {
+				if (analytic) {
+					zMag += z[i] * z[i];
+					continue;
+				}
+				switch(gradType) {
+					//simple forward gradient
+					case 0  :
+						solution[i] += SteepestDescent.GRAD_DELTA;
+						RHSval = evalFunc.evaluate(solution);
+						solution[i] -= SteepestDescent.GRAD_DELTA;
+						z[i] = (RHSval - centVal) / SteepestDescent.GRAD_DELTA;
+						break;
+					//central gradient
+					case 1  :
+						solution[i] += SteepestDescent.GRAD_DELTA;
+						RHSval = evalFunc.evaluate(solution);
+						solution[i] -= 2 * SteepestDescent.GRAD_DELTA;
+						LHSval = evalFunc.evaluate(solution);
+						solution[i] += SteepestDescent.GRAD_DELTA;
+						z[i]         = (RHSval - LHSval) / (2.0 * SteepestDescent.GRAD_DELTA);
+						break;
+					//quadratic fit using cramers rule then deriv = 2ax+b
+					case 2  :
+					default :
+						solution[i] += SteepestDescent.GRAD_DELTA;
+						double Xr = solution[i];
+						double Yr = evalFunc.evaluate(solution);
+						solution[i] -= 2 * SteepestDescent.GRAD_DELTA;
+						double Xl = solution[i];
+						double Yl = evalFunc.evaluate(solution);
+						solution[i] += SteepestDescent.GRAD_DELTA;
+						double Xc = solution[i];
+						double Yc = g1;
 
-	Calibration lastCalib;
+						double detA  = Xr*Xr*(Xl-Xc) - Xr*(Xl*Xl-Xc*Xc) + (Xl*Xl*Xc-Xc*Xc*Xl);
+						double detA1 = Yr*(Xl-Xc) - Xr*(Yl-Yc) + (Yl*Xc-Yc*Xl);
+						double detA2 = Xr*Xr*(Yl-Yc) - Yr*(Xl*Xl-Xc*Xc) + (Xl*Xl*Yc-Xc*Xc*Yl);
+						z[i]  = (2 * detA1 * Xc + detA2) / detA;
+						break;
+				}
+				zMag += z[i] * z[i];
+			}
+			zMag = Math.sqrt(zMag);
 
-	xDripAlgorithm() {
-	}
+			if (zMag < 1e-12) {
+				// Zero Gradient - might be a minimum
+				return true;
+			}
 
-	public String toString() {
-		return  "xDripAlgorithm";
+			double alpha1 = 0.0;
+			double alpha3 = 1.0;
+			for (int i = 0; i < numVar; i++) {
+				z[i] /= zMag;
+				temp[i] = solution[i] - alpha3 * z[i];
+			}
+			double g3 = evalFunc.evaluate(temp);
+
+			while (g3 >= g1) {
+				alpha3 /= 2.0;
+				for (int i = 0; i < numVar; i++) {
+					temp[i]  = solution[i] - alpha3 * z[i];
+				}
+				g3 = evalFunc.evaluate(temp);
+
+				if (alpha3 < tolerance / 2.0) {
+					// No likely improvement - might have minimum
+					return true;
+				}
+			}
+
+			double alpha2 = alpha3 / 2.0;
+			for (int i = 0; i < numVar; i++) {
+				temp[i]  = solution[i] - alpha2 * z[i];
+			}
+			double g2 = evalFunc.evaluate(temp);
+
+			double h1 = 0;
+			double h3 = 0;
+			boolean interpolate = !(Math.abs(alpha2) < 1e-10 || Math.abs(alpha3) < 1e-10 || Math.abs((alpha3 - alpha2)) < 1e-10);
+			if (interpolate) {
+				h1 = (g2 - g1) / alpha2;
+				double h2 = (g3 - g2) / (alpha3 - alpha2);
+				h3 = (h2 - h1) / alpha3;
+				interpolate = Math.abs(h3) >= 1e-10;
+			}
+
+			if (interpolate) {
+				double alpha0 = 0.5 * (alpha2 - (h1 / h3));
+				for (int i = 0; i < numVar; i++) {
+					temp[i]  = solution[i] - alpha0 * z[i];
+				}
+				double g0 = evalFunc.evaluate(temp);
+
+				if (g0 < g3) {
+					gVal   = g0;
+					alpha1 = alpha0;
+				}
+				else {
+					gVal   = g3;
+					alpha1 = alpha3;
+				}
+			} else {
+				// The quadratic fit would divide by zero, take the better of the two steps that we already have
+				if (g2 < g3) {
+					gVal   = g2;
+					alpha1 = alpha2;
+				}
+				else {
+					gVal   = g3;
+					alpha1 = alpha3;
+				}
+			}
+
+			if (alpha1 > 0.5) {
+				alpha1 = 0.5;
+			}
+			for (int i = 0; i < numVar; i++) {
+				solution[i] -= alpha1 * z[i];
+			}
+
+			if (Math.abs(g1 - gVal) < tolerance) {
+				// Found successfully
+				return true;
+			}
+
+			numIter++;
+		}
+
+		// Maximum number of iterations exceeded
+		return true;
+	}
+}
+
+// Weighted least squares fit of a line y = slope * x + intercept over the last windowSize points.
+// The points are kept in a ring buffer and the sums of the normal equations are updated when a point
+// comes in or falls out of the window, so adding a point costs O(1) whatever the window is.
+// A point at (0, 0) with originWeight times the average weight of the points is fitted as well. While the x of
+// the points are close together it keeps the line near the one through the origin (the slope only) instead of a
+// steep line through the noise, once they spread it hardly matters.
+class RollingLineFit {
+
+	RollingLineFit(int windowSize, double originWeight) {
+		xs = new double[windowSize];
+		ys = new double[windowSize];
+		weights = new double[windowSize];
+		this.originWeight = originWeight;
+	}
+
+	void clear() {
+		start = 0;
+		count = 0;
+		sumW = sumWX = sumWY = sumWXX = sumWXY = 0;
+		removedSinceSum = 0;
+	}
+
+	void add(double x, double y) {
+		add(x, y, 1.0);
+	}
+
+	void add(double x, double y, double weight) {
+		int capacity = xs.length;
+		int index;
+		if (count == capacity) {
+			// The oldest point falls out of the window
+			index = start;
+			double w = weights[index];
+			sumW -= w;
+			sumWX -= w * xs[index];
+			sumWY -= w * ys[index];
+			sumWXX -= w * xs[index] * xs[index];
+			sumWXY -= w * xs[index] * ys[index];
+			start = (start + 1) % capacity;
+			removedSinceSum++;
+		} else {
+			index = (start + count) % capacity;
+			count++;
+		}
+		xs[index] = x;
+		ys[index] = y;
+		weights[index] = weight;
+		sumW += weight;
+		sumWX += weight * x;
+		sumWY += weight * y;
+		sumWXX += weight * x * x;
+		sumWXY += weight * x * y;
+		if (removedSinceSum >= capacity) {
+			// Subtracting leaves rounding errors behind, start the sums again once in a window.
+			resum();
+		}
+	}
+
+	private void resum() {
+		sumW = sumWX = sumWY = sumWXX = sumWXY = 0;
+		for (int i = 0; i < count; i++) {
+			int index = (start + i) % xs.length;
+			double w = weights[index];
+			sumW += w;
+			sumWX += w * xs[index];
+			sumWY += w * ys[index];
+			sumWXX += w * xs[index] * xs[index];
+			sumWXY += w * xs[index] * ys[index];
+		}
+		removedSinceSum = 0;
+	}
+
+	int size() {
+		return count;
+	}
+
+	// Makes this the same as from, which has the same window size.
+	void copy(RollingLineFit from) {
+		System.arraycopy(from.xs, 0, xs, 0, xs.length);
+		System.arraycopy(from.ys, 0, ys, 0, ys.length);
+		System.arraycopy(from.weights, 0, weights, 0, weights.length);
+		start = from.start;
+		count = from.count;
+		sumW = from.sumW;
+		sumWX = from.sumWX;
+		sumWY = from.sumWY;
+		sumWXX = from.sumWXX;
+		sumWXY = from.sumWXY;
+		removedSinceSum = from.removedSinceSum;
+	}
+
+	// Puts the slope and intercept in parms[0] and parms[1]. If the x values can not tell the slope
+	// (all at the same x, or a single point without originWeight) the slope in parms[0] is kept and only the
+	// intercept is fitted.
+	// Returns false if there are no points.
+	boolean solve(double[] parms) {
+		if (count == 0 || sumW <= 0) {
+			return false;
+		}
+		// The point at the origin only adds to the weight
+		double w = sumW + originWeight * sumW / count;
+		double meanX = sumWX / w;
+		double meanY = sumWY / w;
+		double varX = sumWXX / w - meanX * meanX;
+		if (varX > 1e-9 * Math.max(1.0, meanX * meanX)) {
+			double covXY = sumWXY / w - meanX * meanY;
+			parms[0] = covXY / varX;
+		}
+		parms[1] = meanY - parms[0] * meanX;
+		return true;
+	}
+
+	private final double[] xs;
+	private final double[] ys;
+	private final double[] weights;
+	private final double originWeight;
+	private int start;
+	private int count;
+	private double sumW, sumWX, sumWY, sumWXX, sumWXY;
+	private int removedSinceSum;
+}
+
+class LineFitAlgorithm implements BgAlgorithm, StreamingBgAlgorithm, Evaluator {
+	long startTime;
+	double[] parms = new double[2];
+
+	List<CalibPoint> calibPnts = new LinkedList<CalibPoint>();
+	// All the points that were added, calibPnts only keeps the ones in the window
+	int numCalibPnts;
+	// Calibrations without a raw value this close before them are not used for the fit.
+	long maxCalibrationDistance = 12 * 60000;
+
+	// The line is fitted to the last windowSize calibrations. Without an optimizer this is done in closed form,
+	// otherwise the optimizer minimizes evaluate() starting from the previous fit.
+	// The closed form also fits a point at the origin with this much of the weight of a calibration. The first
+	// calibrations of a sensor are a few minutes apart, a line through them alone is mostly noise (the optimizers
+	// start from 0, 0 and do not get that far from it).
+	static final double ORIGIN_WEIGHT = 0.5;
+	final int windowSize;
+	final Optimizer optimizer;
+	// Every calibration is weighted by bg to this power, 0 fits all of them the same and 2 fits the relative
+	// errors (like MARD) so low bg counts more.
+	final double bgWeightPower;
+	final RollingLineFit fit;
+	// What the optimizer did on the last calibration, null without an optimizer
+	OptimizerResult lastResult;
+
+	LineFitAlgorithm() {
+		// The optimizer looked at the last 11 calibrations
+		this(11, null);
+	}
+
+	LineFitAlgorithm(int windowSize, Optimizer optimizer) {
+		this(windowSize, optimizer, 0);
+	}
+
+	LineFitAlgorithm(int windowSize, Optimizer optimizer, double bgWeightPower) {
+		if (windowSize < 1) {
+			throw new IllegalArgumentException("The windowSize of LineFitAlgorithm must be at least 1, got " + windowSize);
+		}
+		this.windowSize = windowSize;
+		this.optimizer = optimizer;
+		this.bgWeightPower = bgWeightPower;
+		fit = new RollingLineFit(windowSize, ORIGIN_WEIGHT);
+	}
+
+	public String toString() {
+		String name = optimizer == null ? "LineFitAlgorithm" : "LineFitAlgorithm (" + optimizer.getClass().getSimpleName() + ")";
+		if (windowSize != 11) {
+			name += " windowSize = " + windowSize;
+		}
+		if (bgWeightPower != 0) {
+			name += " bgWeightPower = " + bgWeightPower;
+		}
+		if (optimizer instanceof BudgetedOptimizer && ((BudgetedOptimizer)optimizer).maxEvaluations != Integer.MAX_VALUE) {
+			name += " maxEvaluations = " + ((BudgetedOptimizer)optimizer).maxEvaluations;
+		}
+		return name;
+	}
+
+	// The model is bg = p[0] * raw_value[0] + ... + p[n-1] * raw_value[n-1] + p[n]
+	private static double Model(double[] p, double[] raw_value) {
+		int n = raw_value.length;
+		double bg = p[n];
+		for (int k = 0; k < n; k++) {
+			bg += p[k] * raw_value[k];
+		}
+		return bg;
+	}
+
+	public double evaluate(double[] p) {
+		double err = 0;
+		int idx = 0;
+
+		for (CalibPoint pnt : calibPnts) {
+			idx++;
+			if (idx<=calibPnts.size()-windowSize) continue;
+			double bg = Model(p, pnt.raw_value);
+			err += weight(pnt.bg_value)*(bg-pnt.bg_value)*(bg-pnt.bg_value);//*idx;
+		}
+		// minimize the mean square error
+		err /= numCalibPnts;
+		return err;
+	}
+
+	public boolean gradient(double[] p, double[] grad) {
+		Arrays.fill(grad, 0);
+		int idx = 0;
+		for (CalibPoint pnt : calibPnts) {
+			idx++;
+			if (idx<=calibPnts.size()-windowSize) continue;
+			int n = pnt.raw_value.length;
+			double residual = 2 * weight(pnt.bg_value) * (Model(p, pnt.raw_value) - pnt.bg_value) / numCalibPnts;
+			for (int k = 0; k < n; k++) {
+				grad[k] += residual * pnt.raw_value[k];
+			}
+			grad[n] += residual;
+		}
+		return true;
+	}
+
+	public void startSensor(long sensorStartTime) {
+		startTime = sensorStartTime;
+		calibPnts.clear();
+		numCalibPnts = 0;
+		fit.clear();
+		// Start every sensor from the same place, so the result does not depend on the sensors checked before it
+		Arrays.fill(parms, 0);
+		hasRaw = false;
+	}
+
+	public void calibrationReceived(List<Calibration> cal, List<RawData> rawData) {
+		if (cal.size()==0 || rawData.size()==0) return;
+		Calibration lastCalib = cal.get(cal.size()-1);
+		int rawIndex = RawData.FloorIndex(rawData, lastCalib.timestamp);
+		if (rawIndex < 0 || lastCalib.timestamp - rawData.get(rawIndex).timestamp > maxCalibrationDistance) {
+			// Calibration and raw values too far apart.
+			return;
+		}
+		RawData lastRaw = rawData.get(rawIndex);
+		addCalibPoint(lastRaw.raw_value, lastCalib);
+	}
+
+	private double weight(double bg) {
+		return bgWeightPower == 0 ? 1.0 : Math.pow(bg, -bgWeightPower);
+	}
+
+	private void addCalibPoint(double raw_value, Calibration calib) {
+		if (optimizer == null) {
+			fit.add(raw_value, calib.measured_bg, weight(calib.measured_bg));
+			fit.solve(parms);
+			return;
+		}
+		double[] raw_values = new double[1];
+		raw_values[0] = raw_value;
+		calibPnts.add(new CalibPoint(raw_values, calib.measured_bg, calib.timestamp));
+		numCalibPnts++;
+		if (calibPnts.size() > windowSize) {
+			// Older points are not used by evaluate
+			calibPnts.remove(0);
+		}
+		// Fit parameters to line, starting from the last fit
+		lastResult = optimizer.minimize(parms, this);
+		for (int i=0;i<parms.length;i++) {
+			parms[i] = lastResult.solution[i];
+		}
+		//System.out.println("Error = "+lastResult.value+ " "+parms[0]+" "+parms[1]);
+	}
+
+	public double calculateBG(List<RawData> rawData, long bgTimeStamp) {
+		double bg = parms[0] * rawData.get(rawData.size()-1).raw_value + parms[1];
+		return bg;
+	}
+
+	public void onRawReading(long timestamp, double raw_value) {
+		lastRawTimestamp = timestamp;
+		lastRawValue = raw_value;
+		hasRaw = true;
+	}
+
+	public void onCalibration(Calibration calibration) {
+		if (!hasRaw || Math.abs(calibration.timestamp - lastRawTimestamp) > maxCalibrationDistance) {
+			// Calibration and raw values too far apart.
+			return;
+		}
+		addCalibPoint(lastRawValue, calibration);
+	}
+
+	public double calculateBG(long bgTimeStamp) {
+		return parms[0] * lastRawValue + parms[1];
+	}
+
+	public void calculateBG(long[] timestamps, double[] raw_values, int from, int to, double[] bg) {
+		double slope = parms[0];
+		double intercept = parms[1];
+		for (int i = from; i < to; i++) {
+			bg[i] = slope * raw_values[i] + intercept;
+		}
+	}
+
+	public void onRawReadings(long[] timestamps, double[] raw_values, int from, int to, double[] bg) {
+		if (to <= from) return;
+		if (bg != null) calculateBG(timestamps, raw_values, from, to, bg);
+		onRawReading(timestamps[to - 1], raw_values[to - 1]);
+	}
+
+	// LBFGS with warmStart keeps what it learned on the last calibrations in itself, that is not in the state.
+	public Object snapshot() {
+		if (optimizer instanceof LBFGS && ((LBFGS)optimizer).warmStart) return null;
+		LineFitAlgorithm state = new LineFitAlgorithm(windowSize, optimizer, bgWeightPower);
+		state.restore(this);
+		return state;
+	}
+
+	public void restore(Object state) {
+		LineFitAlgorithm from = (LineFitAlgorithm)state;
+		startTime = from.startTime;
+		parms = from.parms.clone();
+		calibPnts = new LinkedList<CalibPoint>(from.calibPnts);
+		numCalibPnts = from.numCalibPnts;
+		maxCalibrationDistance = from.maxCalibrationDistance;
+		fit.copy(from.fit);
+		lastResult = from.lastResult;
+		hasRaw = from.hasRaw;
+		lastRawTimestamp = from.lastRawTimestamp;
+		lastRawValue = from.lastRawValue;
+	}
+
+	// Streaming state
+	boolean hasRaw;
+	long lastRawTimestamp;
+	double lastRawValue;
+}
+
+class xDripAlgorithm implements BgAlgorithm, StreamingBgAlgorithm {
+	long startTime;
+
+	Calibration lastCalib;
+
+	// Raw values of a new sensor are raised by up to ageAdjustFactor, going down to nothing after ageAdjustDays.
+	final double ageAdjustDays;
+	final double ageAdjustFactor;
+
+	xDripAlgorithm() {
+		this(1.9, .45);
+	}
+
+	xDripAlgorithm(double ageAdjustDays, double ageAdjustFactor) {
+		this.ageAdjustDays = ageAdjustDays;
+		this.ageAdjustFactor = ageAdjustFactor;
+	}
+
+	public String toString() {
+		if (ageAdjustDays == 1.9 && ageAdjustFactor == .45) {
+			return  "xDripAlgorithm";
+		}
+		return  "xDripAlgorithm ageAdjustDays = " + ageAdjustDays + " ageAdjustFactor = " + ageAdjustFactor;
+	}
+
+	public void startSensor(long sensorStartTime) {
+		startTime = sensorStartTime;
+		lastCalib = null;
+		hasRaw = false;
+	}
+
+	public void calibrationReceived(List<Calibration> cal, List<RawData> rawData) {
+		if (cal.size()==0 || rawData.size()==0) return;
+		lastCalib = cal.get(cal.size()-1);
+	}
+
+	public double calculateBG(List<RawData> rawData, long bgTimeStamp) {
+		RawData lastRaw = rawData.get(rawData.size()-1);
+		return calculateBG(lastRaw.raw_value, lastRaw.timestamp);
+	}
+
+	public void onRawReading(long timestamp, double raw_value) {
+		lastRawTimestamp = timestamp;
+		lastRawValue = raw_value;
+		hasRaw = true;
+	}
+
+	public void onCalibration(Calibration calibration) {
+		if (!hasRaw) return;
+		lastCalib = calibration;
+	}
+
+	// The db has the slope and intercept of xDrip at every calibration, so before any calibration was given the
+	// ones of a skipped calibration are used.
+	public void onSkippedCalibration(Calibration calibration) {
+		if (!hasRaw || lastCalib != null) return;
+		lastCalib = calibration;
+	}
+
+	public double calculateBG(long bgTimeStamp) {
+		return calculateBG(lastRawValue, lastRawTimestamp);
+	}
+
+	// The readings are in time order, so the ones that are still age adjusted come first. Both parts are then a loop
+	// without branches that the JIT can vectorize, and they give the same numbers as calculateBG below.
+	public void calculateBG(long[] timestamps, double[] raw_values, int from, int to, double[] bg) {
+		double slope = lastCalib.xdrip_slope;
+		double intercept = lastCalib.xdrip_intercept;
+		double adjustMillis = 86400000 * ageAdjustDays;
+		int adjusted = from;
+		while (adjusted < to && adjustMillis - (timestamps[adjusted] - startTime) > 0) {
+			adjusted++;
+		}
+		for (int i = from; i < adjusted; i++) {
+			double adjust_for = adjustMillis - (timestamps[i] - startTime);
+			double raw_data = raw_values[i];
+			bg[i] = slope * ((((ageAdjustFactor) * (adjust_for / adjustMillis)) * raw_data) + raw_data) + intercept;
+		}
+		for (int i = adjusted; i < to; i++) {
+			bg[i] = slope * raw_values[i] + intercept;
+		}
+	}
+
+	public void onRawReadings(long[] timestamps, double[] raw_values, int from, int to, double[] bg) {
+		if (to <= from) return;
+		if (bg != null) calculateBG(timestamps, raw_values, from, to, bg);
+		onRawReading(timestamps[to - 1], raw_values[to - 1]);
+	}
+
+	public Object snapshot() {
+		xDripAlgorithm state = new xDripAlgorithm(ageAdjustDays, ageAdjustFactor);
+		state.restore(this);
+		return state;
+	}
+
+	public void restore(Object state) {
+		xDripAlgorithm from = (xDripAlgorithm)state;
+		startTime = from.startTime;
+		lastCalib = from.lastCalib;
+		hasRaw = from.hasRaw;
+		lastRawTimestamp = from.lastRawTimestamp;
+		lastRawValue = from.lastRawValue;
+	}
+
+	private double calculateBG(double raw_data, long rawTimestamp) {
+		double age_adjusted_raw_value = AgeAdjust(raw_data, rawTimestamp - startTime, ageAdjustDays, ageAdjustFactor);
+		double bg = lastCalib.xdrip_slope * age_adjusted_raw_value + lastCalib.xdrip_intercept;
+		return bg;
+	}
+
+	// The raw value of a reading sensorAge millis after the sensor started, raised like xDrip does for a new sensor.
+	static double AgeAdjust(double raw_data, long sensorAge, double ageAdjustDays, double ageAdjustFactor) {
+		double adjust_for = (86400000 * ageAdjustDays) - sensorAge;
+		if (adjust_for > 0) {
+			return (((ageAdjustFactor) * (adjust_for / (86400000 * ageAdjustDays))) * raw_data) + raw_data;
+		}
+		return raw_data;
+	}
+
+	// Streaming state
+	boolean hasRaw;
+	long lastRawTimestamp;
+	double lastRawValue;
+}
+
+// A filter for the raw readings of a sensor, between the data and the algorithm (see FilteredAlgorithm).
+// Readings come one at a time in time order. Filters keep what they need in arrays of a fixed size, so a
+// reading costs the same at the end of a long sensor as at its start and nothing is allocated for it.
+interface RawFilter {
+
+	// A new sensor, forget the readings of the last one
+	public void reset();
+	// Returns the filtered value of this reading
+	public double filter(long timestamp, double raw_value);
+
+	// A new filter in the same state as this one, for FilteredAlgorithm.snapshot. It is never changed.
+	public RawFilter copy();
+	// Makes this the same as from, a copy of a filter with the same configuration.
+	public void restore(RawFilter from);
+}
+
+// The last readings in a ring buffer. It starts over after a gap in the readings, the values before it do
+// not tell anything about the ones after it.
+abstract class WindowFilter implements RawFilter {
+
+	// More than 3 readings missing
+	static final long MAX_GAP = 20 * 60000;
+
+	WindowFilter(int size) {
+		values = new double[size];
+	}
+
+	public void reset() {
+		count = 0;
+		next = 0;
+	}
+
+	public double filter(long timestamp, double raw_value) {
+		if (count > 0 && timestamp - lastTimestamp > MAX_GAP) {
+			reset();
+		}
+		lastTimestamp = timestamp;
+		return filter(raw_value);
+	}
+
+	abstract double filter(double raw_value);
+
+	void add(double value) {
+		values[next] = value;
+		next = (next + 1) % values.length;
+		if (count < values.length) count++;
+	}
+
+	// The i'th of the values in the window, 0 is the oldest.
+	double get(int i) {
+		return values[(next - count + i + values.length) % values.length];
+	}
+
+	public void restore(RawFilter from) {
+		WindowFilter window = (WindowFilter)from;
+		System.arraycopy(window.values, 0, values, 0, values.length);
+		count = window.count;
+		next = window.next;
+		lastTimestamp = window.lastTimestamp;
+	}
+
+	final double[] values;
+	int count;
+	int next;
+	long lastTimestamp;
+}
+
+// The average of the last readings, kept as a running sum.
+class MovingAverageFilter extends WindowFilter {
+
+	MovingAverageFilter(int size) {
+		super(size);
+	}
+
+	public void reset() {
+		super.reset();
+		sum = 0;
+	}
+
+	double filter(double raw_value) {
+		if (count == values.length) {
+			sum -= values[next];
+		}
+		add(raw_value);
+		sum += raw_value;
+		return sum / count;
+	}
+
+	public RawFilter copy() {
+		MovingAverageFilter copy = new MovingAverageFilter(values.length);
+		copy.restore(this);
+		return copy;
+	}
+
+	public void restore(RawFilter from) {
+		super.restore(from);
+		sum = ((MovingAverageFilter)from).sum;
+	}
+
+	public String toString() {
+		return "avg(" + values.length + ")";
+	}
+
+	double sum;
+}
+
+// Fits a polynomial to the last readings by least squares and takes its value at the last one (a causal
+// Savitzky-Golay filter, it does not wait for the readings after it). The readings are taken as evenly
+// spaced, so the weights of the readings are the same for every window and are found once, for every
+// number of readings that the window can have while it fills.
+class SavitzkyGolayFilter extends WindowFilter {
+
+	SavitzkyGolayFilter(int size, int order) {
+		super(size);
+		this.order = order;
+		weights = new double[size + 1][];
+		for (int n = 1; n <= size; n++) {
+			weights[n] = Weights(n, Math.min(order, n - 1));
+		}
+	}
+
+	// The weights are the same for every copy
+	private SavitzkyGolayFilter(SavitzkyGolayFilter from) {
+		super(from.values.length);
+		order = from.order;
+		weights = from.weights;
+		restore(from);
+	}
+
+	double filter(double raw_value) {
+		add(raw_value);
+		double[] w = weights[count];
+		double value = 0;
+		for (int i = 0; i < count; i++) {
+			value += w[i] * get(i);
+		}
+		return value;
+	}
+
+	// The weights of n readings at x = -(n-1)..0 that give the value at 0 of the polynomial of the given order
+	// that fits them. That value is the constant term c0 of the fit, so the weights are the first row of
+	// (A'A)^-1 A' where A has the powers of x.
+	static double[] Weights(int n, int order) {
+		int m = order + 1;
+		double[][] normal = new double[m][m + 1];
+		for (int i = 0; i < n; i++) {
+			double x = i - (n - 1);
+			for (int r = 0; r < m; r++) {
+				for (int c = 0; c < m; c++) {
+					normal[r][c] += Math.pow(x, r + c);
+				}
+			}
+		}
+		// Solve (A'A) z = e0, A'A is symmetric so z' A' is the first row we want
+		normal[0][m] = 1;
+		for (int c = 0; c < m; c++) {
+			int pivot = c;
+			for (int r = c + 1; r < m; r++) {
+				if (Math.abs(normal[r][c]) > Math.abs(normal[pivot][c])) pivot = r;
+			}
+			double[] swap = normal[c];
+			normal[c] = normal[pivot];
+			normal[pivot] = swap;
+			for (int r = 0; r < m; r++) {
+				if (r == c) continue;
+				double factor = normal[r][c] / normal[c][c];
+				for (int k = c; k <= m; k++) {
+					normal[r][k] -= factor * normal[c][k];
+				}
+			}
+		}
+		double[] weights = new double[n];
+		for (int i = 0; i < n; i++) {
+			double x = i - (n - 1);
+			for (int r = 0; r < m; r++) {
+				weights[i] += normal[r][m] / normal[r][r] * Math.pow(x, r);
+			}
+		}
+		return weights;
+	}
+
+	public RawFilter copy() {
+		return new SavitzkyGolayFilter(this);
+	}
+
+	public String toString() {
+		return "sg(" + values.length + "," + order + ")";
+	}
+
+	final int order;
+	private final double[][] weights;
+}
+
+// A Kalman filter of one value that follows a random walk. The walk adds processNoise (variance) every 5
+// minutes, and the readings have measurementNoise.
+class KalmanFilter implements RawFilter {
+
+	KalmanFilter(double processNoise, double measurementNoise) {
+		this.processNoise = processNoise;
+		this.measurementNoise = measurementNoise;
+	}
+
+	public void reset() {
+		started = false;
+	}
+
+	public double filter(long timestamp, double raw_value) {
+		if (!started) {
+			estimate = raw_value;
+			variance = measurementNoise;
+			started = true;
+		} else {
+			variance += processNoise * Math.max(0, timestamp - lastTimestamp) / 300000.0;
+			double gain = variance / (variance + measurementNoise);
+			estimate += gain * (raw_value - estimate);
+			variance *= 1 - gain;
+		}
+		lastTimestamp = timestamp;
+		return estimate;
+	}
+
+	public RawFilter copy() {
+		KalmanFilter copy = new KalmanFilter(processNoise, measurementNoise);
+		copy.restore(this);
+		return copy;
+	}
+
+	public void restore(RawFilter from) {
+		KalmanFilter kalman = (KalmanFilter)from;
+		started = kalman.started;
+		estimate = kalman.estimate;
+		variance = kalman.variance;
+		lastTimestamp = kalman.lastTimestamp;
+	}
+
+	public String toString() {
+		return "kalman(" + processNoise + "," + measurementNoise + ")";
+	}
+
+	final double processNoise;
+	final double measurementNoise;
+	boolean started;
+	double estimate;
+	double variance;
+	long lastTimestamp;
+}
+
+// Replaces a reading that is further than threshold times the (scaled) median absolute deviation from the
+// median of the readings before it with that median. The reading itself still goes into the window, so a
+// real jump is followed after a few readings.
+class OutlierFilter extends WindowFilter {
+
+	OutlierFilter(int size, double threshold) {
+		super(size);
+		this.threshold = threshold;
+		sorted = new double[size];
+	}
+
+	double filter(double raw_value) {
+		double value = raw_value;
+		if (count >= 3) {
+			double median = Median(count, false, 0);
+			// 1.4826 makes it the standard deviation for normal noise
+			double deviation = 1.4826 * Median(count, true, median);
+			if (deviation > 0 && Math.abs(raw_value - median) > threshold * deviation) {
+				value = median;
+			}
+		}
+		add(raw_value);
+		return value;
+	}
+
+	// The median of the window, or of the distances of the window from center. The order of the readings
+	// does not matter here, so the buffer is taken as it is, and the window is small, so an insertion sort
+	// is the fastest.
+	private double Median(int n, boolean distances, double center) {
+		for (int i = 0; i < n; i++) {
+			double value = distances ? Math.abs(values[i] - center) : values[i];
+			int j = i;
+			while (j > 0 && sorted[j - 1] > value) {
+				sorted[j] = sorted[j - 1];
+				j--;
+			}
+			sorted[j] = value;
+		}
+		return n % 2 == 1 ? sorted[n / 2] : (sorted[n / 2 - 1] + sorted[n / 2]) / 2;
+	}
+
+	// WindowFilter.restore copies all of the state, sorted is only used inside filter
+	public RawFilter copy() {
+		OutlierFilter copy = new OutlierFilter(values.length, threshold);
+		copy.restore(this);
+		return copy;
+	}
+
+	public String toString() {
+		return "outliers(" + values.length + "," + threshold + ")";
+	}
+
+	final double threshold;
+	private final double[] sorted;
+}
+
+// Filters one after the other.
+class FilterChain implements RawFilter {
+
+	FilterChain(RawFilter[] filters) {
+		this.filters = filters;
+	}
+
+	public void reset() {
+		for (RawFilter filter : filters) {
+			filter.reset();
+		}
+	}
+
+	public double filter(long timestamp, double raw_value) {
+		for (RawFilter filter : filters) {
+			raw_value = filter.filter(timestamp, raw_value);
+		}
+		return raw_value;
+	}
+
+	public RawFilter copy() {
+		RawFilter[] copies = new RawFilter[filters.length];
+		for (int i = 0; i < filters.length; i++) {
+			copies[i] = filters[i].copy();
+		}
+		return new FilterChain(copies);
+	}
+
+	public void restore(RawFilter from) {
+		RawFilter[] saved = ((FilterChain)from).filters;
+		for (int i = 0; i < filters.length; i++) {
+			filters[i].restore(saved[i]);
+		}
+	}
+
+	public String toString() {
+		StringBuilder name = new StringBuilder();
+		for (RawFilter filter : filters) {
+			if (name.length() > 0) name.append('+');
+			name.append(filter);
+		}
+		return name.toString();
+	}
+
+	// Makes a new chain from a spec like outliers(7,3)+kalman(10,25), every argument has a default. Returns null
+	// (and says why) if the spec is wrong, it is checked once here and not every time a chain is made.
+	static Supplier<RawFilter> Parse(String spec) {
+		List<Supplier<RawFilter>> filters = new ArrayList<Supplier<RawFilter>>();
+		for (String part : spec.split("\\+")) {
+			String name = part;
+			double[] args = new double[0];
+			int open = part.indexOf('(');
+			try {
+				if (open >= 0) {
+					if (!part.endsWith(")")) throw new IllegalArgumentException("missing )");
+					name = part.substring(0, open);
+					String[] values = part.substring(open + 1, part.length() - 1).split(",");
+					args = new double[values.length];
+					for (int i = 0; i < values.length; i++) {
+						args[i] = Double.parseDouble(values[i].trim());
+					}
+				}
+				final double[] a = args;
+				if (name.equals("avg")) {
+					int size = (int)Arg(a, 0, 3, 1);
+					filters.add(() -> new MovingAverageFilter(size));
+				} else if (name.equals("sg")) {
+					int size = (int)Arg(a, 0, 7, 1);
+					int order = (int)Arg(a, 1, 2, 0);
+					filters.add(() -> new SavitzkyGolayFilter(size, order));
+				} else if (name.equals("kalman")) {
+					double processNoise = Arg(a, 0, 10, 0);
+					double measurementNoise = Arg(a, 1, 25, Double.MIN_VALUE);
+					filters.add(() -> new KalmanFilter(processNoise, measurementNoise));
+				} else if (name.equals("outliers")) {
+					int size = (int)Arg(a, 0, 7, 3);
+					double threshold = Arg(a, 1, 3, 0);
+					filters.add(() -> new OutlierFilter(size, threshold));
+				} else {
+					throw new IllegalArgumentException("unknown filter");
+				}
+			} catch (IllegalArgumentException e) {
+				System.err.println("Bad filter " + part + " (" + e.getMessage() + "), filters are " + NAMES);
+				return null;
+			}
+		}
+		return () -> {
+			RawFilter[] chain = new RawFilter[filters.size()];
+			for (int i = 0; i < chain.length; i++) {
+				chain[i] = filters.get(i).get();
+			}
+			return chain.length == 1 ? chain[0] : new FilterChain(chain);
+		};
+	}
+
+	private static double Arg(double[] args, int index, double defaultValue, double min) {
+		double value = index < args.length ? args[index] : defaultValue;
+		if (!(value >= min)) throw new IllegalArgumentException("argument " + (index + 1) + " is less than " + min);
+		return value;
+	}
+
+	static final String NAMES = "avg(size), sg(size,order), kalman(processNoise,measurementNoise), outliers(size,threshold)";
+
+	final RawFilter[] filters;
+}
+
+// An algorithm that gets filtered raw readings. Its name is the name of the algorithm with the filters after
+// an @, like xDripAlgorithm@kalman(10,25), so filtered and unfiltered versions can be checked together on one
+// pass over the data. The checker, sinks and errors still see the readings as they are in the db.
+class FilteredAlgorithm implements BgAlgorithm, StreamingBgAlgorithm {
+
+	FilteredAlgorithm(BgAlgorithm algorithm, RawFilter filter) {
+		this.algorithm = algorithm;
+		this.streaming = StreamingAdapter.Wrap(algorithm);
+		this.filter = filter;
+	}
+
+	public void startSensor(long sensorStartTime) {
+		filter.reset();
+		streaming.startSensor(sensorStartTime);
+	}
+
+	public void onRawReading(long timestamp, double raw_value) {
+		streaming.onRawReading(timestamp, filter.filter(timestamp, raw_value));
+	}
+
+	public void onCalibration(Calibration calibration) {
+		streaming.onCalibration(calibration);
+	}
+
+	public void onSkippedCalibration(Calibration calibration) {
+		streaming.onSkippedCalibration(calibration);
+	}
+
+	public double calculateBG(long bgTimeStamp) {
+		return streaming.calculateBG(bgTimeStamp);
+	}
+
+	// The BgAlgorithm way filters the whole history on every call, the checker only uses the streaming one.
+	public void calibrationReceived(List<Calibration> cal, List<RawData> rawData) {
+		algorithm.calibrationReceived(cal, filtered(rawData));
+	}
+
+	public double calculateBG(List<RawData> rawData, long bgTimeStamp) {
+		return algorithm.calculateBG(filtered(rawData), bgTimeStamp);
+	}
+
+	private List<RawData> filtered(List<RawData> rawData) {
+		filter.reset();
+		List<RawData> filtered = new ArrayList<RawData>(rawData.size());
+		for (RawData raw : rawData) {
+			filtered.add(new RawData(filter.filter(raw.timestamp, raw.raw_value), raw.timestamp, raw.sensor_id));
+		}
+		return filtered;
+	}
+
+	// The state of the filter and of the algorithm, only if the algorithm has one.
+	public Object snapshot() {
+		Object state = streaming.snapshot();
+		if (state == null) return null;
+		return new Object[] { filter.copy(), state };
+	}
+
+	public void restore(Object state) {
+		Object[] saved = (Object[])state;
+		filter.restore((RawFilter)saved[0]);
+		streaming.restore(saved[1]);
+	}
+
+	public String toString() {
+		return algorithm + "@" + filter;
+	}
+
+	final BgAlgorithm algorithm;
+	final StreamingBgAlgorithm streaming;
+	final RawFilter filter;
+}
+
+// Creates a new instance of an algorithm, every sensor that is checked in parallel gets its own.
+interface AlgorithmFactory {
+	public BgAlgorithm create();
+}
+
+// Finds algorithms by the name that is given on the command line. The algorithms that need
+// constructor arguments are registered here with their defaults, any other class that implements
+// BgAlgorithm and has a constructor without arguments is found by its class name, so a new algorithm
+// only has to be added to this file.
+class AlgorithmRegistry {
+
+	private static final Map<String, AlgorithmFactory> algorithms = new LinkedHashMap<String, AlgorithmFactory>();
+	private static final Map<String, ParameterizedFactory> tunables = new LinkedHashMap<String, ParameterizedFactory>();
+
+	static {
+		RegisterTunable("xDripAlgorithm", new ParameterizedFactory(
+			new String[] { "ageAdjustDays", "ageAdjustFactor" }, new double[] { 1.9, .45 }, p -> new xDripAlgorithm(p[0], p[1])));
+		RegisterTunable("LineFitAlgorithm", new ParameterizedFactory(
+			new String[] { "windowSize", "bgWeightPower" }, new double[] { 11, 0 }, new double[] { 1, Double.NEGATIVE_INFINITY },
+			p -> new LineFitAlgorithm((int)Math.round(p[0]), null, p[1])));
+		Register("LineFitSteepestDescent", () -> new LineFitAlgorithm(11, new SteepestDescent()));
+		Register("LineFitGradientDescent", () -> new LineFitAlgorithm(11, new GradientDescent()));
+		Register("LineFitLBFGS", () -> new LineFitAlgorithm(11, new LBFGS()));
+		Register("LineFitNelderMead", () -> new LineFitAlgorithm(11, new NelderMead()));
+		RegisterTunable("InitialAlgorithm", new ParameterizedFactory(
+			new String[] { "initialSlope" }, new double[] { 1.0 }, p -> new InitialAlgorithm(p[0])));
+	}
+
+	static void Register(String name, AlgorithmFactory factory) {
+		algorithms.put(name, factory);
+	}
+
+	// A tunable algorithm can also be used by name, with its default values.
+	static void RegisterTunable(String name, ParameterizedFactory factory) {
+		tunables.put(name, factory);
+		Register(name, factory.factory(factory.defaultValues));
+	}
+
+	// Returns null if there is no such algorithm, or it can not be tuned.
+	static ParameterizedFactory FindTunable(String name) {
+		for (Map.Entry<String, ParameterizedFactory> entry : tunables.entrySet()) {
+			if (entry.getKey().equalsIgnoreCase(name)) {
+				return entry.getValue();
+			}
+		}
+		return null;
+	}
+
+	static Set<String> TunableNames() {
+		return tunables.keySet();
+	}
+
+	// Returns null if there is no such algorithm. name@filters gives the algorithm filtered raw readings
+	// (see FilteredAlgorithm and FilterChain.Parse).
+	static AlgorithmFactory Find(String name) {
+		int at = name.indexOf('@');
+		if (at >= 0) {
+			AlgorithmFactory algorithm = Find(name.substring(0, at));
+			Supplier<RawFilter> filter = FilterChain.Parse(name.substring(at + 1));
+			if (algorithm == null || filter == null) return null;
+			return () -> new FilteredAlgorithm(algorithm.create(), filter.get());
+		}
+		for (Map.Entry<String, AlgorithmFactory> entry : algorithms.entrySet()) {
+			if (entry.getKey().equalsIgnoreCase(name)) {
+				return entry.getValue();
+			}
+		}
+		try {
+			final Class<? extends BgAlgorithm> algorithmClass = Class.forName(name).asSubclass(BgAlgorithm.class);
+			final Constructor<? extends BgAlgorithm> constructor = algorithmClass.getDeclaredConstructor();
+			constructor.setAccessible(true);
+			return () -> {
+				try {
+					return constructor.newInstance();
+				} catch (Exception e) {
+					throw new RuntimeException("Can not create " + name, e);
+				}
+			};
+		} catch (ClassNotFoundException | ClassCastException | NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	static Set<String> Names() {
+		return algorithms.keySet();
+	}
+}
+
+// Accuracy of one algorithm at the calibrations, added up while the sensors are replayed. It only keeps sums
+// and counts (MARD and MAD by sensor day, by bg range and by time from the last calibration, the zones of the
+// Clarke and Parkes error grids, the bias and a histogram of the relative errors for percentiles), so it takes
+// the same memory for one calibration or millions, and the metrics of sensors, threads or dbs are merged by
+// adding them up.
+class AccuracyMetrics {
+
+	static final int DAYS = 15; // day 15 and later are counted together
+	static final double[] RANGE_LIMITS = { 70, 180, 250 };
+	static final String[] RANGES = { "<70", "70-180", "180-250", ">250" };
+	static final double[] HOURS_LIMITS = { 1, 2, 4, 8, 12, 24 };
+	static final String[] HOURS = { "<1h", "1-2h", "2-4h", "4-8h", "8-12h", "12-24h", ">24h" };
+	static final String ZONES = "ABCDE";
+	// Relative errors are counted in buckets of half a percent, up to 200%
+	static final double ERROR_BUCKET = 0.005;
+	static final int ERROR_BUCKETS = 400;
+
+	// Sums of the errors of a group of points.
+	static class Errors {
+		void add(double reference, double estimate) {
+			count++;
+			absolute += Math.abs(estimate - reference);
+			relative += Math.abs(estimate - reference) / reference;
+			signed += estimate - reference;
+		}
+
+		void add(Errors other) {
+			count += other.count;
+			absolute += other.absolute;
+			relative += other.relative;
+			signed += other.signed;
+		}
+
+		double mard() {
+			return relative / count;
+		}
+
+		double mad() {
+			return absolute / count;
+		}
+
+		double bias() {
+			return signed / count;
+		}
+
+		void write(ByteBuffer out) {
+			out.putLong(count).putDouble(absolute).putDouble(relative).putDouble(signed);
+		}
+
+		void read(ByteBuffer in) {
+			count = in.getLong();
+			absolute = in.getDouble();
+			relative = in.getDouble();
+			signed = in.getDouble();
+		}
+
+		long count;
+		double absolute;
+		double relative;
+		double signed;
+	}
+
+	AccuracyMetrics() {
+		byDay = NewErrors(DAYS);
+		byRange = NewErrors(RANGES.length);
+		byHours = NewErrors(HOURS.length);
+	}
+
+	static AccuracyMetrics[] Create(int size) {
+		AccuracyMetrics[] metrics = new AccuracyMetrics[size];
+		for (int i = 0; i < size; i++) {
+			metrics[i] = new AccuracyMetrics();
+		}
+		return metrics;
+	}
+
+	private static Errors[] NewErrors(int size) {
+		Errors[] errors = new Errors[size];
+		for (int i = 0; i < size; i++) {
+			errors[i] = new Errors();
+		}
+		return errors;
+	}
+
+	// One calibration that the algorithm calculated estimate for. lastCalibration is the time of the
+	// calibration before it that the algorithm got.
+	void add(double reference, double estimate, long timestamp, long sensorStart, long lastCalibration) {
+		if (Double.isNaN(estimate) || Double.isInfinite(estimate) || reference <= 0) {
+			missing++;
+			return;
+		}
+		all.add(reference, estimate);
+		byDay[Math.min(DAYS - 1, (int)Math.max(0, (timestamp - sensorStart) / 86400000))].add(reference, estimate);
+		byRange[Bucket(RANGE_LIMITS, reference)].add(reference, estimate);
+		byHours[Bucket(HOURS_LIMITS, (timestamp - lastCalibration) / 3600000.0)].add(reference, estimate);
+		clarke[ZONES.indexOf(ClarkeZone(reference, estimate))]++;
+		parkes[ZONES.indexOf(ParkesZone(reference, estimate))]++;
+		relativeErrors[Math.min(ERROR_BUCKETS, (int)(Math.abs(estimate - reference) / reference / ERROR_BUCKET))]++;
+	}
+
+	void add(AccuracyMetrics other) {
+		all.add(other.all);
+		for (int i = 0; i < byDay.length; i++) byDay[i].add(other.byDay[i]);
+		for (int i = 0; i < byRange.length; i++) byRange[i].add(other.byRange[i]);
+		for (int i = 0; i < byHours.length; i++) byHours[i].add(other.byHours[i]);
+		for (int i = 0; i < clarke.length; i++) clarke[i] += other.clarke[i];
+		for (int i = 0; i < parkes.length; i++) parkes[i] += other.parkes[i];
+		for (int i = 0; i < relativeErrors.length; i++) relativeErrors[i] += other.relativeErrors[i];
+		missing += other.missing;
+	}
+
+	// For the ResultCache, everything that add(other) adds up, in BYTES bytes.
+	static final int BYTES = 32 * (1 + DAYS + RANGES.length + HOURS.length) + 8 * (2 * ZONES.length() + ERROR_BUCKETS + 1) + 8;
+
+	void write(ByteBuffer out) {
+		all.write(out);
+		for (Errors[] group : new Errors[][] { byDay, byRange, byHours }) {
+			for (Errors errors : group) errors.write(out);
+		}
+		for (long[] counts : new long[][] { clarke, parkes, relativeErrors }) {
+			for (long count : counts) out.putLong(count);
+		}
+		out.putLong(missing);
+	}
+
+	static AccuracyMetrics Read(ByteBuffer in) {
+		AccuracyMetrics metrics = new AccuracyMetrics();
+		metrics.all.read(in);
+		for (Errors[] group : new Errors[][] { metrics.byDay, metrics.byRange, metrics.byHours }) {
+			for (Errors errors : group) errors.read(in);
+		}
+		for (long[] counts : new long[][] { metrics.clarke, metrics.parkes, metrics.relativeErrors }) {
+			for (int i = 0; i < counts.length; i++) counts[i] = in.getLong();
+		}
+		metrics.missing = in.getLong();
+		return metrics;
+	}
+
+	// The relative error that the given fraction of the points are under, to half a percent.
+	double percentile(double fraction) {
+		long target = Math.max(1, (long)Math.ceil(fraction * all.count));
+		long seen = 0;
+		for (int i = 0; i < relativeErrors.length; i++) {
+			seen += relativeErrors[i];
+			if (seen >= target) {
+				return (i + 0.5) * ERROR_BUCKET;
+			}
+		}
+		return Double.NaN;
+	}
+
+	static int Bucket(double[] limits, double value) {
+		int bucket = 0;
+		while (bucket < limits.length && value >= limits[bucket]) {
+			bucket++;
+		}
+		return bucket;
+	}
+
+	// Clarke et al. 1987, both values in mg/dl.
+	static char ClarkeZone(double reference, double estimate) {
+		if ((reference <= 70 && estimate <= 70) || (estimate <= 1.2 * reference && estimate >= 0.8 * reference)) return 'A';
+		if ((reference >= 180 && estimate <= 70) || (reference <= 70 && estimate >= 180)) return 'E';
+		if ((reference >= 70 && reference <= 290 && estimate >= reference + 110) ||
+			(reference >= 130 && reference <= 180 && estimate <= 7.0 / 5 * reference - 182)) return 'C';
+		if ((reference >= 240 && estimate >= 70 && estimate <= 180) || (reference <= 175.0 / 3 && estimate >= 70 && estimate <= 180) ||
+			(reference >= 175.0 / 3 && reference <= 70 && estimate >= 6.0 / 5 * reference)) return 'D';
+		return 'B';
+	}
+
+	// The lines between the zones of the Parkes (consensus) error grid for type 1 diabetes, as (reference, estimate)
+	// points. A point is in the first zone that it is between the upper and lower lines of. There is no lower
+	// line for D, so E is only above.
+	private static final double[][][] PARKES_UPPER = {
+		{ { 0, 30, 140, 280, 430 }, { 50, 50, 170, 380, 550 } },
+		{ { 0, 30, 50, 70, 260 }, { 60, 60, 80, 110, 550 } },
+		{ { 0, 25, 50, 80, 125 }, { 100, 100, 125, 215, 550 } },
+		{ { 0, 35, 50 }, { 150, 155, 550 } },
+	};
+	private static final double[][][] PARKES_LOWER = {
+		{ { 50, 50, 170, 385, 550 }, { 0, 30, 145, 300, 450 } },
+		{ { 120, 120, 260, 550 }, { 0, 30, 130, 250 } },
+		{ { 250, 250, 550 }, { 0, 40, 150 } },
+		null,
+	};
+
+	static char ParkesZone(double reference, double estimate) {
+		for (int zone = 0; zone < PARKES_UPPER.length; zone++) {
+			double[][] upper = PARKES_UPPER[zone];
+			double[][] lower = PARKES_LOWER[zone];
+			if (estimate > Line(upper[0], upper[1], reference)) continue;
+			if (lower != null && reference >= lower[0][0] && estimate < Line(lower[0], lower[1], reference)) continue;
+			return ZONES.charAt(zone);
+		}
+		return 'E';
+	}
+
+	// The value of the line through the points at x, the last part is extended past the last point.
+	private static double Line(double[] xs, double[] ys, double x) {
+		int i = 1;
+		while (i < xs.length - 1 && (x > xs[i] || xs[i] == xs[i - 1])) {
+			i++;
+		}
+		return ys[i - 1] + (ys[i] - ys[i - 1]) * (x - xs[i - 1]) / (xs[i] - xs[i - 1]);
+	}
+
+	// Prints the accuracy of all the algorithms, one line each, and then the MARD of every group of points.
+	static void Print(String[] names, AccuracyMetrics[] metrics, PrintStream out) {
+		out.println("\n*** Accuracy over all the calibrations together (the averages above are of the sensors)");
+		out.println(String.format("%-25s %7s %8s %7s %7s %7s %7s %7s  %-25s %-25s", "algorithm", "points", "MARD", "MAD", "bias",
+								  "ARD p50", "p90", "p99", "Clarke A/B/C/D/E %", "Parkes A/B/C/D/E %"));
+		for (int a = 0; a < names.length; a++) {
+			AccuracyMetrics m = metrics[a];
+			out.println(String.format("%-25s %7d %8.5f %7.2f %7.2f %7.3f %7.3f %7.3f  %-25s %-25s", Shorten(names[a]), m.all.count, m.all.mard(),
+									  m.all.mad(), m.all.bias(), m.percentile(0.5), m.percentile(0.9), m.percentile(0.99),
+									  Percents(m.clarke, m.all.count), Percents(m.parkes, m.all.count)));
+		}
+		String[] days = new String[DAYS];
+		for (int d = 0; d < DAYS; d++) {
+			days[d] = d == DAYS - 1 ? ">=" + (d + 1) : String.valueOf(d + 1);
+		}
+		PrintGroups("MARD by sensor day", days, names, metrics, m -> m.byDay, out);
+		PrintGroups("MARD by bg range", RANGES, names, metrics, m -> m.byRange, out);
+		PrintGroups("MARD by time from the last calibration", HOURS, names, metrics, m -> m.byHours, out);
+	}
+
+	private static void PrintGroups(String title, String[] groups, String[] names, AccuracyMetrics[] metrics,
+									Function<AccuracyMetrics, Errors[]> errors, PrintStream out) {
+		out.println("\n*** " + title);
+		StringBuilder line = new StringBuilder(String.format("%-25s", ""));
+		for (String group : groups) {
+			line.append(String.format(" %7s", group));
+		}
+		out.println(line);
+		line = new StringBuilder(String.format("%-25s", "points"));
+		for (Errors group : errors.apply(metrics[0])) {
+			line.append(String.format(" %7d", group.count));
+		}
+		out.println(line);
+		for (int a = 0; a < names.length; a++) {
+			line = new StringBuilder(String.format("%-25s", Shorten(names[a])));
+			for (Errors group : errors.apply(metrics[a])) {
+				line.append(group.count == 0 ? String.format(" %7s", "-") : String.format(" %7.4f", group.mard()));
+			}
+			out.println(line);
+		}
+	}
+
+	private static String Percents(long[] zones, long count) {
+		StringBuilder percents = new StringBuilder();
+		for (long zone : zones) {
+			if (percents.length() > 0) percents.append('/');
+			percents.append(String.format("%.1f", 100.0 * zone / Math.max(1, count)));
+		}
+		return percents.toString();
+	}
+
+	private static String Shorten(String name) {
+		return name.length() > 25 ? name.substring(0, 25) : name;
+	}
+
+	final Errors all = new Errors();
+	final Errors[] byDay;
+	final Errors[] byRange;
+	final Errors[] byHours;
+	final long[] clarke = new long[ZONES.length()];
+	final long[] parkes = new long[ZONES.length()];
+	final long[] relativeErrors = new long[ERROR_BUCKETS + 1];
+	// Calibrations that the algorithm had no bg for
+	long missing;
+}
+
+
+// Watches the raw readings and calibrations of a sensor as they come and flags the times when the sensor looks
+// bad (Mission.txt item 5): too noisy, changing faster than bg can, readings missing, or calibrations that do
+// not agree with the ones before them. It only keeps fixed windows of the last readings and calibrations and
+// only looks back, so a reading costs a few additions and it can run as the readings come in. With --quality
+// the checker leaves the calibrations in flagged segments out of the errors and reports the segments.
+class SensorQuality {
+
+	// Readings in the rolling windows (an hour)
+	static final int WINDOW = 12;
+	// Noise of a reading, as a part of the raw level
+	static final double MAX_NOISE = 0.1;
+	// Change in a minute, as a part of the raw level
+	static final double MAX_RATE = 0.05;
+	// A longer gap flags the sensor until the windows are full again
+	static final long MAX_GAP = 30 * 60000;
+	// bg/raw of a calibration, as a part of the median of the last ones
+	static final double MAX_DRIFT = 0.35;
+	// Calibrations in that median
+	static final int CALIBRATIONS = 5;
+	// Readings that stay flagged after the last problem
+	static final int HOLD = 6;
+
+	static final int NOISE = 1;
+	static final int RATE = 2;
+	static final int GAP = 4;
+	static final int DRIFT = 8;
+	static final String[] REASONS = { "noise", "rate", "gap", "drift" };
+
+	// A time that the sensor was flagged, with the reasons.
+	static class Segment {
+		Segment(long start) {
+			this.start = start;
+			this.end = start;
+		}
+
+		public String toString() {
+			SimpleDateFormat dateFormat = new SimpleDateFormat("dd-MM-yyyy HH:mm");
+			return dateFormat.format(start) + " to " + dateFormat.format(end) + " (" + Reasons(reasons) + ")";
+		}
+
+		final long start;
+		long end;
+		int reasons;
+	}
+
+	SensorQuality() {
+		levels = new double[WINDOW];
+		secondDifferences = new double[WINDOW];
+		ratios = new double[CALIBRATIONS];
+		sorted = new double[CALIBRATIONS];
+	}
+
+	// The raw readings, in time order.
+	void onRawReading(long timestamp, double raw_value) {
+		int reasons = 0;
+		if (readings > 0 && timestamp - lastTimestamp > MAX_GAP) {
+			gaps++;
+			missingMillis += timestamp - lastTimestamp;
+			// What came before the gap does not tell about what comes after it, the windows fill again
+			count = 0;
+			level = 0;
+			sum = 0;
+			sumOfSquares = 0;
+			reasons |= GAP;
+			holdLeft = Math.max(holdLeft, WINDOW);
+		}
+		if (count > 0 && level / Math.min(count, WINDOW) > 0) {
+			double mean = level / Math.min(count, WINDOW);
+			double minutes = Math.max(1, (timestamp - lastTimestamp) / 60000.0);
+			double firstDifference = (raw_value - lastRaw) / minutes;
+			if (Math.abs(firstDifference) > MAX_RATE * mean) {
+				reasons |= RATE;
+			}
+			if (count > 1) {
+				// White noise of variance v gives second differences of variance 6v
+				add(raw_value - 2 * lastRaw + beforeLastRaw);
+				int n = Math.min(count - 1, WINDOW);
+				if (n >= WINDOW / 2) {
+					double variance = (sumOfSquares - sum * sum / n) / (n - 1);
+					if (Math.sqrt(Math.max(0, variance) / 6) > MAX_NOISE * mean) {
+						reasons |= NOISE;
+					}
+				}
+			}
+		}
+		if (count >= WINDOW) {
+			level -= levels[count % WINDOW];
+		}
+		levels[count % WINDOW] = raw_value;
+		level += raw_value;
+		count++;
+
+		if (drifting) reasons |= DRIFT;
+		if (reasons != 0) {
+			holdLeft = Math.max(holdLeft, HOLD);
+		}
+		boolean flag = reasons != 0 || holdLeft > 0;
+		if (reasons == 0 && holdLeft > 0) holdLeft--;
+		if (flag) {
+			if (segment == null) {
+				segment = new Segment(timestamp);
+				segments.add(segment);
+			} else {
+				flaggedMillis += timestamp - lastTimestamp;
+			}
+			segment.end = timestamp;
+			segment.reasons |= reasons;
+			for (int r = 0; r < REASONS.length; r++) {
+				if ((reasons & (1 << r)) != 0) reasonCounts[r]++;
+			}
+		} else {
+			segment = null;
+		}
+		flagged = flag;
+		beforeLastRaw = lastRaw;
+		lastRaw = raw_value;
+		lastTimestamp = timestamp;
+		readings++;
+	}
+
+	private void add(double secondDifference) {
+		int n = count - 2;
+		if (n >= WINDOW) {
+			double old = secondDifferences[n % WINDOW];
+			sum -= old;
+			sumOfSquares -= old * old;
+		}
+		secondDifferences[n % WINDOW] = secondDifference;
+		sum += secondDifference;
+		sumOfSquares += secondDifference * secondDifference;
+	}
+
+	// A calibration and the raw reading that it was matched with. A calibration whose bg/raw is further than
+	// MAX_DRIFT from the median of the last ones flags the sensor until a calibration agrees again.
+	void onCalibration(long timestamp, double measured_bg, double raw_value) {
+		if (raw_value <= 0) return;
+		double ratio = measured_bg / raw_value;
+		int n = Math.min(numRatios, CALIBRATIONS);
+		if (n >= 2) {
+			for (int i = 0; i < n; i++) {
+				double value = ratios[i];
+				int j = i;
+				while (j > 0 && sorted[j - 1] > value) {
+					sorted[j] = sorted[j - 1];
+					j--;
+				}
+				sorted[j] = value;
+			}
+			double median = n % 2 == 1 ? sorted[n / 2] : (sorted[n / 2 - 1] + sorted[n / 2]) / 2;
+			drifting = Math.abs(ratio / median - 1) > MAX_DRIFT;
+			if (drifting) driftingCalibrations++;
+		}
+		ratios[numRatios % CALIBRATIONS] = ratio;
+		numRatios++;
+	}
+
+	// The sensor is bad now
+	boolean flagged() {
+		return flagged;
+	}
+
+	static String Reasons(int reasons) {
+		StringBuilder names = new StringBuilder();
+		for (int r = 0; r < REASONS.length; r++) {
+			if ((reasons & (1 << r)) == 0) continue;
+			if (names.length() > 0) names.append(',');
+			names.append(REASONS[r]);
+		}
+		return names.toString();
+	}
+
+	void print(PrintStream out) {
+		out.println("Sensor quality: " + segments.size() + " bad segments, " + String.format("%.1f", flaggedMillis / 3600000.0) +
+					" hours, " + excludedCalibrations + " calibrations not counted, " + gaps + " gaps of " +
+					String.format("%.1f", missingMillis / 3600000.0) + " hours");
+		for (Segment segment : segments) {
+			out.println("  bad from " + segment);
+		}
+	}
+
+	// The report
+	final List<Segment> segments = new ArrayList<Segment>();
+	final long[] reasonCounts = new long[REASONS.length];
+	long flaggedMillis;
+	long missingMillis;
+	int gaps;
+	int driftingCalibrations;
+	// Set by the checker
+	int excludedCalibrations;
+
+	// Rolling state
+	private final double[] levels;
+	private final double[] secondDifferences;
+	private final double[] ratios;
+	private final double[] sorted;
+	private int count;
+	private double level;
+	private double sum;
+	private double sumOfSquares;
+	private int numRatios;
+	private boolean drifting;
+	private boolean flagged;
+	private int holdLeft;
+	private Segment segment;
+	private long readings;
+	private long lastTimestamp;
+	private double lastRaw;
+	private double beforeLastRaw;
+}
+
+
+// The outcome of checking one sensor.
+class SensorResult {
+	SensorResult(Sensor sensor) {
+		this.sensor = sensor;
+	}
+
+	final Sensor sensor;
+	// The MARD of every algorithm that was checked, null if the sensor was ignored
+	double[] mard;
+	// The accuracy of every algorithm and then of xDrip as written in the db, if they were asked for
+	AccuracyMetrics[] metrics;
+	// The bad segments of the sensor, if they were asked for
+	SensorQuality quality;
+	// What the check printed, when it ran in the background.
+	String out = "";
+	String err = "";
+}
+
+// Timings of the phases of a run (loading, replaying a sensor, ...) and of every call to the algorithms and
+// the result sinks, with their latency histograms and the bytes the threads allocated in the phases.
+// It is off unless Enable() is called. When off, Begin() returns null after checking a boolean and nothing is
+// wrapped, so it can stay in for real runs. When on, AlgorithmChecker wraps the algorithms and the sinks of
+// every sensor with timing versions. Every thread records into its own timers, they are merged by Report().
+class Instrumentation {
+
+	static boolean enabled;
+	static String reportFile;
+
+	// Log linear buckets, 8 for every power of two, so a percentile is at most 12.5% too high.
+	static class Histogram {
+		static final int SUB_BUCKETS = 8;
+
+		void record(long nanos) {
+			counts[Index(nanos)]++;
+			count++;
+			max = Math.max(max, nanos);
+		}
+
+		void add(Histogram other) {
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] += other.counts[i];
+			}
+			count += other.count;
+			max = Math.max(max, other.max);
+		}
+
+		// The highest value of the bucket that holds the given fraction of the calls.
+		long percentile(double fraction) {
+			long target = Math.max(1, (long)Math.ceil(fraction * count));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= target) {
+					return Math.min(max, Highest(i));
+				}
+			}
+			return max;
+		}
+
+		static int Index(long nanos) {
+			if (nanos < SUB_BUCKETS) return (int)Math.max(0, nanos);
+			int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+			return SUB_BUCKETS + (exponent - 3) * SUB_BUCKETS + (int)(nanos >>> (exponent - 3)) - SUB_BUCKETS;
+		}
+
+		static long Highest(int index) {
+			if (index < SUB_BUCKETS) return index;
+			int exponent = (index - SUB_BUCKETS) / SUB_BUCKETS + 3;
+			long sub = SUB_BUCKETS + (index - SUB_BUCKETS) % SUB_BUCKETS;
+			return ((sub + 1) << (exponent - 3)) - 1;
+		}
+
+		final long[] counts = new long[64 * SUB_BUCKETS];
+		long count;
+		long max;
+	}
+
+	static class Timer {
+		Timer(String name, boolean phase) {
+			this.name = name;
+			this.phase = phase;
+		}
+
+		void record(long nanos) {
+			totalNanos += nanos;
+			histogram.record(nanos);
+		}
+
+		void add(Timer other) {
+			totalNanos += other.totalNanos;
+			allocatedBytes += other.allocatedBytes;
+			histogram.add(other.histogram);
+		}
+
+		final String name;
+		// Phases also count the allocated bytes, single calls are too short for that
+		final boolean phase;
+		long totalNanos;
+		long allocatedBytes;
+		final Histogram histogram = new Histogram();
+	}
+
+	// The timers of one thread.
+	static class Recorder {
+		Recorder(String thread) {
+			this.thread = thread;
+		}
+
+		Timer timer(String name, boolean phase) {
+			Timer timer = timers.get(name);
+			if (timer == null) {
+				timer = new Timer(name, phase);
+				timers.put(name, timer);
+			}
+			return timer;
+		}
+
+		final String thread;
+		final Map<String, Timer> timers = new LinkedHashMap<String, Timer>();
+		// Of the outermost phases only, the inner ones are part of them
+		long busyNanos;
+		long allocatedBytes;
+		int depth;
+	}
+
+	static class Phase {
+		Phase(Recorder recorder, Timer timer) {
+			this.recorder = recorder;
+			this.timer = timer;
+		}
+
+		final Recorder recorder;
+		final Timer timer;
+		boolean outermost;
+		long allocatedAtStart;
+		long start;
+	}
+
+	// Only loaded when something is measured, the management beans take a while to start.
+	static class Allocation {
+		static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+		static long CurrentThread() {
+			if (threads instanceof com.sun.management.ThreadMXBean) {
+				return ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+			return 0;
+		}
+	}
+
+	static void Enable(String reportFile) {
+		Instrumentation.reportFile = reportFile;
+		startNanos = System.nanoTime();
+		enabled = true;
+	}
+
+	// Returns null when disabled, End() ignores that.
+	static Phase Begin(String name) {
+		if (!enabled) return null;
+		Recorder recorder = recorders.get();
+		Phase phase = new Phase(recorder, recorder.timer(name, true));
+		phase.outermost = recorder.depth++ == 0;
+		phase.allocatedAtStart = Allocation.CurrentThread();
+		phase.start = System.nanoTime();
+		return phase;
+	}
+
+	static void End(Phase phase) {
+		if (phase == null) return;
+		long nanos = System.nanoTime() - phase.start;
+		long allocated = Allocation.CurrentThread() - phase.allocatedAtStart;
+		phase.timer.record(nanos);
+		phase.timer.allocatedBytes += allocated;
+		phase.recorder.depth--;
+		if (phase.outermost) {
+			phase.recorder.busyNanos += nanos;
+			phase.recorder.allocatedBytes += allocated;
+		}
+	}
+
+	// A timer of the current thread for calls that are timed one by one.
+	static Timer CallTimer(String name) {
+		return recorders.get().timer(name, false);
+	}
+
+	static StreamingBgAlgorithm Wrap(StreamingBgAlgorithm algorithm, String name) {
+		Timer start = CallTimer(name + ".startSensor");
+		Timer raw = CallTimer(name + ".onRawReading");
+		Timer readings = CallTimer(name + ".onRawReadings");
+		Timer calibration = CallTimer(name + ".onCalibration");
+		Timer skipped = CallTimer(name + ".onSkippedCalibration");
+		Timer calculate = CallTimer(name + ".calculateBG");
+		Timer snapshot = CallTimer(name + ".snapshot");
+		Timer restore = CallTimer(name + ".restore");
+		return new StreamingBgAlgorithm() {
+			public void startSensor(long started_at) {
+				long t = System.nanoTime();
+				algorithm.startSensor(started_at);
+				start.record(System.nanoTime() - t);
+			}
+
+			public void onRawReading(long timestamp, double raw_value) {
+				long t = System.nanoTime();
+				algorithm.onRawReading(timestamp, raw_value);
+				raw.record(System.nanoTime() - t);
+			}
+
+			// Forwarded as one call, so the algorithm runs the same code as without the instrumentation
+			public void onRawReadings(long[] timestamps, double[] raw_values, int from, int to, double[] bg) {
+				long t = System.nanoTime();
+				algorithm.onRawReadings(timestamps, raw_values, from, to, bg);
+				readings.record(System.nanoTime() - t);
+			}
+
+			public void onCalibration(Calibration calib) {
+				long t = System.nanoTime();
+				algorithm.onCalibration(calib);
+				calibration.record(System.nanoTime() - t);
+			}
+
+			public void onSkippedCalibration(Calibration calib) {
+				long t = System.nanoTime();
+				algorithm.onSkippedCalibration(calib);
+				skipped.record(System.nanoTime() - t);
+			}
+
+			public double calculateBG(long timestamp) {
+				long t = System.nanoTime();
+				double bg = algorithm.calculateBG(timestamp);
+				calculate.record(System.nanoTime() - t);
+				return bg;
+			}
+
+			public Object snapshot() {
+				long t = System.nanoTime();
+				Object state = algorithm.snapshot();
+				snapshot.record(System.nanoTime() - t);
+				return state;
+			}
+
+			public void restore(Object state) {
+				long t = System.nanoTime();
+				algorithm.restore(state);
+				restore.record(System.nanoTime() - t);
+			}
+		};
+	}
+
+	static SensorSink Wrap(SensorSink sink) {
+		Timer output = CallTimer("output");
+		return new SensorSink() {
+			public void onRawReading(long timestamp, double raw_value) {
+				long t = System.nanoTime();
+				sink.onRawReading(timestamp, raw_value);
+				output.record(System.nanoTime() - t);
+			}
+
+			public void onCalibration(long timestamp, double measured_bg) {
+				long t = System.nanoTime();
+				sink.onCalibration(timestamp, measured_bg);
+				output.record(System.nanoTime() - t);
+			}
+
+			public void onCalculated(int algorithm, long timestamp, double bg) {
+				long t = System.nanoTime();
+				sink.onCalculated(algorithm, timestamp, bg);
+				output.record(System.nanoTime() - t);
+			}
+
+			public void close() {
+				long t = System.nanoTime();
+				sink.close();
+				output.record(System.nanoTime() - t);
+			}
+		};
+	}
+
+	// Writes the timers of all the threads as JSON to reportFile ("-" for the standard output).
+	// Call it when the threads are done.
+	static void Report() {
+		if (!enabled) return;
+		Map<String, Timer> merged = new LinkedHashMap<String, Timer>();
+		StringBuilder threads = new StringBuilder();
+		synchronized (allRecorders) {
+			for (Recorder recorder : allRecorders) {
+				for (Timer timer : recorder.timers.values()) {
+					Timer total = merged.get(timer.name);
+					if (total == null) {
+						total = new Timer(timer.name, timer.phase);
+						merged.put(timer.name, total);
+					}
+					total.add(timer);
+				}
+				if (threads.length() > 0) threads.append(",\n");
+				threads.append(String.format(Locale.ROOT, "    {\"name\": %s, \"busyMillis\": %.3f, \"allocatedBytes\": %d}",
+											 Quote(recorder.thread), recorder.busyNanos / 1e6, recorder.allocatedBytes));
+			}
+		}
+		StringBuilder timers = new StringBuilder();
+		for (Timer timer : merged.values()) {
+			Histogram histogram = timer.histogram;
+			// Calls that were never made, like onRawReading when the readings are pushed in segments
+			if (histogram.count == 0) continue;
+			if (timers.length() > 0) timers.append(",\n");
+			timers.append(String.format(Locale.ROOT, "    {\"name\": %s, \"phase\": %b, \"calls\": %d, \"totalMillis\": %.3f, \"meanMicros\": %.3f, " +
+										"\"p50Micros\": %.3f, \"p99Micros\": %.3f, \"maxMicros\": %.3f",
+										Quote(timer.name), timer.phase, histogram.count, timer.totalNanos / 1e6, timer.totalNanos / 1e3 / Math.max(1, histogram.count),
+										histogram.percentile(0.5) / 1e3, histogram.percentile(0.99) / 1e3, histogram.max / 1e3));
+			if (timer.phase) {
+				timers.append(", \"allocatedBytes\": " + timer.allocatedBytes);
+			}
+			timers.append("}");
+		}
+		String json = String.format(Locale.ROOT, "{\n  \"wallMillis\": %.3f,\n  \"timers\": [\n%s\n  ],\n  \"threads\": [\n%s\n  ]\n}\n",
+									(System.nanoTime() - startNanos) / 1e6, timers, threads);
+		if (reportFile == null || reportFile.equals("-")) {
+			System.out.print(json);
+			return;
+		}
+		try (PrintWriter pw = new PrintWriter(new FileWriter(reportFile))) {
+			pw.print(json);
+			System.out.println("\n*** Instrumentation written to " + reportFile);
+		} catch (IOException e) {
+			System.err.println( e.getClass().getName() + ": " + e.getMessage() );
+		}
+	}
+
+	private static String Quote(String text) {
+		StringBuilder quoted = new StringBuilder("\"");
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c == '"' || c == '\\') {
+				quoted.append('\\').append(c);
+			} else if (c < ' ') {
+				quoted.append(String.format("\\u%04x", (int)c));
+			} else {
+				quoted.append(c);
+			}
+		}
+		return quoted.append('"').toString();
+	}
+
+	private static long startNanos;
+	private static final List<Recorder> allRecorders = new ArrayList<Recorder>();
+	private static final ThreadLocal<Recorder> recorders = ThreadLocal.withInitial(() -> {
+		Recorder recorder = new Recorder(Thread.currentThread().getName());
+		synchronized (allRecorders) {
+			allRecorders.add(recorder);
+		}
+		return recorder;
+	});
+}
+
+// Where the results of replaying the sensors go. Every checked sensor opens its own SensorSink, maybe on
+// several threads at once, and the replay writes into it as it goes, so nothing is kept in memory.
+// Several sinks can be attached to the checker together.
+interface ResultSink {
+	// Returns null if there is nothing to write for this sensor (or it could not be opened).
+	SensorSink open(SensorTrace trace, String[] names);
+
+	// Called once after all the sensors were checked.
+	default void finish(PrintStream out) {
+	}
+}
+
+// The results of one sensor, in the order of the replay. Writing does not throw, a sink that fails
+// reports it and ignores the rest.
+interface SensorSink {
+	void onRawReading(long timestamp, double raw_value);
+	void onCalibration(long timestamp, double measured_bg);
+	// Only for the readings that the algorithm was asked about
+	void onCalculated(int algorithm, long timestamp, double bg);
+	void close();
+}
+
+// One csv file of "time in days, value" lines for gnuplot. The numbers are formatted straight into a byte
+// buffer with a fixed number of decimals, that is much faster than string concatenation and Double.toString.
+class CsvFile {
+
+	static final int BUFFER_SIZE = 1 << 16;
+	private static final long[] POWERS_OF_TEN = { 1, 10, 100, 1000, 10000, 100000, 1000000 };
+
+	CsvFile(File file, boolean gzip, long sensorStart) {
+		this.file = file;
+		this.sensorStart = sensorStart;
+		try {
+			OutputStream stream = new FileOutputStream(file);
+			out = gzip ? new GZIPOutputStream(stream, BUFFER_SIZE) : stream;
+		} catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	void add(long timestamp, double value) {
+		if (out == null) return;
+		if (size > buffer.length - 64) {
+			flush();
+		}
+		// time in days.
+		append((double)(timestamp - sensorStart) / 60000 / 60 / 24, 6);
+		buffer[size++] = ',';
+		buffer[size++] = ' ';
+		append(value, 3);
+		buffer[size++] = '\n';
+	}
+
+	void close() {
+		if (out == null) return;
+		flush();
+		try {
+			out.close();
+		} catch (IOException e) {
+			failed(e);
+		}
+		out = null;
+	}
+
+	private void append(double value, int decimals) {
+		if (Double.isNaN(value) || Double.isInfinite(value) || Math.abs(value) >= 1e12) {
+			// Not worth a fast path
+			String text = Double.toString(value);
+			for (int i = 0; i < text.length(); i++) {
+				buffer[size++] = (byte)text.charAt(i);
+			}
+			return;
+		}
+		long scale = POWERS_OF_TEN[decimals];
+		long scaled = Math.round(Math.abs(value) * scale);
+		if (value < 0 && scaled != 0) {
+			buffer[size++] = '-';
+		}
+		appendDigits(scaled / scale, 1);
+		buffer[size++] = '.';
+		appendDigits(scaled % scale, decimals);
+	}
+
+	// Writes n (not negative) with at least the given number of digits.
+	private void appendDigits(long n, int digits) {
+		for (long p = POWERS_OF_TEN[digits]; p <= n && digits < 18; p *= 10) {
+			digits++;
+		}
+		for (int i = size + digits - 1; i >= size; i--) {
+			buffer[i] = (byte)('0' + n % 10);
+			n /= 10;
+		}
+		size += digits;
+	}
+
+	private void flush() {
+		try {
+			out.write(buffer, 0, size);
+		} catch (IOException e) {
+			failed(e);
+		}
+		size = 0;
+	}
+
+	private void failed(IOException e) {
+		System.err.println("Could not write " + file + " " + e.getClass().getName() + ": " + e.getMessage());
+		out = null;
+	}
+
+	private final File file;
+	private final long sensorStart;
+	private OutputStream out;
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private int size;
+}
+
+// Thins out one curve of a plot to about a fixed number of points, whatever the length of the sensor, while the
+// points come in. The time of the sensor is cut into buckets of the same length and only a few points of every
+// bucket are written. A calibration ends a segment: the points right before and after it are always written and
+// no bucket goes over it, so the jumps of the calculated bg at the calibrations stay where they are.
+abstract class Downsampler {
+
+	// points is the number of points to aim for over span milliseconds, lttb or minmax.
+	static Downsampler Create(String method, CsvFile out, long span, int points) {
+		if (method.equals("lttb")) return new Lttb(out, Math.max(1, span / points));
+		if (method.equals("minmax")) return new MinMax(out, Math.max(1, span * 2 / points));
+		throw new IllegalArgumentException("Unknown downsampling " + method + ", use lttb or minmax");
+	}
+
+	Downsampler(CsvFile out, long bucketWidth) {
+		this.out = out;
+		this.bucketWidth = bucketWidth;
+	}
+
+	void add(long timestamp, double value) {
+		if (!inSegment) {
+			// The first point of a segment is always written
+			inSegment = true;
+			segmentStart = timestamp;
+			write(timestamp, value);
+			return;
+		}
+		long bucket = (timestamp - segmentStart) / bucketWidth;
+		if (hasLast) {
+			addToBucket(lastTimestamp, lastValue);
+			if (bucket != lastBucket) endBucket();
+		}
+		// The last point is held back, it is written as it is if the segment ends with it
+		lastTimestamp = timestamp;
+		lastValue = value;
+		lastBucket = bucket;
+		hasLast = true;
+	}
+
+	void endSegment() {
+		if (hasLast) {
+			endSegment(lastTimestamp, lastValue);
+			write(lastTimestamp, lastValue);
+		}
+		inSegment = false;
+		hasLast = false;
+	}
+
+	void close() {
+		endSegment();
+		out.close();
+	}
+
+	// Adds a point to the current bucket (never the last point of the segment).
+	abstract void addToBucket(long timestamp, double value);
+
+	// The point that is added next is in another bucket.
+	abstract void endBucket();
+
+	// Writes what is left before the last point of the segment.
+	abstract void endSegment(long lastTimestamp, double lastValue);
+
+	void write(long timestamp, double value) {
+		out.add(timestamp, value);
+		writtenTimestamp = timestamp;
+		writtenValue = value;
+	}
+
+	// Largest triangle three buckets: one point of every bucket, the one that makes the largest triangle with the
+	// point written before it and the average of the next bucket. It keeps the peaks and the shape of the curve
+	// better than an average would. A bucket is written when the next one is complete, so two are kept.
+	static class Lttb extends Downsampler {
+
+		Lttb(CsvFile out, long bucketWidth) {
+			super(out, bucketWidth);
+		}
+
+		void addToBucket(long timestamp, double value) {
+			if (currentSize == currentTimestamps.length) {
+				currentTimestamps = Arrays.copyOf(currentTimestamps, currentSize * 2);
+				currentValues = Arrays.copyOf(currentValues, currentSize * 2);
+			}
+			currentTimestamps[currentSize] = timestamp;
+			currentValues[currentSize] = value;
+			currentSize++;
+		}
+
+		void endBucket() {
+			if (currentSize == 0) return;
+			if (previousSize > 0) {
+				writeLargest(average(currentTimestamps, currentSize), average(currentValues, currentSize));
+			}
+			long[] timestamps = previousTimestamps;
+			double[] values = previousValues;
+			previousTimestamps = currentTimestamps;
+			previousValues = currentValues;
+			previousSize = currentSize;
+			currentTimestamps = timestamps;
+			currentValues = values;
+			currentSize = 0;
+		}
+
+		void endSegment(long lastTimestamp, double lastValue) {
+			if (previousSize > 0) {
+				if (currentSize > 0) {
+					writeLargest(average(currentTimestamps, currentSize), average(currentValues, currentSize));
+				} else {
+					writeLargest(lastTimestamp, lastValue);
+				}
+			}
+			previousSize = 0;
+			endBucket();
+			if (previousSize > 0) {
+				writeLargest(lastTimestamp, lastValue);
+			}
+			previousSize = 0;
+		}
+
+		// Writes the point of the previous bucket with the largest triangle, the times are from the written point.
+		private void writeLargest(double nextTimestamp, double nextValue) {
+			double nextX = nextTimestamp - writtenTimestamp;
+			double nextY = nextValue - writtenValue;
+			int largest = 0;
+			double largestArea = -1;
+			for (int i = 0; i < previousSize; i++) {
+				double x = previousTimestamps[i] - writtenTimestamp;
+				double y = previousValues[i] - writtenValue;
+				// Twice the area, that is enough to compare them
+				double area = Math.abs(x * nextY - nextX * y);
+				if (area > largestArea) {
+					largestArea = area;
+					largest = i;
+				}
+			}
+			write(previousTimestamps[largest], previousValues[largest]);
+		}
+
+		private static double average(long[] values, int size) {
+			// From the first one, the times are too big to add up as doubles exactly
+			double sum = 0;
+			for (int i = 0; i < size; i++) {
+				sum += values[i] - values[0];
+			}
+			return values[0] + sum / size;
+		}
+
+		private static double average(double[] values, int size) {
+			double sum = 0;
+			for (int i = 0; i < size; i++) {
+				sum += values[i];
+			}
+			return sum / size;
+		}
+
+		private long[] previousTimestamps = new long[16];
+		private double[] previousValues = new double[16];
+		private int previousSize;
+		private long[] currentTimestamps = new long[16];
+		private double[] currentValues = new double[16];
+		private int currentSize;
+	}
+
+	// The lowest and the highest point of every bucket, in the order they came. Nothing but the bucket is kept,
+	// and no peak is ever lost, but noise makes the curve look wider than it is.
+	static class MinMax extends Downsampler {
+
+		MinMax(CsvFile out, long bucketWidth) {
+			super(out, bucketWidth);
+		}
+
+		void addToBucket(long timestamp, double value) {
+			if (!hasPoints) {
+				minTimestamp = maxTimestamp = timestamp;
+				minValue = maxValue = value;
+				hasPoints = true;
+				return;
+			}
+			if (value < minValue) {
+				minTimestamp = timestamp;
+				minValue = value;
+			}
+			if (value > maxValue) {
+				maxTimestamp = timestamp;
+				maxValue = value;
+			}
+		}
+
+		void endBucket() {
+			if (!hasPoints) return;
+			if (minTimestamp < maxTimestamp) {
+				write(minTimestamp, minValue);
+				write(maxTimestamp, maxValue);
+			} else if (minTimestamp > maxTimestamp) {
+				write(maxTimestamp, maxValue);
+				write(minTimestamp, minValue);
+			} else {
+				write(minTimestamp, minValue);
+			}
+			hasPoints = false;
+		}
+
+		void endSegment(long lastTimestamp, double lastValue) {
+			endBucket();
+		}
+
+		private boolean hasPoints;
+		private long minTimestamp;
+		private double minValue;
+		private long maxTimestamp;
+		private double maxValue;
+	}
+
+	final CsvFile out;
+	final long bucketWidth;
+	private boolean inSegment;
+	private long segmentStart;
+	private boolean hasLast;
+	private long lastTimestamp;
+	private double lastValue;
+	private long lastBucket;
+	long writtenTimestamp;
+	double writtenValue;
+}
+
+// The gnuplot files that plot_sensor.sh shows: sensorN_raw.csv, sensorN_calib.csv and sensorN_calc.csv,
+// or sensorN_<algorithm>_calc.csv for every algorithm when there are more than one. Times are in days
+// from the start of the sensor. With gzip the files are written compressed (.csv.gz). With plotPoints the raw
+// and calculated curves are thinned out to about that many points each (see Downsampler), the calibrations
+// are all written.
+class CsvSink implements ResultSink {
+
+	CsvSink(File directory, boolean gzip) {
+		this(directory, gzip, 0, "lttb");
+	}
+
+	CsvSink(File directory, boolean gzip, int plotPoints, String downsampling) {
+		this.directory = directory;
+		this.gzip = gzip;
+		this.plotPoints = plotPoints;
+		this.downsampling = downsampling;
+	}
+
+	public SensorSink open(SensorTrace trace, String[] names) {
+		String fileName = "sensor" + trace.sensor.id;
+		String suffix = gzip ? ".csv.gz" : ".csv";
+		long sensorStart = trace.sensor.started_at;
+		long span = trace.rawSize == 0 ? 0 : trace.timestamps[trace.rawSize - 1] - trace.timestamps[0];
+		CsvFile raw = new CsvFile(new File(directory, fileName + "_raw" + suffix), gzip, sensorStart);
+		CsvFile calib = new CsvFile(new File(directory, fileName + "_calib" + suffix), gzip, sensorStart);
+		CsvFile[] calc = new CsvFile[names.length];
+		for (int a = 0; a < names.length; a++) {
+			String calcName = names.length == 1 ? fileName : fileName + "_" + names[a].replaceAll("[^A-Za-z0-9._-]", "_");
+			calc[a] = new CsvFile(new File(directory, calcName + "_calc" + suffix), gzip, sensorStart);
+		}
+		if (plotPoints > 0 && span > 0) {
+			Downsampler rawPlot = Downsampler.Create(downsampling, raw, span, plotPoints);
+			Downsampler[] calcPlots = new Downsampler[names.length];
+			for (int a = 0; a < names.length; a++) {
+				calcPlots[a] = Downsampler.Create(downsampling, calc[a], span, plotPoints);
+			}
+			return new SensorSink() {
+				public void onRawReading(long timestamp, double raw_value) {
+					rawPlot.add(timestamp, raw_value);
+				}
+
+				public void onCalibration(long timestamp, double measured_bg) {
+					calib.add(timestamp, measured_bg);
+					rawPlot.endSegment();
+					for (Downsampler plot : calcPlots) {
+						plot.endSegment();
+					}
+				}
+
+				public void onCalculated(int algorithm, long timestamp, double bg) {
+					if (Double.isNaN(bg)) return;
+					calcPlots[algorithm].add(timestamp, bg);
+				}
+
+				public void close() {
+					rawPlot.close();
+					calib.close();
+					for (Downsampler plot : calcPlots) {
+						plot.close();
+					}
+				}
+			};
+		}
+		return new SensorSink() {
+			public void onRawReading(long timestamp, double raw_value) {
+				raw.add(timestamp, raw_value);
+			}
+
+			public void onCalibration(long timestamp, double measured_bg) {
+				calib.add(timestamp, measured_bg);
+			}
+
+			public void onCalculated(int algorithm, long timestamp, double bg) {
+				if (Double.isNaN(bg)) return;
+				calc[algorithm].add(timestamp, bg);
+			}
+
+			public void close() {
+				raw.close();
+				calib.close();
+				for (CsvFile file : calc) {
+					file.close();
+				}
+			}
+		};
+	}
+
+	final File directory;
+	final boolean gzip;
+	// 0 writes every point
+	final int plotPoints;
+	final String downsampling;
+}
+
+// A small file for every sensor (sensorN.bin) for tools that read the results back. It starts with the int
+// MAGIC, the sensor id, its start time as a long, the number of algorithms as a byte and their names (UTF),
+// then a record of 9 bytes per point: the type (0 raw reading, 1 calibration, 2 + a calculated bg of
+// algorithm a), the seconds from the start of the sensor as an int and the value as a float.
+// All of it big endian, as written by DataOutputStream.
+class BinarySink implements ResultSink {
+
+	static final int MAGIC = 0x42475231;
+	static final int RAW = 0;
+	static final int CALIBRATION = 1;
+	static final int CALCULATED = 2;
+
+	BinarySink(File directory) {
+		this.directory = directory;
+	}
+
+	public SensorSink open(SensorTrace trace, String[] names) {
+		File file = new File(directory, "sensor" + trace.sensor.id + ".bin");
+		long sensorStart = trace.sensor.started_at;
+		DataOutputStream out;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), CsvFile.BUFFER_SIZE));
+			out.writeInt(MAGIC);
+			out.writeInt(trace.sensor.id);
+			out.writeLong(sensorStart);
+			out.writeByte(names.length);
+			for (String name : names) {
+				out.writeUTF(name);
+			}
+		} catch (IOException e) {
+			System.err.println("Could not write " + file + " " + e.getClass().getName() + ": " + e.getMessage());
+			return null;
+		}
+		return new SensorSink() {
+			public void onRawReading(long timestamp, double raw_value) {
+				write(RAW, timestamp, raw_value);
+			}
+
+			public void onCalibration(long timestamp, double measured_bg) {
+				write(CALIBRATION, timestamp, measured_bg);
+			}
+
+			public void onCalculated(int algorithm, long timestamp, double bg) {
+				write(CALCULATED + algorithm, timestamp, bg);
+			}
+
+			private void write(int type, long timestamp, double value) {
+				if (failed) return;
+				try {
+					out.writeByte(type);
+					out.writeInt((int)((timestamp - sensorStart) / 1000));
+					out.writeFloat((float)value);
+				} catch (IOException e) {
+					System.err.println("Could not write " + file + " " + e.getClass().getName() + ": " + e.getMessage());
+					failed = true;
+				}
+			}
+
+			public void close() {
+				try {
+					out.close();
+				} catch (IOException e) {
+					System.err.println("Could not write " + file + " " + e.getClass().getName() + ": " + e.getMessage());
+				}
+			}
+
+			boolean failed;
+		};
+	}
+
+	final File directory;
+}
+
+// Writes no files, only sums up the calculated bg of every algorithm over all the sensors and prints it at the end.
+class StatsSink implements ResultSink {
+
+	static class Stats {
+		void add(double bg) {
+			if (Double.isNaN(bg)) return;
+			count++;
+			sum += bg;
+			sumSquares += bg * bg;
+			min = Math.min(min, bg);
+			max = Math.max(max, bg);
+			if (bg < 70) below++;
+			if (bg > 180) above++;
+		}
+
+		void add(Stats other) {
+			count += other.count;
+			sum += other.sum;
+			sumSquares += other.sumSquares;
+			min = Math.min(min, other.min);
+			max = Math.max(max, other.max);
+			below += other.below;
+			above += other.above;
+		}
+
+		long count;
+		double sum;
+		double sumSquares;
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		long below;
+		long above;
+	}
+
+	public SensorSink open(SensorTrace trace, String[] names) {
+		Stats[] sensorStats = new Stats[names.length];
+		for (int a = 0; a < names.length; a++) {
+			sensorStats[a] = new Stats();
+		}
+		return new SensorSink() {
+			public void onRawReading(long timestamp, double raw_value) {
+				readings++;
+			}
+
+			public void onCalibration(long timestamp, double measured_bg) {
+				calibrations++;
+			}
+
+			public void onCalculated(int algorithm, long timestamp, double bg) {
+				sensorStats[algorithm].add(bg);
+			}
+
+			public void close() {
+				synchronized (StatsSink.this) {
+					if (totals == null) {
+						StatsSink.this.names = names;
+						totals = new Stats[names.length];
+						for (int a = 0; a < names.length; a++) {
+							totals[a] = new Stats();
+						}
+					}
+					for (int a = 0; a < names.length; a++) {
+						totals[a].add(sensorStats[a]);
+					}
+					numSensors++;
+					totalReadings += readings;
+					totalCalibrations += calibrations;
+				}
+			}
+
+			long readings;
+			long calibrations;
+		};
+	}
+
+	public synchronized void finish(PrintStream out) {
+		out.println("\n*** Calculated bg of " + numSensors + " sensors, " + totalReadings + " readings and " + totalCalibrations + " calibrations");
+		if (totals == null) return;
+		out.println(String.format("%-25s %10s %8s %8s %8s %8s %8s %8s %8s", "algorithm", "points", "mean", "sd", "min", "max", "<70", "70-180", ">180"));
+		for (int a = 0; a < totals.length; a++) {
+			Stats stats = totals[a];
+			double mean = stats.sum / stats.count;
+			double sd = Math.sqrt(Math.max(0, stats.sumSquares / stats.count - mean * mean));
+			String name = names[a].length() > 25 ? names[a].substring(0, 25) : names[a];
+			out.println(String.format("%-25s %10d %8.1f %8.1f %8.1f %8.1f %7.1f%% %7.1f%% %7.1f%%", name, stats.count, mean, sd, stats.min, stats.max,
+									  100.0 * stats.below / stats.count, 100.0 * (stats.count - stats.below - stats.above) / stats.count, 100.0 * stats.above / stats.count));
+		}
+	}
+
+	private String[] names;
+	private Stats[] totals;
+	private int numSensors;
+	private long totalReadings;
+	private long totalCalibrations;
+}
+
+class AlgorithmChecker {
+
+	// Calibrations that have no raw reading this close to them are ignored.
+	long maxCalibrationDistance = RawData.MAX_DISTANCE;
+	// Do not print anything while checking sensors (used when checking many configurations).
+	boolean quiet;
+	// Collect AccuracyMetrics of every algorithm and print them at the end.
+	boolean metrics;
+	// Leave the calibrations in segments that SensorQuality flags out of the errors, and report the segments.
+	boolean quality;
+	// Where the results of every checked sensor are written, nothing unless sinks are added (the command line
+	// adds the gnuplot files).
+	List<ResultSink> sinks = new ArrayList<ResultSink>();
+	// Results of earlier runs, only the algorithms that are not in it are replayed (null for none).
+	ResultCache cache;
+
+	double checkAlgorithm(List<Sensor> sensors, List<RawData> rawBg, List<Calibration> calibrations, BgAlgorithm algorithm) {
+		Instrumentation.Phase phase = Instrumentation.Begin("split");
+		List<SensorTrace> traces = new ArrayList<SensorTrace>();
+		for (Sensor sensor: sensors) {
+			traces.add(SensorTrace.Build(sensor, rawBg, calibrations));
+		}
+		Instrumentation.End(phase);
+		return checkAlgorithm(traces, algorithm);
+	}
+
+	double checkAlgorithm(List<SensorTrace> traces, BgAlgorithm algorithm) {
+		return checkAlgorithm(traces, () -> algorithm, 1);
+	}
+
+	// Checks the sensors on the given number of threads. Every sensor gets its own algorithm from the factory,
+	// so they do not share any state. The output of every sensor is kept until it is done and printed in
+	// the order of the sensors, and the errors are summed in that order, so the result does not depend on
+	// the number of threads.
+	double checkAlgorithm(Iterable<SensorTrace> traces, AlgorithmFactory factory, int threads) {
+		AlgorithmFactory[] factories = { factory };
+		String[] names = { factory.create().toString() };
+		List<SensorResult> results = checkSensors(traces, factories, names, threads);
+		double averageError = averageErrors(results, names)[0];
+		printMetrics(results, names);
+		printQuality(results);
+		finish();
+		return averageError;
+	}
+
+	// Tournament mode, every sensor is replayed once and every reading is given to all the algorithms.
+	// Prints a table of the error of every algorithm on every sensor and returns the average errors.
+	double[] checkAlgorithms(Iterable<SensorTrace> traces, AlgorithmFactory[] factories, String[] names, int threads) {
+		List<SensorResult> results = checkSensors(traces, factories, names, threads);
+		double[] averageErrors = averageErrors(results, names);
+
+		System.out.println("\n*** MARD of every algorithm per sensor");
+		StringBuilder header = new StringBuilder(String.format("%-10s", "sensor"));
+		for (String name : names) {
+			header.append(String.format(" %20s", name.length() > 20 ? name.substring(0, 20) : name));
+		}
+		System.out.println(header);
+		for (SensorResult result : results) {
+			if (result.mard == null) continue;
+			StringBuilder line = new StringBuilder(String.format("%-10d", result.sensor.id));
+			for (double mard : result.mard) {
+				line.append(String.format(" %20.5f", mard));
+			}
+			System.out.println(line);
+		}
+		StringBuilder line = new StringBuilder(String.format("%-10s", "average"));
+		for (double averageError : averageErrors) {
+			line.append(String.format(" %20.5f", averageError));
+		}
+		System.out.println(line);
+		printMetrics(results, names);
+		printQuality(results);
+		finish();
+		return averageErrors;
+	}
+
+	private void printMetrics(List<SensorResult> results, String[] names) {
+		if (!metrics) return;
+		String[] allNames = Arrays.copyOf(names, names.length + 1);
+		allNames[names.length] = "xDrip (in the db)";
+		AccuracyMetrics[] total = AccuracyMetrics.Create(allNames.length);
+		for (SensorResult result : results) {
+			if (result.metrics == null || result.mard == null) continue;
+			for (int a = 0; a < total.length; a++) {
+				total[a].add(result.metrics[a]);
+			}
+		}
+		AccuracyMetrics.Print(allNames, total, System.out);
+	}
+
+	private void printQuality(List<SensorResult> results) {
+		if (!quality) return;
+		System.out.println("\n*** Sensor quality, the calibrations in bad segments are not in the errors");
+		System.out.println(String.format("%-10s %8s %8s %9s %11s  %s", "sensor", "segments", "hours", "bad hours", "not counted", "reasons"));
+		int segments = 0;
+		double hours = 0;
+		long badMillis = 0;
+		int excluded = 0;
+		for (SensorResult result : results) {
+			SensorQuality q = result.quality;
+			if (q == null) continue;
+			int reasons = 0;
+			for (SensorQuality.Segment segment : q.segments) {
+				reasons |= segment.reasons;
+			}
+			System.out.println(String.format("%-10d %8d %8.1f %9.1f %11d  %s", result.sensor.id, q.segments.size(), result.sensor.days * 24,
+											 q.flaggedMillis / 3600000.0, q.excludedCalibrations, SensorQuality.Reasons(reasons)));
+			segments += q.segments.size();
+			hours += result.sensor.days * 24;
+			badMillis += q.flaggedMillis;
+			excluded += q.excludedCalibrations;
+		}
+		System.out.println(String.format("%-10s %8d %8.1f %9.1f %11d", "total", segments, hours, badMillis / 3600000.0, excluded));
+	}
+
+	private void finish() {
+		for (ResultSink sink : sinks) {
+			sink.finish(System.out);
+		}
+		if (cache != null) cache.printStats(System.out);
+		Instrumentation.Report();
+	}
+
+	private double[] averageErrors(List<SensorResult> results, String[] names) {
+		double[] averageErrors = new double[names.length];
+		int numValidSensors = 0;
+		for (SensorResult result : results) {
+			if (result.mard == null) continue;
+			for (int a = 0; a < names.length; a++) {
+				averageErrors[a] += result.mard[a];
+			}
+			numValidSensors++;
+		}
+		for (int a = 0; a < names.length; a++) {
+			averageErrors[a] /= numValidSensors;
+			System.out.println("\n*** Average error for [" + names[a] + "] algorithm is " + averageErrors[a] );
+		}
+		return averageErrors;
+	}
+
+	// Checks all the sensors with all the algorithms and writes their results to the sinks. With one thread every
+	// algorithm is created once and restarted for every sensor, otherwise every sensor creates its own.
+	// The traces are only walked once and not kept, so they can be read while checking (see LazyExport).
+	List<SensorResult> checkSensors(Iterable<SensorTrace> traces, AlgorithmFactory[] factories, String[] names, int threads) {
+		List<SensorResult> results = new ArrayList<SensorResult>();
+		if (threads <= 1) {
+			BgAlgorithm[] algorithms = create(factories);
+			for (SensorTrace trace: traces) {
+				results.add(checkAndWrite(trace, algorithms, names, System.out, System.err));
+			}
+			return results;
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			// Only a few sensors per thread are submitted ahead of the one that is printed next, so the
+			// sensors that are waiting do not fill the memory
+			LinkedList<Future<SensorResult>> futures = new LinkedList<Future<SensorResult>>();
+			for (SensorTrace trace: traces) {
+				futures.add(pool.submit(() -> checkSensorBuffered(trace, create(factories), names)));
+				if (futures.size() >= 2 * threads) {
+					results.add(print(futures.removeFirst().get()));
+				}
+			}
+			while (!futures.isEmpty()) {
+				results.add(print(futures.removeFirst().get()));
+			}
+			return results;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private static SensorResult print(SensorResult result) {
+		System.out.print(result.out);
+		System.err.print(result.err);
+		result.out = null;
+		result.err = null;
+		return result;
+	}
+
+	private static BgAlgorithm[] create(AlgorithmFactory[] factories) {
+		BgAlgorithm[] algorithms = new BgAlgorithm[factories.length];
+		for (int a = 0; a < factories.length; a++) {
+			algorithms[a] = factories[a].create();
+		}
+		return algorithms;
+	}
+
+	// Checks one sensor and writes its results, the output is kept in the result instead of being printed.
+	SensorResult checkSensorBuffered(SensorTrace trace, BgAlgorithm[] algorithms, String[] names) {
+		ByteArrayOutputStream outBytes = new ByteArrayOutputStream();
+		ByteArrayOutputStream errBytes = new ByteArrayOutputStream();
+		PrintStream out = new PrintStream(outBytes);
+		PrintStream err = new PrintStream(errBytes);
+
+		SensorResult result = checkAndWrite(trace, algorithms, names, out, err);
+		out.flush();
+		err.flush();
+		result.out = outBytes.toString();
+		result.err = errBytes.toString();
+		return result;
+	}
+
+	private SensorResult checkAndWrite(SensorTrace trace, BgAlgorithm[] algorithms, String[] names, PrintStream out, PrintStream err) {
+		Instrumentation.Phase phase = Instrumentation.Begin("replay");
+		SensorResult result = new SensorResult(trace.sensor);
+		if (metrics) {
+			result.metrics = AccuracyMetrics.Create(algorithms.length + 1);
+		}
+		if (quality) {
+			result.quality = new SensorQuality();
+		}
+		if (cache == null || Ignored(trace)) {
+			result.mard = checkSensor(trace, algorithms, names, sinks, result.metrics, result.quality, out, err);
+		} else {
+			result.mard = checkCached(trace, algorithms, names, result.metrics, result.quality, out, err);
+		}
+		Instrumentation.End(phase);
+		return result;
+	}
+
+	// Like checkSensor, but the results of the algorithms that are in the cache are taken from it and only the
+	// others are replayed (and then added to the cache). The calculated bg is kept in the cache as well when
+	// there are sinks, and all of it is written to them at the end.
+	// With quality the sensor is always replayed, for the segments, but only with the algorithms that missed.
+	private double[] checkCached(SensorTrace trace, BgAlgorithm[] algorithms, String[] names, AccuracyMetrics[] metrics,
+								 SensorQuality quality, PrintStream out, PrintStream err) {
+		int numAlgorithms = algorithms.length;
+		boolean series = !sinks.isEmpty();
+		byte[] traceHash = ResultCache.Hash(trace, maxCalibrationDistance);
+		// The results without bad segments are other results
+		String qualityFingerprint = quality == null ? "" : "|quality " + ResultCache.CodeHash(SensorQuality.class);
+		// The last one is xDrip as written in the db, it only has metrics
+		String[] keys = new String[numAlgorithms + 1];
+		ResultCache.Entry[] entries = new ResultCache.Entry[numAlgorithms + 1];
+		List<Integer> misses = new ArrayList<Integer>();
+		for (int a = 0; a <= numAlgorithms; a++) {
+			if (a == numAlgorithms && metrics == null) break;
+			keys[a] = ResultCache.Key(traceHash, (a < numAlgorithms ? ResultCache.Fingerprint(algorithms[a]) : ResultCache.XdripFingerprint()) + qualityFingerprint);
+			entries[a] = cache.get(keys[a], series && a < numAlgorithms, metrics != null);
+			if (entries[a] == null && a < numAlgorithms) {
+				misses.add(a);
+			}
+		}
+
+		if (!misses.isEmpty() || (metrics != null && entries[numAlgorithms] == null) || quality != null) {
+			BgAlgorithm[] missed = new BgAlgorithm[misses.size()];
+			String[] missedNames = new String[misses.size()];
+			for (int m = 0; m < missed.length; m++) {
+				missed[m] = algorithms[misses.get(m)];
+				missedNames[m] = names[misses.get(m)];
+			}
+			SeriesSink capture = series ? new SeriesSink() : null;
+			AccuracyMetrics[] missedMetrics = metrics == null ? null : AccuracyMetrics.Create(missed.length + 1);
+			double[] mard = checkSensor(trace, missed, missedNames, series ? Collections.<ResultSink>singletonList(capture) : null,
+										missedMetrics, quality, out, err);
+			if (mard == null) {
+				// All of it was bad
+				return null;
+			}
+			for (int m = 0; m < missed.length; m++) {
+				int a = misses.get(m);
+				entries[a] = new ResultCache.Entry(mard[m], series ? capture.calculated[m] : null, metrics == null ? null : missedMetrics[m]);
+				cache.put(keys[a], entries[a]);
+			}
+			if (metrics != null && entries[numAlgorithms] == null) {
+				entries[numAlgorithms] = new ResultCache.Entry(Double.NaN, null, missedMetrics[missed.length]);
+				cache.put(keys[numAlgorithms], entries[numAlgorithms]);
+			}
+		} else if (!quiet) {
+			out.println("\n--- Checking sensor ---\n" + trace.sensor + "\nall the results are in the cache");
+		}
+
+		double[] mard = new double[numAlgorithms];
+		for (int a = 0; a < numAlgorithms; a++) {
+			mard[a] = entries[a].mard;
+			if (!quiet && !misses.contains(a)) out.println("Average MARD error for this sensor [" + names[a] + "] = " + mard[a] + " (cached)");
+		}
+		if (metrics != null) {
+			for (int a = 0; a <= numAlgorithms; a++) {
+				metrics[a].add(entries[a].metrics);
+			}
+		}
+		if (series) {
+			double[][] calculated = new double[numAlgorithms][];
+			for (int a = 0; a < numAlgorithms; a++) {
+				calculated[a] = entries[a].calculated;
+			}
+			SensorSink sink = open(sinks, trace, names);
+			if (Instrumentation.enabled && sink != null) {
+				sink = Instrumentation.Wrap(sink);
+			}
+			if (sink != null) {
+				try {
+					writeSeries(trace, calculated, sink);
+				} finally {
+					sink.close();
+				}
+			}
+		}
+		return mard;
+	}
+
+	// Writes the readings, the calibrations and the calculated bg to the sink in the same order as checkSensor does.
+	private void writeSeries(SensorTrace trace, double[][] calculated, SensorSink sink) {
+		long[] timestamps = trace.timestamps;
+		int rawIndex = 0;
+		for (int i = 0; i < trace.calibrationSize; i++) {
+			while (rawIndex < trace.rawSize && timestamps[rawIndex] <= trace.calib_timestamps[i]) {
+				sink.onRawReading(timestamps[rawIndex], trace.raw_values[rawIndex]);
+				for (int a = 0; a < calculated.length && Measured(i); a++) {
+					sink.onCalculated(a, timestamps[rawIndex], calculated[a][rawIndex]);
+				}
+				rawIndex++;
+			}
+			sink.onCalibration(trace.calib_timestamps[i], trace.measured_bg[i]);
+		}
+		while (rawIndex < trace.rawSize) {
+			sink.onRawReading(timestamps[rawIndex], trace.raw_values[rawIndex]);
+			for (int a = 0; a < calculated.length; a++) {
+				sink.onCalculated(a, timestamps[rawIndex], calculated[a][rawIndex]);
+			}
+			rawIndex++;
+		}
+	}
+
+	// Whether the algorithms are measured at calibration i (and the bg of the readings before it is calculated).
+	// The first two calibrations of a sensor start it and are not measured, even when one of them was skipped.
+	// The ScheduleSimulator measures the same way.
+	static boolean Measured(int i) {
+		return i >= 2;
+	}
+
+	// Sensors without enough data to check, checkSensor returns null for them.
+	static boolean Ignored(SensorTrace trace) {
+		return trace.calibrationSize < 2 || trace.rawSize < 10 || trace.sensor.days < 3;
+	}
+
+	// The average MARD of the algorithm over the sensors that are not ignored, nothing is written.
+	// Used for trying many configurations, so set quiet as well.
+	double score(List<SensorTrace> traces, BgAlgorithm algorithm) {
+		BgAlgorithm[] algorithms = { algorithm };
+		String[] names = { algorithm.toString() };
+		double totalError = 0;
+		int numValidSensors = 0;
+		for (SensorTrace trace : traces) {
+			double[] mard = checkSensor(trace, algorithms, names, null, null, null, System.out, System.err);
+			if (mard == null) continue;
+			totalError += mard[0];
+			numValidSensors++;
+		}
+		return totalError / numValidSensors;
+	}
+
+	double checkSensor(SensorTrace trace, BgAlgorithm algorithm, List<ResultSink> sinks) {
+		BgAlgorithm[] algorithms = { algorithm };
+		String[] names = { algorithm.toString() };
+		double[] mard = checkSensor(trace, algorithms, names, sinks, null, null, System.out, System.err);
+		return mard == null ? -1.0 : mard[0];
+	}
+	
+	// Replays one sensor through all the algorithms together, every reading is read once and pushed to all of them.
+	// The readings, calibrations and calculated bg are written to the sinks (null for none) while replaying.
+	// metrics (or null) gets the accuracy of every algorithm and then of xDrip as written in the db.
+	// quality (or null) gets every reading and calibration, the calibrations while it flags the sensor are not
+	// counted.
+	// Returns the MARD of every algorithm, or null if the sensor was ignored.
+	double[] checkSensor(SensorTrace trace, BgAlgorithm[] algorithms, String[] names, List<ResultSink> sinks,
+						 AccuracyMetrics[] metrics, SensorQuality quality, PrintStream out, PrintStream err) {
+		Sensor sensor = trace.sensor;
+		if (!quiet) out.println("\n--- Checking sensor ---\n" + sensor+ "\ncalibrations.size() = " + trace.calibrationSize);
+		
+		if (Ignored(trace)) {
+			if (!quiet) err.println("We are ignoring this sensor since we don't have enough data for it");
+			return null;
+		}
+		if (!quiet) out.println("rawBg.size() = " + trace.rawSize + "\nfirst raw is [" + trace.getRaw(0) + "]\nlast raw is  [" +trace.getRaw(trace.rawSize - 1)+"]");
+		int numAlgorithms = algorithms.length;
+		double[] error = new double[numAlgorithms];
+		double xdripError = 0;
+		
+		int numberOfCalibrations = 0;
+		StreamingBgAlgorithm[] streaming = new StreamingBgAlgorithm[numAlgorithms];
+		for (int a = 0; a < numAlgorithms; a++) {
+			streaming[a] = StreamingAdapter.Wrap(algorithms[a]);
+			if (Instrumentation.enabled) {
+				streaming[a] = Instrumentation.Wrap(streaming[a], names[a]);
+			}
+			streaming[a].startSensor(sensor.started_at);
+		}
+		SensorSink sink = open(sinks, trace, names);
+		if (Instrumentation.enabled && sink != null) {
+			sink = Instrumentation.Wrap(sink);
+		}
+		
+		// The sink is closed even when an algorithm throws, so its files are not left open
+		try {
+			long[] timestamps = trace.timestamps;
+			// The bg of every reading, for the plots
+			double[][] calculated = sink == null ? null : new double[numAlgorithms][trace.rawSize];
+			int rawIndex = 0;
+			long lastCalibration = sensor.started_at;
+			for(int i = 0 ; i < trace.calibrationSize; i++) {
+				long timeStamp = trace.calib_timestamps[i];
+				double measuredBg = trace.measured_bg[i];
+
+				// add rawdata that occured before this calibration
+				int end = rawIndex;
+				while (end<trace.rawSize && timestamps[end] <= timeStamp) {
+					end++;
+				}
+				// only calculate if we already had 2 calibrations
+				pushReadings(trace, rawIndex, end, streaming, Measured(i) ? calculated : null, sink, quality);
+				rawIndex = end;
+				if (sink != null) sink.onCalibration(timeStamp, measuredBg);
+				// The last point before the calibration is the one that matches it
+				int rawBgTime = Math.max(rawIndex - 1, 0);
+				if (Math.abs(timestamps[rawBgTime] - timeStamp) > maxCalibrationDistance) {
+					// We did not find a close enough point, so we simply ignore this calibration
+					if (!quiet) {
+						err.println("Skiping point because distance is " + (timestamps[rawBgTime] - timeStamp) / 60000 + " minutes");
+						err.println("We are ignoring this calibration since we did not find data to match it.");
+					}
+					Calibration skipped = trace.getCalibration(i);
+					for (int a = 0; a < numAlgorithms; a++) {
+						streaming[a].onSkippedCalibration(skipped);
+					}
+					continue;
+				}
+				// Skip error calculation for the first two calibrations, and while the sensor is bad
+				if (Measured(i) && quality != null && quality.flagged()) {
+					quality.excludedCalibrations++;
+				} else if (Measured(i)) {
+					for (int a = 0; a < numAlgorithms; a++) {
+						double calculatedBg = streaming[a].calculateBG(timeStamp);
+						error[a] += Math.abs(measuredBg - calculatedBg) / measuredBg;
+						if (metrics != null) metrics[a].add(measuredBg, calculatedBg, timeStamp, sensor.started_at, lastCalibration);
+					}
+					xdripError += trace.xdrip_dist[i] / measuredBg;
+					if (metrics != null) metrics[numAlgorithms].add(measuredBg, XdripEstimate(trace, i, rawBgTime), timeStamp, sensor.started_at, lastCalibration);
+					numberOfCalibrations++;
+				}
+				if (quality != null) quality.onCalibration(timeStamp, measuredBg, trace.raw_values[rawBgTime]);
+				// Provide data to algorithm in order to train or adjust paramaters
+				Calibration calibration = trace.getCalibration(i);
+				for (int a = 0; a < numAlgorithms; a++) {
+					streaming[a].onCalibration(calibration);
+				}
+				lastCalibration = timeStamp;
+			}
+
+			// add calculated bg until end of sensor
+			pushReadings(trace, rawIndex, trace.rawSize, streaming, calculated, sink, quality);
+		} finally {
+			if (sink != null) sink.close();
+		}
+
+		if (quality != null && !quiet) quality.print(out);
+		if (quality != null && numberOfCalibrations == 0 && quality.excludedCalibrations > 0) {
+			if (!quiet) err.println("We are ignoring this sensor since it was bad at all its calibrations");
+			return null;
+		}
+		double[] averageError = new double[numAlgorithms];
+		for (int a = 0; a < numAlgorithms; a++) {
+			averageError[a] = error[a] / numberOfCalibrations;
+		}
+		double averageErrorxdrip = xdripError / numberOfCalibrations;
+		
+		if (quiet) {
+			// nothing to print
+		} else if (numAlgorithms == 1) {
+			out.println("Average MARD error for this sensor = " + averageError[0] + "\nMARD for xDrip based on latest calculated bg = [" + averageErrorxdrip +"]");
+		} else {
+			for (int a = 0; a < numAlgorithms; a++) {
+				out.println("Average MARD error for this sensor [" + names[a] + "] = " + averageError[a]);
+			}
+			out.println("MARD for xDrip based on latest calculated bg = [" + averageErrorxdrip +"]");
+		}
+		return averageError;
+	}
+
+	// What xDrip showed at calibration i. The db only keeps how far that was from the calibration, without a sign,
+	// so the side is taken from the bg that the slope and intercept of the calibration before give for the raw
+	// reading that matches this one. The distance itself is kept as it is, so MARD and MAD are the ones in the db.
+	private static double XdripEstimate(SensorTrace trace, int i, int rawBgTime) {
+		double age_adjusted_raw_value = xDripAlgorithm.AgeAdjust(trace.raw_values[rawBgTime], trace.timestamps[rawBgTime] - trace.sensor.started_at, 1.9, .45);
+		double rebuilt = trace.xdrip_slope[i - 1] * age_adjusted_raw_value + trace.xdrip_intercept[i - 1];
+		double measuredBg = trace.measured_bg[i];
+		return rebuilt < measuredBg ? measuredBg - trace.xdrip_dist[i] : measuredBg + trace.xdrip_dist[i];
+	}
+
+	// Pushes the readings from to to - 1 to all the algorithms, one segment between calibrations at a time. The bg
+	// of every algorithm is calculated in calculated (null for none, then nothing is plotted) and written to the
+	// sink with the readings, in the same order as when they were calculated one reading at a time.
+	private static void pushReadings(SensorTrace trace, int from, int to, StreamingBgAlgorithm[] streaming, double[][] calculated,
+									 SensorSink sink, SensorQuality quality) {
+		long[] timestamps = trace.timestamps;
+		double[] raw_values = trace.raw_values;
+		for (int a = 0; a < streaming.length; a++) {
+			streaming[a].onRawReadings(timestamps, raw_values, from, to, calculated == null ? null : calculated[a]);
+		}
+		for (int r = from; r < to; r++) {
+			if (sink != null) sink.onRawReading(timestamps[r], raw_values[r]);
+			if (quality != null) quality.onRawReading(timestamps[r], raw_values[r]);
+			if (calculated == null) continue;
+			for (int a = 0; a < streaming.length; a++) {
+				sink.onCalculated(a, timestamps[r], calculated[a][r]);
+			}
+		}
+	}
+
+	// One sink that writes to all of the given ones.
+	private static SensorSink open(List<ResultSink> sinks, SensorTrace trace, String[] names) {
+		if (sinks == null) return null;
+		List<SensorSink> opened = new ArrayList<SensorSink>();
+		for (ResultSink sink : sinks) {
+			SensorSink sensorSink = sink.open(trace, names);
+			if (sensorSink != null) opened.add(sensorSink);
+		}
+		if (opened.isEmpty()) return null;
+		if (opened.size() == 1) return opened.get(0);
+		SensorSink[] all = opened.toArray(new SensorSink[0]);
+		return new SensorSink() {
+			public void onRawReading(long timestamp, double raw_value) {
+				for (SensorSink sink : all) sink.onRawReading(timestamp, raw_value);
+			}
+
+			public void onCalibration(long timestamp, double measured_bg) {
+				for (SensorSink sink : all) sink.onCalibration(timestamp, measured_bg);
+			}
+
+			public void onCalculated(int algorithm, long timestamp, double bg) {
+				for (SensorSink sink : all) sink.onCalculated(algorithm, timestamp, bg);
+			}
+
+			public void close() {
+				for (SensorSink sink : all) sink.close();
+			}
+		};
+	}
+}
+
+
+
+// Results of checking one sensor with one algorithm, kept on disk between runs (--cache dir). An entry is found by
+// a hash of everything that the result depends on: the readings and calibrations of the sensor, the settings of
+// the checker and the algorithm. The algorithm is its toString (the configuration) and the bytes of its class and
+// of all the classes of this program that it uses, so changing one algorithm only misses the results of that one.
+// When the cache grows over its size the least recently used entries are removed.
+class ResultCache {
+
+	static final int MAGIC = 0x42474331;
+	// Change when the results would be different for the same input
+	static final int VERSION = 1;
+
+	static class Entry {
+		Entry(double mard, double[] calculated, AccuracyMetrics metrics) {
+			this.mard = mard;
+			this.calculated = calculated;
+			this.metrics = metrics;
+		}
+
+		final double mard;
+		// The calculated bg of every raw reading, when there were sinks to write it to
+		final double[] calculated;
+		final AccuracyMetrics metrics;
+	}
+
+	ResultCache(File directory, long maxBytes) {
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		directory.mkdirs();
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				totalBytes += file.length();
+			}
+		}
+	}
+
+	// Returns null if the key is not in the cache, or if it was put without the calculated bg or the metrics
+	// and they are needed now.
+	Entry get(String key, boolean needCalculated, boolean needMetrics) {
+		File file = new File(directory, key);
+		if (!file.isFile()) {
+			count(false);
+			return null;
+		}
+		try {
+			ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+			if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+				throw new IOException("not a cache entry");
+			}
+			double mard = in.getDouble();
+			int size = in.getInt();
+			double[] calculated = null;
+			if (size >= 0) {
+				calculated = new double[size];
+				in.asDoubleBuffer().get(calculated);
+				in.position(in.position() + 8 * size);
+			}
+			AccuracyMetrics metrics = in.get() != 0 ? AccuracyMetrics.Read(in) : null;
+			if ((needCalculated && calculated == null) || (needMetrics && metrics == null)) {
+				count(false);
+				return null;
+			}
+			// For the least recently used order
+			file.setLastModified(System.currentTimeMillis());
+			count(true);
+			return new Entry(mard, calculated, metrics);
+		} catch (NoSuchFileException e) {
+			// Evicted by another thread
+			count(false);
+			return null;
+		} catch (IOException | RuntimeException e) {
+			System.err.println("Ignoring cache entry " + file + " " + e.getClass().getName() + ": " + e.getMessage());
+			count(false);
+			return null;
+		}
+	}
+
+	void put(String key, Entry entry) {
+		File file = new File(directory, key);
+		File temp = new File(directory, key + "." + Thread.currentThread().getId() + ".tmp");
+		int size = entry.calculated == null ? 0 : entry.calculated.length;
+		ByteBuffer out = ByteBuffer.allocate(21 + 8 * size + (entry.metrics == null ? 0 : AccuracyMetrics.BYTES));
+		out.putInt(MAGIC).putInt(VERSION).putDouble(entry.mard);
+		out.putInt(entry.calculated == null ? -1 : size);
+		if (entry.calculated != null) {
+			out.asDoubleBuffer().put(entry.calculated);
+			out.position(out.position() + 8 * size);
+		}
+		out.put((byte)(entry.metrics == null ? 0 : 1));
+		if (entry.metrics != null) {
+			entry.metrics.write(out);
+		}
+		try {
+			Files.write(temp.toPath(), out.array());
+			long replaced = file.length();
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			added(file.length() - replaced);
+		} catch (IOException e) {
+			System.err.println("Could not write cache entry " + file + " " + e.getClass().getName() + ": " + e.getMessage());
+			temp.delete();
+		}
+	}
+
+	private synchronized void count(boolean hit) {
+		if (hit) hits++; else misses++;
+	}
+
+	private synchronized void added(long bytes) {
+		totalBytes += bytes;
+		if (totalBytes <= maxBytes) return;
+		// Down to 90% so that this does not run again on the next entry. The times are read once, other
+		// threads touch the files while they are sorted.
+		File[] files = directory.listFiles((dir, name) -> !name.endsWith(".tmp"));
+		long[][] used = new long[files.length][];
+		for (int i = 0; i < files.length; i++) {
+			used[i] = new long[] { files[i].lastModified(), i };
+		}
+		Arrays.sort(used, (a, b) -> Long.compare(a[0], b[0]));
+		for (long[] file : used) {
+			if (totalBytes <= maxBytes / 10 * 9) break;
+			long length = files[(int)file[1]].length();
+			if (files[(int)file[1]].delete()) {
+				totalBytes -= length;
+				evicted++;
+			}
+		}
+	}
+
+	synchronized void printStats(PrintStream out) {
+		out.println("\n*** Result cache " + directory + ": " + hits + " hits, " + misses + " misses, " + evicted + " evicted, " +
+					totalBytes / 1024 + "KB used");
+	}
+
+	// The readings and calibrations of the sensor and the settings that the replay depends on.
+	static byte[] Hash(SensorTrace trace, long maxCalibrationDistance) {
+		MessageDigest digest = Digest();
+		ByteBuffer buffer = ByteBuffer.allocate(8 * 1024);
+		buffer.putLong(trace.sensor.started_at).putLong(trace.sensor.stopped_at).putLong(maxCalibrationDistance);
+		buffer.putInt(trace.rawSize).putInt(trace.calibrationSize);
+		for (int i = 0; i < trace.rawSize; i++) {
+			if (buffer.remaining() < 16) Flush(digest, buffer);
+			buffer.putLong(trace.timestamps[i]).putDouble(trace.raw_values[i]);
+		}
+		for (int i = 0; i < trace.calibrationSize; i++) {
+			if (buffer.remaining() < 48) Flush(digest, buffer);
+			buffer.putLong(trace.calib_timestamps[i]).putDouble(trace.measured_bg[i]).putDouble(trace.xdrip_dist[i]);
+			buffer.putDouble(trace.xdrip_slope[i]).putDouble(trace.xdrip_intercept[i]);
+		}
+		Flush(digest, buffer);
+		return digest.digest();
+	}
+
+	static String Key(byte[] traceHash, String fingerprint) {
+		MessageDigest digest = Digest();
+		digest.update(traceHash);
+		digest.update(fingerprint.getBytes(StandardCharsets.UTF_8));
+		char[] key = new char[64];
+		byte[] hash = digest.digest();
+		for (int i = 0; i < hash.length; i++) {
+			key[2 * i] = HEX[(hash[i] >> 4) & 15];
+			key[2 * i + 1] = HEX[hash[i] & 15];
+		}
+		return new String(key);
+	}
+
+	// Who the algorithm is: its class, its configuration and its code, and the code of the checker.
+	// The classes of what its final fields hold count as well, and of what their final fields hold, like the
+	// Optimizer of a LineFitAlgorithm inside a FilteredAlgorithm. (The other fields are the state of the
+	// sensor being checked, not the configuration.)
+	static String Fingerprint(BgAlgorithm algorithm) {
+		StringBuilder fingerprint = new StringBuilder();
+		fingerprint.append(VERSION).append('|').append(algorithm.getClass().getName()).append('|').append(algorithm);
+		AddCode(algorithm, fingerprint, Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>()));
+		fingerprint.append('|').append(CheckerCode());
+		return fingerprint.toString();
+	}
+
+	// The results of xDrip as written in the db, they only depend on the checker. It rebuilds xDrip's estimate
+	// with the age adjustment of xDripAlgorithm.
+	static String XdripFingerprint() {
+		return VERSION + "|xDrip in the db|" + CheckerCode() + "|" + CodeHash(xDripAlgorithm.class, false);
+	}
+
+	// The code that every result goes through: the checker itself and what it uses to replay a sensor and to
+	// measure the errors. Not everything that the checker uses (that is every algorithm and every sink), so
+	// changing one algorithm still only misses the results of that one.
+	static String CheckerCode() {
+		return CodeHash(AlgorithmChecker.class, false) + "|" + CodeHash(StreamingAdapter.class) + "|" +
+			CodeHash(AccuracyMetrics.class) + "|" + CodeHash(SensorTrace.class);
+	}
+
+	private static void AddCode(Object object, StringBuilder fingerprint, Set<Object> seen) {
+		if (!seen.add(object)) return;
+		fingerprint.append('|').append(CodeHash(object.getClass()));
+		for (Class<?> c = object.getClass(); c != null; c = c.getSuperclass()) {
+			for (Field field : c.getDeclaredFields()) {
+				int modifiers = field.getModifiers();
+				if (field.getType().isPrimitive() || Modifier.isStatic(modifiers) || !Modifier.isFinal(modifiers)) continue;
+				try {
+					field.setAccessible(true);
+					Object value = field.get(object);
+					if (value != null && value.getClass().getClassLoader() != null) {
+						AddCode(value, fingerprint, seen);
+					}
+				} catch (ReflectiveOperationException | RuntimeException e) {
+					fingerprint.append('|').append(field.getName());
+				}
+			}
+		}
+	}
+
+	static String CodeHash(Class<?> c) {
+		return CodeHash(c, true);
+	}
+
+	// A hash of the class file and, with uses, of every class file next to it that it uses, and that they use...
+	static String CodeHash(Class<?> c, boolean uses) {
+		String key = c.getName() + uses;
+		String hash = codeHashes.get(key);
+		if (hash != null) return hash;
+		ClassLoader loader = c.getClassLoader() != null ? c.getClassLoader() : ClassLoader.getSystemClassLoader();
+		String name = c.getName().replace('.', '/');
+		URL url = loader.getResource(name + ".class");
+		if (url == null) {
+			// Made at runtime, nothing to hash
+			hash = c.getName();
+		} else {
+			String base = url.toString().substring(0, url.toString().length() - (name + ".class").length());
+			MessageDigest digest = Digest();
+			Set<String> seen = new HashSet<String>();
+			List<String> pending = new ArrayList<String>();
+			pending.add(name);
+			seen.add(name);
+			try {
+				// In a fixed order, so the hash does not depend on the order the classes were found in
+				List<String> sorted = new ArrayList<String>();
+				while (!pending.isEmpty()) {
+					String next = pending.remove(pending.size() - 1);
+					sorted.add(next);
+					if (!uses) continue;
+					for (String used : UsedClasses(ReadAll(loader.getResource(next + ".class")))) {
+						URL usedUrl = loader.getResource(used + ".class");
+						if (usedUrl != null && usedUrl.toString().startsWith(base) && seen.add(used)) {
+							pending.add(used);
+						}
+					}
+				}
+				Collections.sort(sorted);
+				for (String next : sorted) {
+					digest.update(next.getBytes(StandardCharsets.UTF_8));
+					digest.update(ReadAll(loader.getResource(next + ".class")));
+				}
+				hash = new java.math.BigInteger(1, digest.digest()).toString(16);
+			} catch (IOException e) {
+				// Can not tell when it changed, so never match
+				hash = c.getName() + System.nanoTime();
+			}
+		}
+		codeHashes.put(key, hash);
+		return hash;
+	}
+
+	private static byte[] ReadAll(URL url) throws IOException {
+		try (InputStream in = url.openStream()) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) > 0) {
+				bytes.write(buffer, 0, read);
+			}
+			return bytes.toByteArray();
+		}
+	}
+
+	// The classes in the constant pool of a class file, as internal names (a/b/C).
+	static List<String> UsedClasses(byte[] classFile) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(classFile));
+		in.readInt(); // magic
+		in.readUnsignedShort(); // minor version
+		in.readUnsignedShort(); // major version
+		int count = in.readUnsignedShort();
+		String[] utf8 = new String[count];
+		int[] classNames = new int[count];
+		int numClasses = 0;
+		for (int i = 1; i < count; i++) {
+			int tag = in.readUnsignedByte();
+			switch (tag) {
+			case 1: utf8[i] = in.readUTF(); break;
+			case 7: classNames[numClasses++] = in.readUnsignedShort(); break;
+			case 8: case 16: case 19: case 20: in.skipBytes(2); break;
+			case 15: in.skipBytes(3); break;
+			case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18: in.skipBytes(4); break;
+			// These take two entries
+			case 5: case 6: in.skipBytes(8); i++; break;
+			default: throw new IOException("unknown constant pool tag " + tag);
+			}
+		}
+		List<String> classes = new ArrayList<String>();
+		for (int i = 0; i < numClasses; i++) {
+			String name = utf8[classNames[i]];
+			// Arrays are [LName; or [[I
+			if (name.startsWith("[")) {
+				int start = name.indexOf('L');
+				if (start < 0) continue;
+				name = name.substring(start + 1, name.length() - 1);
+			}
+			classes.add(name);
+		}
+		return classes;
+	}
+
+	private static MessageDigest Digest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static void Flush(MessageDigest digest, ByteBuffer buffer) {
+		digest.update(buffer.array(), 0, buffer.position());
+		buffer.clear();
+	}
+
+	final File directory;
+	final long maxBytes;
+	private long totalBytes;
+	private long hits;
+	private long misses;
+	private long evicted;
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	private static final Map<String, String> codeHashes = new ConcurrentHashMap<String, String>();
+}
+
+// Keeps the calculated bg of every algorithm for every raw reading of one sensor (NaN where it was not asked).
+class SeriesSink implements ResultSink {
+
+	public SensorSink open(SensorTrace trace, String[] names) {
+		calculated = new double[names.length][trace.rawSize];
+		for (double[] values : calculated) {
+			Arrays.fill(values, Double.NaN);
+		}
+		return new SensorSink() {
+			public void onRawReading(long timestamp, double raw_value) {
+				index++;
+			}
+
+			public void onCalibration(long timestamp, double measured_bg) {
+			}
+
+			public void onCalculated(int algorithm, long timestamp, double bg) {
+				calculated[algorithm][index - 1] = bg;
+			}
+
+			public void close() {
+			}
+
+			int index;
+		};
+	}
+
+	double[][] calculated;
+}
+
+
+// The range of values that one parameter is tried with, parsed from name=min:max[:steps] or name=value.
+class ParameterRange {
+
+	ParameterRange(String name, double min, double max, int steps) {
+		this.name = name;
+		this.min = min;
+		this.max = max;
+		this.steps = steps;
+	}
+
+	static ParameterRange Parse(String spec) {
+		int equals = spec.indexOf('=');
+		if (equals <= 0) {
+			throw new IllegalArgumentException("Parameter range should look like name=min:max[:steps], got " + spec);
+		}
+		String name = spec.substring(0, equals);
+		String[] parts = spec.substring(equals + 1).split(":");
+		double min = Double.parseDouble(parts[0]);
+		double max = parts.length > 1 ? Double.parseDouble(parts[1]) : min;
+		int steps = parts.length > 2 ? Integer.parseInt(parts[2]) : (min == max ? 1 : 5);
+		return new ParameterRange(name, min, max, steps);
+	}
+
+	// Value number k of the grid, the steps values go evenly from min to max.
+	double gridValue(int k) {
+		if (steps <= 1) {
+			return min;
+		}
+		return min + (max - min) * k / (steps - 1);
+	}
+
+	// Maps u from [0, 1) into the range.
+	double value(double u) {
+		return min + (max - min) * u;
+	}
+
+	public String toString() {
+		return name + "=" + min + ":" + max + ":" + steps;
+	}
+
+	final String name;
+	final double min;
+	final double max;
+	final int steps;
+}
+
+// Creates an algorithm from a vector of parameter values, for algorithms that can be tuned.
+class ParameterizedFactory {
+
+	ParameterizedFactory(String[] parameterNames, double[] defaultValues, Function<double[], BgAlgorithm> constructor) {
+		this(parameterNames, defaultValues, null, constructor);
+	}
+
+	// minimumValues are the lowest values that the parameters can have (null for any).
+	ParameterizedFactory(String[] parameterNames, double[] defaultValues, double[] minimumValues, Function<double[], BgAlgorithm> constructor) {
+		this.parameterNames = parameterNames;
+		this.defaultValues = defaultValues;
+		this.minimumValues = minimumValues;
+		this.constructor = constructor;
+	}
+
+	BgAlgorithm create(double[] values) {
+		return constructor.apply(values);
+	}
+
+	AlgorithmFactory factory(double[] values) {
+		double[] copy = values.clone();
+		return () -> create(copy);
+	}
+
+	// -1 if there is no such parameter
+	int indexOf(String name) {
+		for (int i = 0; i < parameterNames.length; i++) {
+			if (parameterNames[i].equalsIgnoreCase(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	// Throws if parameter index can not have the value, before anything is checked with it.
+	void check(int index, double value) {
+		if (minimumValues != null && !(value >= minimumValues[index])) {
+			throw new IllegalArgumentException(parameterNames[index] + " must be at least " + minimumValues[index] + ", got " + value);
+		}
+	}
+
+	final String[] parameterNames;
+	final double[] defaultValues;
+	final double[] minimumValues;
+	private final Function<double[], BgAlgorithm> constructor;
+}
+
+// How well one configuration did.
+class SweepResult {
+	SweepResult(double[] values, double mard) {
+		this.values = values;
+		this.mard = mard;
+	}
+
+	final double[] values;
+	final double mard;
+}
+
+// Tries many configurations of a tunable algorithm. The data is loaded once and shared by all the threads
+// (nobody writes to it), every configuration is checked on all the sensors by one thread.
+class ParameterSweep {
+
+	ParameterSweep(ParameterizedFactory factory, List<ParameterRange> ranges) {
+		this.factory = factory;
+		this.ranges = ranges;
+		indexes = new int[ranges.size()];
+		for (int r = 0; r < ranges.size(); r++) {
+			indexes[r] = factory.indexOf(ranges.get(r).name);
+			if (indexes[r] < 0) {
+				throw new IllegalArgumentException("Unknown parameter " + ranges.get(r).name + ", the parameters are " + Arrays.toString(factory.parameterNames));
+			}
+			factory.check(indexes[r], ranges.get(r).min);
+			factory.check(indexes[r], ranges.get(r).max);
+		}
+	}
+
+	// All the combinations of the grid values of the ranges.
+	List<double[]> grid() {
+		List<double[]> configurations = new ArrayList<double[]>();
+		int[] step = new int[ranges.size()];
+		while (true) {
+			double[] values = factory.defaultValues.clone();
+			for (int r = 0; r < ranges.size(); r++) {
+				values[indexes[r]] = ranges.get(r).gridValue(step[r]);
+			}
+			configurations.add(values);
+			// next combination, like counting with a different base for every digit
+			int r = 0;
+			while (r < ranges.size() && ++step[r] >= ranges.get(r).steps) {
+				step[r] = 0;
+				r++;
+			}
+			if (r == ranges.size()) {
+				return configurations;
+			}
+		}
+	}
+
+	// Uniformly random configurations.
+	List<double[]> random(int samples, Random random) {
+		List<double[]> configurations = new ArrayList<double[]>();
+		for (int i = 0; i < samples; i++) {
+			double[] values = factory.defaultValues.clone();
+			for (int r = 0; r < ranges.size(); r++) {
+				values[indexes[r]] = ranges.get(r).value(random.nextDouble());
+			}
+			configurations.add(values);
+		}
+		return configurations;
+	}
+
+	// Latin hypercube, every range is cut to samples strata and every stratum is used exactly once,
+	// so few samples still cover every parameter evenly.
+	List<double[]> latinHypercube(int samples, Random random) {
+		List<double[]> configurations = new ArrayList<double[]>();
+		for (int i = 0; i < samples; i++) {
+			configurations.add(factory.defaultValues.clone());
+		}
+		int[] strata = new int[samples];
+		for (int r = 0; r < ranges.size(); r++) {
+			for (int i = 0; i < samples; i++) {
+				strata[i] = i;
+			}
+			// Fisher-Yates shuffle
+			for (int i = samples - 1; i > 0; i--) {
+				int j = random.nextInt(i + 1);
+				int temp = strata[i];
+				strata[i] = strata[j];
+				strata[j] = temp;
+			}
+			for (int i = 0; i < samples; i++) {
+				double u = (strata[i] + random.nextDouble()) / samples;
+				configurations.get(i)[indexes[r]] = ranges.get(r).value(u);
+			}
+		}
+		return configurations;
+	}
+
+	// Checks all the configurations on the given number of threads. Every result is written to report
+	// as soon as it is ready, the returned list is sorted from the best (lowest MARD) to the worst.
+	List<SweepResult> run(List<SensorTrace> traces, List<double[]> configurations, int threads, PrintWriter report) {
+		AlgorithmChecker checker = new AlgorithmChecker();
+		checker.quiet = true;
+
+		report.println(String.join(", ", factory.parameterNames) + ", mard");
+		List<SweepResult> results = new ArrayList<SweepResult>();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			CompletionService<SweepResult> done = new ExecutorCompletionService<SweepResult>(pool);
+			for (double[] values : configurations) {
+				done.submit(() -> new SweepResult(values, checker.score(traces, factory.create(values))));
+			}
+			for (int i = 0; i < configurations.size(); i++) {
+				SweepResult result = done.take().get();
+				StringBuilder line = new StringBuilder();
+				for (double value : result.values) {
+					line.append(value).append(", ");
+				}
+				report.println(line.append(result.mard));
+				results.add(result);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			pool.shutdown();
+			report.flush();
+		}
+		// NaN (no valid sensors) goes last
+		results.sort((a, b) -> Double.compare(a.mard, b.mard));
+		return results;
+	}
+
+	// Runs a sweep from the command line and prints the best configurations.
+	static void Run(List<SensorTrace> traces, String algorithm, List<String> rangeSpecs, String method, int samples, long seed, int threads) {
+		ParameterizedFactory factory = AlgorithmRegistry.FindTunable(algorithm);
+		if (factory == null) {
+			System.err.println("Algorithm " + algorithm + " has no parameters to tune, tunable algorithms are " + AlgorithmRegistry.TunableNames());
+			return;
+		}
+		ParameterSweep sweep;
+		try {
+			List<ParameterRange> ranges = new ArrayList<ParameterRange>();
+			for (String spec : rangeSpecs) {
+				ranges.add(ParameterRange.Parse(spec));
+			}
+			sweep = new ParameterSweep(factory, ranges);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			return;
+		}
+		List<double[]> configurations;
+		if (method.equals("grid")) {
+			configurations = sweep.grid();
+		} else if (method.equals("random")) {
+			configurations = sweep.random(samples, new Random(seed));
+		} else if (method.equals("lhs")) {
+			configurations = sweep.latinHypercube(samples, new Random(seed));
+		} else {
+			throw new IllegalArgumentException("Unknown sweep method " + method + ", use grid, random or lhs");
+		}
+
+		String reportName = "sweep_" + algorithm + ".csv";
+		System.out.println("Checking " + configurations.size() + " configurations of " + algorithm + " on " + threads + " threads, results go to " + reportName);
+		long start = System.currentTimeMillis();
+		List<SweepResult> results;
+		try (PrintWriter report = new PrintWriter(new BufferedWriter(new FileWriter(reportName)))) {
+			results = sweep.run(traces, configurations, threads, report);
+		} catch (IOException e) {
+			System.err.println( e.getClass().getName() + ": " + e.getMessage() );
+			return;
+		}
+		System.out.println("Done in " + (System.currentTimeMillis() - start) + " ms");
+
+		System.out.println("\n*** Best configurations of " + algorithm);
+		System.out.println("rank  mard       " + String.join(" ", factory.parameterNames));
+		for (int i = 0; i < Math.min(10, results.size()); i++) {
+			SweepResult result = results.get(i);
+			StringBuilder line = new StringBuilder(String.format("%-5d %-10.5f", i + 1, result.mard));
+			for (double value : result.values) {
+				line.append(" ").append(value);
+			}
+			System.out.println(line);
+		}
+	}
+
+	final ParameterizedFactory factory;
+	final List<ParameterRange> ranges;
+	// Where every range goes in the parameter vector
+	private final int[] indexes;
+}
+
+
+// Cross validation (--cv): how well an algorithm does on sensors that it was not tuned or fitted on. The sensors (or
+// the dbs) are split in folds and every fold is checked with the algorithm fitted on all the other folds, so every
+// sensor is checked once by an algorithm that never saw it. What the fit is depends on the algorithm:
+// - with parameter ranges (as for --sweep) it is the configuration with the lowest MARD on the training sensors. The
+//   MARD of a sensor with a configuration is the same in every fold, so every sensor is checked once with every
+//   configuration and the folds only pick from these results
+// - a TrainableAlgorithm is trained on the training sensors of every fold, the folds are trained in parallel
+// - any other algorithm has nothing to fit and is only checked, to compare with
+// The data is loaded once and shared by all the threads. The results of every sensor go through the ResultCache when
+// there is one, so running again with another split or one more algorithm only replays what is not there yet.
+class CrossValidation {
+
+	// One algorithm, how it is fitted and what came out of it.
+	static class Candidate {
+		Candidate(String name, AlgorithmFactory factory) {
+			this.name = name;
+			this.factory = factory;
+		}
+
+		final String name;
+		final AlgorithmFactory factory;
+		// With parameter ranges, the configurations to choose from
+		ParameterizedFactory tunable;
+		List<double[]> configurations;
+
+		// none, trained or tuned
+		String fit;
+		// What was fitted in every fold and its MARD on the training sensors
+		String[] fitted;
+		double[] trainingMard;
+		// The MARD of every sensor, checked with the fit of its fold (NaN if the sensor was ignored)
+		double[] testMard;
+		// Fitted and checked on all the sensors, which is what tuning without cross validation gives
+		String fittedOnAll;
+		double inSampleMard;
+	}
+
+	// traces are the sensors that are not ignored, fold is the fold of every one of them.
+	CrossValidation(List<SensorTrace> traces, int[] fold, int numFolds) {
+		this.traces = traces;
+		this.fold = fold;
+		this.numFolds = numFolds;
+		checker.quiet = true;
+	}
+
+	// The fold of every sensor. groups is the group of every sensor (itself, or its db): with folds <= 0 every group
+	// is a fold (leave one out), otherwise the groups are shuffled and dealt to the folds.
+	static int[] Split(int[] groups, int folds, long seed) {
+		int numGroups = 0;
+		for (int group : groups) {
+			numGroups = Math.max(numGroups, group + 1);
+		}
+		int[] foldOfGroup = new int[numGroups];
+		for (int g = 0; g < numGroups; g++) {
+			foldOfGroup[g] = g;
+		}
+		if (folds > 0 && folds < numGroups) {
+			// Fisher-Yates shuffle
+			Random random = new Random(seed);
+			for (int i = numGroups - 1; i > 0; i--) {
+				int j = random.nextInt(i + 1);
+				int temp = foldOfGroup[i];
+				foldOfGroup[i] = foldOfGroup[j];
+				foldOfGroup[j] = temp;
+			}
+			for (int g = 0; g < numGroups; g++) {
+				foldOfGroup[g] %= folds;
+			}
+		}
+		int[] fold = new int[groups.length];
+		for (int i = 0; i < groups.length; i++) {
+			fold[i] = foldOfGroup[groups[i]];
+		}
+		return fold;
+	}
+
+	// Fits and checks all the candidates on the given number of threads.
+	void run(List<Candidate> candidates, int threads) {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			// Every sensor with every configuration, and the statistics of every sensor for the trainable algorithms
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+			Map<Candidate, double[][]> results = new HashMap<Candidate, double[][]>();
+			Map<Candidate, double[][]> statistics = new HashMap<Candidate, double[][]>();
+			for (Candidate candidate : candidates) {
+				if (candidate.configurations == null && candidate.factory.create() instanceof TrainableAlgorithm) {
+					double[][] sensorStatistics = new double[traces.size()][];
+					statistics.put(candidate, sensorStatistics);
+					candidate.fit = "trained";
+					for (int t = 0; t < traces.size(); t++) {
+						int sensor = t;
+						tasks.add(() -> {
+							TrainableAlgorithm algorithm = (TrainableAlgorithm)candidate.factory.create();
+							sensorStatistics[sensor] = algorithm.statistics(traces.get(sensor));
+							return null;
+						});
+					}
+					continue;
+				}
+				List<AlgorithmFactory> configurations = new ArrayList<AlgorithmFactory>();
+				if (candidate.configurations == null) {
+					configurations.add(candidate.factory);
+					candidate.fit = "none";
+				} else {
+					candidate.fit = "tuned";
+					for (double[] values : candidate.configurations) {
+						configurations.add(candidate.tunable.factory(values));
+					}
+				}
+				double[][] mard = new double[configurations.size()][traces.size()];
+				results.put(candidate, mard);
+				for (int c = 0; c < mard.length; c++) {
+					AlgorithmFactory configuration = configurations.get(c);
+					double[] row = mard[c];
+					for (int t = 0; t < traces.size(); t++) {
+						int sensor = t;
+						tasks.add(() -> {
+							row[sensor] = mard(traces.get(sensor), configuration.create());
+							return null;
+						});
+					}
+				}
+			}
+			RunAll(pool, tasks);
+
+			Map<Candidate, AlgorithmFactory[]> trained = new HashMap<Candidate, AlgorithmFactory[]>();
+			for (Map.Entry<Candidate, double[][]> entry : statistics.entrySet()) {
+				trained.put(entry.getKey(), train(entry.getKey(), entry.getValue()));
+			}
+
+			// Every sensor with the trainable algorithms of its fold, and of all the sensors
+			tasks.clear();
+			Map<Candidate, double[]> inSample = new HashMap<Candidate, double[]>();
+			for (Map.Entry<Candidate, AlgorithmFactory[]> entry : trained.entrySet()) {
+				Candidate candidate = entry.getKey();
+				AlgorithmFactory[] factories = entry.getValue();
+				candidate.testMard = new double[traces.size()];
+				double[] all = new double[traces.size()];
+				inSample.put(candidate, all);
+				for (int t = 0; t < traces.size(); t++) {
+					int sensor = t;
+					tasks.add(() -> {
+						candidate.testMard[sensor] = mard(traces.get(sensor), factories[fold[sensor]].create());
+						all[sensor] = mard(traces.get(sensor), factories[numFolds].create());
+						return null;
+					});
+				}
+			}
+			RunAll(pool, tasks);
+
+			for (Candidate candidate : candidates) {
+				if (results.containsKey(candidate)) {
+					choose(candidate, results.get(candidate));
+				} else {
+					AlgorithmFactory[] factories = trained.get(candidate);
+					candidate.fitted = new String[numFolds];
+					candidate.trainingMard = new double[numFolds];
+					for (int f = 0; f < numFolds; f++) {
+						candidate.fitted[f] = factories[f].create().toString();
+						// Not worth checking the training sensors again
+						candidate.trainingMard[f] = Double.NaN;
+					}
+					candidate.fittedOnAll = factories[numFolds].create().toString();
+					candidate.inSampleMard = average(inSample.get(candidate), -1);
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	// The fits of every fold and, the last one, of all the sensors. Like choose, the sums of every fold are taken
+	// from the sums of all the sensors.
+	private AlgorithmFactory[] train(Candidate candidate, double[][] sensorStatistics) {
+		double[] total = null;
+		double[][] foldStatistics = new double[numFolds][];
+		for (int t = 0; t < traces.size(); t++) {
+			total = TrainableAlgorithm.Add(total, sensorStatistics[t], 1);
+			foldStatistics[fold[t]] = TrainableAlgorithm.Add(foldStatistics[fold[t]], sensorStatistics[t], 1);
+		}
+		AlgorithmFactory[] factories = new AlgorithmFactory[numFolds + 1];
+		for (int f = 0; f < numFolds; f++) {
+			double[] training = total == null ? null : TrainableAlgorithm.Add(total.clone(), foldStatistics[f], -1);
+			factories[f] = ((TrainableAlgorithm)candidate.factory.create()).train(training);
+		}
+		factories[numFolds] = ((TrainableAlgorithm)candidate.factory.create()).train(total);
+		return factories;
+	}
+
+	// Picks the configuration with the lowest training MARD of every fold from the MARD of every sensor with every
+	// configuration. The sums of every fold are taken from the sums of all the sensors, so it is one pass.
+	private void choose(Candidate candidate, double[][] mard) {
+		int numConfigurations = mard.length;
+		double[] totalError = new double[numConfigurations];
+		int[] totalSensors = new int[numConfigurations];
+		double[][] foldError = new double[numConfigurations][numFolds];
+		int[][] foldSensors = new int[numConfigurations][numFolds];
+		for (int c = 0; c < numConfigurations; c++) {
+			for (int t = 0; t < traces.size(); t++) {
+				if (Double.isNaN(mard[c][t])) continue;
+				totalError[c] += mard[c][t];
+				totalSensors[c]++;
+				foldError[c][fold[t]] += mard[c][t];
+				foldSensors[c][fold[t]]++;
+			}
+		}
+		candidate.fitted = new String[numFolds];
+		candidate.trainingMard = new double[numFolds];
+		candidate.testMard = new double[traces.size()];
+		int[] best = new int[numFolds];
+		for (int f = 0; f < numFolds; f++) {
+			candidate.trainingMard[f] = Double.NaN;
+			for (int c = 0; c < numConfigurations; c++) {
+				double training = (totalError[c] - foldError[c][f]) / (totalSensors[c] - foldSensors[c][f]);
+				if (c == 0 || training < candidate.trainingMard[f] || Double.isNaN(candidate.trainingMard[f])) {
+					candidate.trainingMard[f] = training;
+					best[f] = c;
+				}
+			}
+			candidate.fitted[f] = describe(candidate, best[f]);
+		}
+		for (int t = 0; t < traces.size(); t++) {
+			candidate.testMard[t] = mard[best[fold[t]]][t];
+		}
+		int bestOnAll = 0;
+		for (int c = 1; c < numConfigurations; c++) {
+			double error = totalError[c] / totalSensors[c];
+			double bestError = totalError[bestOnAll] / totalSensors[bestOnAll];
+			if (error < bestError || Double.isNaN(bestError)) {
+				bestOnAll = c;
+			}
+		}
+		candidate.fittedOnAll = describe(candidate, bestOnAll);
+		candidate.inSampleMard = totalError[bestOnAll] / totalSensors[bestOnAll];
+	}
+
+	private static String describe(Candidate candidate, int configuration) {
+		if (candidate.configurations == null) return "-";
+		double[] values = candidate.configurations.get(configuration);
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0) text.append(' ');
+			text.append(candidate.tunable.parameterNames[i]).append('=').append(values[i]);
+		}
+		return text.toString();
+	}
+
+	private double mard(SensorTrace trace, BgAlgorithm algorithm) {
+		SensorResult result = checker.checkSensorBuffered(trace, new BgAlgorithm[] { algorithm }, new String[] { algorithm.toString() });
+		return result.mard == null ? Double.NaN : result.mard[0];
+	}
+
+	// The average of the MARD of the sensors of a fold (all of them for -1), without the ignored ones.
+	private double average(double[] mard, int testFold) {
+		double sum = 0;
+		int count = 0;
+		for (int t = 0; t < mard.length; t++) {
+			if (Double.isNaN(mard[t]) || (testFold >= 0 && fold[t] != testFold)) continue;
+			sum += mard[t];
+			count++;
+		}
+		return sum / count;
+	}
+
+	// Prints how every candidate did and writes the fit and the MARD of every fold to reportName.
+	void report(List<Candidate> candidates, String reportName) {
+		int[] foldSensors = new int[numFolds];
+		for (int f : fold) {
+			foldSensors[f]++;
+		}
+		try (PrintWriter report = new PrintWriter(new BufferedWriter(new FileWriter(reportName)))) {
+			report.println("fold, sensors, algorithm, fit, fitted, training mard, test mard");
+			for (Candidate candidate : candidates) {
+				for (int f = 0; f < numFolds; f++) {
+					report.println(f + ", " + foldSensors[f] + ", " + candidate.name + ", " + candidate.fit + ", " + candidate.fitted[f] + ", " +
+								   candidate.trainingMard[f] + ", " + average(candidate.testMard, f));
+				}
+			}
+		} catch (IOException e) {
+			System.err.println( e.getClass().getName() + ": " + e.getMessage() );
+		}
+
+		System.out.println("\n*** Cross validation, every fold checked with the fit on the other ones, the folds are in " + reportName);
+		System.out.println(String.format("%-24s %-7s %10s %16s %10s %5s  %s", "algorithm", "fit", "in sample", "cross validated", "std error", "fits", "fitted on all the sensors"));
+		for (Candidate candidate : candidates) {
+			// How much the MARD changes from fold to fold, as the error of the average
+			double sum = 0;
+			double sumSquares = 0;
+			int folds = 0;
+			for (int f = 0; f < numFolds; f++) {
+				double mard = average(candidate.testMard, f);
+				if (Double.isNaN(mard)) continue;
+				sum += mard;
+				sumSquares += mard * mard;
+				folds++;
+			}
+			double variance = folds > 1 ? Math.max(0, (sumSquares - sum * sum / folds) / (folds - 1)) : Double.NaN;
+			// How many different fits the folds ended with, many means the fit depends on which sensors it sees
+			int fits = new HashSet<String>(Arrays.asList(candidate.fitted)).size();
+			String name = candidate.name.length() > 24 ? candidate.name.substring(0, 24) : candidate.name;
+			System.out.println(String.format("%-24s %-7s %10.5f %16.5f %10.5f %5d  %s", name, candidate.fit, candidate.inSampleMard, average(candidate.testMard, -1),
+											 Math.sqrt(variance / folds), fits, candidate.fittedOnAll));
+		}
+	}
+
+	// Reads the dbs and runs the cross validation from the command line. specs are the algorithms, every one of them
+	// can be followed by parameter ranges (name=min:max[:steps]) to tune it. With byDb the dbs are split, not the
+	// sensors. folds <= 0 leaves one out.
+	static void Run(List<File> files, boolean byDb, int folds, long seed, List<String> specs, int threads, boolean snapshot,
+					ResultCache cache) {
+		List<Candidate> candidates = new ArrayList<Candidate>();
+		List<ParameterRange> ranges = new ArrayList<ParameterRange>();
+		for (int i = 0; i <= specs.size(); i++) {
+			if (i < specs.size() && specs.get(i).contains("=")) {
+				try {
+					ranges.add(ParameterRange.Parse(specs.get(i)));
+				} catch (IllegalArgumentException e) {
+					System.err.println(e.getMessage());
+					return;
+				}
+				continue;
+			}
+			if (!candidates.isEmpty() && !ranges.isEmpty()) {
+				// The ranges of the algorithm before them
+				Candidate candidate = candidates.get(candidates.size() - 1);
+				candidate.tunable = AlgorithmRegistry.FindTunable(candidate.name);
+				if (candidate.tunable == null) {
+					System.err.println("Algorithm " + candidate.name + " has no parameters to tune, tunable algorithms are " + AlgorithmRegistry.TunableNames());
+					return;
+				}
+				try {
+					candidate.configurations = new ParameterSweep(candidate.tunable, ranges).grid();
+				} catch (IllegalArgumentException e) {
+					System.err.println(e.getMessage());
+					return;
+				}
+				ranges.clear();
+			}
+			if (i == specs.size()) break;
+			AlgorithmFactory factory = AlgorithmRegistry.Find(specs.get(i));
+			if (factory == null) {
+				System.err.println("Unknown algorithm " + specs.get(i) + ", known algorithms are " + AlgorithmRegistry.Names());
+				return;
+			}
+			candidates.add(new Candidate(specs.get(i), factory));
+		}
+		if (!ranges.isEmpty() || candidates.isEmpty()) {
+			System.err.println("The parameter ranges go after the algorithm they are for");
+			return;
+		}
+
+		// Loaded once, without the sensors that are never checked
+		List<SensorTrace> traces = new ArrayList<SensorTrace>();
+		List<Integer> groups = new ArrayList<Integer>();
+		int ignored = 0;
+		for (int d = 0; d < files.size(); d++) {
+			String dbName = files.get(d).getPath();
+			List<SensorTrace> dbTraces;
+			try {
+				dbTraces = snapshot ? ExportSnapshot.Read(dbName, true) : SQLiteJdbc.LoadExport(dbName, true);
+			} catch (Exception e) {
+				System.err.println("Skipping " + dbName + " " + e.getClass().getName() + ": " + e.getMessage());
+				continue;
+			}
+			for (SensorTrace trace : dbTraces) {
+				if (AlgorithmChecker.Ignored(trace)) {
+					ignored++;
+					continue;
+				}
+				groups.add(byDb ? d : traces.size());
+				traces.add(trace);
+			}
+		}
+		// Numbered from 0 without the dbs that were skipped
+		Map<Integer, Integer> numbers = new HashMap<Integer, Integer>();
+		int[] group = new int[groups.size()];
+		for (int i = 0; i < group.length; i++) {
+			Integer number = numbers.get(groups.get(i));
+			if (number == null) {
+				number = numbers.size();
+				numbers.put(groups.get(i), number);
+			}
+			group[i] = number;
+		}
+		if (numbers.size() < 2) {
+			System.err.println("Cross validation needs at least two " + (byDb ? "dbs" : "sensors") + " to check, there are " + numbers.size());
+			return;
+		}
+		int[] fold = Split(group, folds, seed);
+		int numFolds = folds > 0 ? Math.min(folds, numbers.size()) : numbers.size();
+		System.out.println("Cross validation of " + traces.size() + " sensors" + (byDb ? " of " + numbers.size() + " dbs" : "") +
+						   (ignored > 0 ? " (" + ignored + " were too short)" : "") + " in " + numFolds + " folds" +
+						   (folds <= 0 ? " (leave one " + (byDb ? "db" : "sensor") + " out)" : "") + " on " + threads + " threads");
+
+		CrossValidation validation = new CrossValidation(traces, fold, numFolds);
+		validation.checker.cache = cache;
+		long start = System.currentTimeMillis();
+		validation.run(candidates, threads);
+		System.out.println("Done in " + (System.currentTimeMillis() - start) + " ms");
+		validation.report(candidates, "cv_results.csv");
+	}
+
+	private static void RunAll(ExecutorService pool, List<Callable<Void>> tasks) {
+		try {
+			for (Future<Void> future : pool.invokeAll(tasks)) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	final List<SensorTrace> traces;
+	final int[] fold;
+	final int numFolds;
+	final AlgorithmChecker checker = new AlgorithmChecker();
+}
+
+
+// What if the calibrations had been given at other times (--simulate)? Every sensor is replayed with schedules made
+// from its own calibrations: all of them as they were given, all of them some minutes late (the bg is paired with
+// the raw reading of that later time, like waiting before entering it), only one every few hours, and every one of
+// them left out in turn. A schedule is always measured at all the calibrations of the sensor like checkSensor does,
+// also at the ones that it does not give to the algorithm, so the schedules of a sensor are measured the same way.
+// The schedules of a sensor are the same up to some calibration, so they are replayed as a tree: the common part
+// once, then the state of the algorithm is kept (BgAlgorithm.snapshot) and every branch goes on from it in parallel.
+class ScheduleSimulator {
+
+	// The calibrations that one schedule gives to the algorithm, and when.
+	static class Schedule {
+		Schedule(String name, String family) {
+			this.name = name;
+			this.family = family;
+		}
+
+		void add(int calibration, long time) {
+			if (size == times.length) {
+				times = Arrays.copyOf(times, Math.max(8, size * 2));
+				calibrations = Arrays.copyOf(calibrations, times.length);
+			}
+			calibrations[size] = calibration;
+			times[size] = time;
+			size++;
+		}
+
+		// The time of calibration i, Long.MAX_VALUE after the last one
+		long time(int i) {
+			return i < size ? times[i] : Long.MAX_VALUE;
+		}
+
+		boolean sameAs(Schedule other, int i) {
+			if (i >= size || i >= other.size) return i >= size && i >= other.size;
+			return times[i] == other.times[i] && calibrations[i] == other.calibrations[i];
+		}
+
+		final String name;
+		// The schedules of all the sensors that are averaged together, like all the "drop" ones
+		final String family;
+		long[] times = new long[0];
+		int[] calibrations = new int[0];
+		int size;
+		// The calibration that is left out, -1 for none
+		int dropped = -1;
+
+		// The sum of the relative errors and the number of calibrations that were measured, of every algorithm
+		double[] error;
+		int[] points;
+	}
+
+	// How far one replay got: the readings, the calibrations it was measured at and the calibrations of its schedule.
+	static class Replay {
+		Replay(StreamingBgAlgorithm algorithm) {
+			this.algorithm = algorithm;
+		}
+
+		Replay copy(StreamingBgAlgorithm algorithm) {
+			Replay copy = new Replay(algorithm);
+			copy.raw = raw;
+			copy.reference = reference;
+			copy.event = event;
+			copy.error = error;
+			copy.points = points;
+			return copy;
+		}
+
+		final StreamingBgAlgorithm algorithm;
+		int raw;
+		int reference;
+		int event;
+		double error;
+		int points;
+	}
+
+	ScheduleSimulator(AlgorithmFactory[] factories, String[] names) {
+		this.factories = factories;
+		this.names = names;
+	}
+
+	// The schedules of one sensor.
+	List<Schedule> schedules(SensorTrace trace) {
+		List<Schedule> schedules = new ArrayList<Schedule>();
+		Schedule given = new Schedule("as given", "as given");
+		for (int i = 0; i < trace.calibrationSize; i++) {
+			given.add(i, trace.calib_timestamps[i]);
+		}
+		schedules.add(given);
+		for (int minutes : delays) {
+			Schedule delayed = new Schedule("delay " + minutes + "min", "delay " + minutes + "min");
+			for (int i = 0; i < trace.calibrationSize; i++) {
+				delayed.add(i, trace.calib_timestamps[i] + minutes * 60000L);
+			}
+			schedules.add(delayed);
+		}
+		for (int hours : intervals) {
+			// The first two start the sensor, after them one calibration every hours
+			Schedule every = new Schedule("every " + hours + "h", "every " + hours + "h");
+			long last = Long.MIN_VALUE;
+			for (int i = 0; i < trace.calibrationSize; i++) {
+				if (i < 2 || trace.calib_timestamps[i] - last >= hours * 3600000L) {
+					every.add(i, trace.calib_timestamps[i]);
+					last = trace.calib_timestamps[i];
+				}
+			}
+			schedules.add(every);
+		}
+		if (dropEach) {
+			for (int drop = 2; drop < trace.calibrationSize; drop++) {
+				Schedule dropped = new Schedule("drop " + (drop + 1), "drop one");
+				dropped.dropped = drop;
+				for (int i = 0; i < trace.calibrationSize; i++) {
+					if (i != drop) dropped.add(i, trace.calib_timestamps[i]);
+				}
+				schedules.add(dropped);
+			}
+		}
+		return schedules;
+	}
+
+	// Replays the schedules of all the sensors with all the algorithms on the given number of threads. Returns the
+	// schedules of every sensor that is not ignored, with their errors filled in.
+	Map<SensorTrace, List<Schedule>> run(List<SensorTrace> traces, int threads) {
+		Map<SensorTrace, List<Schedule>> results = new LinkedHashMap<SensorTrace, List<Schedule>>();
+		List<ForkJoinTask<?>> roots = new ArrayList<ForkJoinTask<?>>();
+		for (SensorTrace trace : traces) {
+			if (AlgorithmChecker.Ignored(trace)) continue;
+			List<Schedule> schedules = schedules(trace);
+			for (Schedule schedule : schedules) {
+				schedule.error = new double[factories.length];
+				schedule.points = new int[factories.length];
+			}
+			results.put(trace, schedules);
+			for (int a = 0; a < factories.length; a++) {
+				int algorithm = a;
+				roots.add(ForkJoinTask.adapt(() -> replay(trace, schedules, start(trace, algorithm), algorithm)));
+			}
+		}
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(roots)));
+		} finally {
+			pool.shutdown();
+		}
+		return results;
+	}
+
+	private Replay start(SensorTrace trace, int a) {
+		StreamingBgAlgorithm algorithm = StreamingAdapter.Wrap(factories[a].create());
+		algorithm.startSensor(trace.sensor.started_at);
+		return new Replay(algorithm);
+	}
+
+	// Replays the schedules from where r is, they all gave the first r.event calibrations in the same way.
+	private void replay(SensorTrace trace, List<Schedule> group, Replay r, int a) {
+		while (true) {
+			// The schedules that give the same next calibration go on together
+			List<List<Schedule>> branches = new ArrayList<List<Schedule>>();
+			long next = Long.MAX_VALUE;
+			for (Schedule schedule : group) {
+				List<Schedule> branch = null;
+				for (List<Schedule> b : branches) {
+					if (b.get(0).sameAs(schedule, r.event)) {
+						branch = b;
+						break;
+					}
+				}
+				if (branch == null) {
+					branch = new ArrayList<Schedule>();
+					branches.add(branch);
+				}
+				branch.add(schedule);
+				next = Math.min(next, schedule.time(r.event));
+			}
+			advance(trace, r, next);
+			if (branches.size() > 1) {
+				branch(trace, branches, r, a);
+				return;
+			}
+			if (next == Long.MAX_VALUE) {
+				for (Schedule schedule : group) {
+					schedule.error[a] = r.error;
+					schedule.points[a] = r.points;
+				}
+				return;
+			}
+			give(trace, r, group.get(0));
+		}
+	}
+
+	// The schedules go different ways from here, the first branch goes on with r and the others start from a
+	// snapshot of it, or from the start if the algorithm has none.
+	private void branch(SensorTrace trace, List<List<Schedule>> branches, Replay r, int a) {
+		Object state = checkpoints ? r.algorithm.snapshot() : null;
+		List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+		for (int b = 0; b < branches.size(); b++) {
+			List<Schedule> group = branches.get(b);
+			Replay branch;
+			if (b == 0) {
+				branch = r;
+			} else if (state != null) {
+				StreamingBgAlgorithm algorithm = StreamingAdapter.Wrap(factories[a].create());
+				algorithm.restore(state);
+				branch = r.copy(algorithm);
+			} else {
+				branch = start(trace, a);
+			}
+			tasks.add(ForkJoinTask.adapt(() -> replay(trace, group, branch, a)));
+		}
+		ForkJoinTask.invokeAll(tasks);
+	}
+
+	// Pushes the readings and measures the calibrations of the sensor up to time, in the order of checkSensor:
+	// the readings up to a calibration, then the calibration is measured, and only then given to the algorithm.
+	private void advance(SensorTrace trace, Replay r, long time) {
+		long[] timestamps = trace.timestamps;
+		int pushed = r.raw;
+		while (true) {
+			long referenceTime = r.reference < trace.calibrationSize ? trace.calib_timestamps[r.reference] : Long.MAX_VALUE;
+			// The readings up to the next calibration go in one call
+			long until = Math.min(referenceTime, time);
+			int end = r.raw;
+			while (end < trace.rawSize && timestamps[end] <= until) {
+				end++;
+			}
+			r.algorithm.onRawReadings(timestamps, trace.raw_values, r.raw, end, null);
+			r.raw = end;
+			if (referenceTime > time || referenceTime == Long.MAX_VALUE) break;
+			measure(trace, r, r.reference);
+			r.reference++;
+		}
+		readings.addAndGet(r.raw - pushed);
+	}
+
+	// Measured like in checkSensor. There the first two calibrations were always given or skipped before the
+	// third one is measured, a delayed schedule may not have got to them yet.
+	private void measure(SensorTrace trace, Replay r, int i) {
+		if (!AlgorithmChecker.Measured(i) || r.event < 2 || !close(trace, r, trace.calib_timestamps[i])) return;
+		double measuredBg = trace.measured_bg[i];
+		double calculatedBg = r.algorithm.calculateBG(trace.calib_timestamps[i]);
+		r.error += Math.abs(measuredBg - calculatedBg) / measuredBg;
+		r.points++;
+	}
+
+	// Gives the next calibration of the schedule. When there is no reading close enough to pair it with it is
+	// skipped, like in checkSensor.
+	private void give(SensorTrace trace, Replay r, Schedule schedule) {
+		int i = schedule.calibrations[r.event];
+		long time = schedule.times[r.event];
+		r.event++;
+		Calibration calibration = new Calibration(trace.measured_bg[i], time, trace.sensor.id,
+												  trace.xdrip_dist[i], trace.xdrip_slope[i], trace.xdrip_intercept[i]);
+		if (!close(trace, r, time)) {
+			r.algorithm.onSkippedCalibration(calibration);
+			return;
+		}
+		r.algorithm.onCalibration(calibration);
+	}
+
+	// Like checkSensor, the last reading that was pushed has to be close enough to the time.
+	private boolean close(SensorTrace trace, Replay r, long time) {
+		return r.raw > 0 && Math.abs(trace.timestamps[r.raw - 1] - time) <= maxCalibrationDistance;
+	}
+
+	// Prints the average MARD of every kind of schedule, and what leaving one calibration out did, by the bg of that
+	// calibration and by the time since the calibration before it. Every schedule of every sensor goes to report.
+	void report(Map<SensorTrace, List<Schedule>> results, PrintWriter report) {
+		report.println("sensor, schedule, calibrations, points, " + String.join(", ", names));
+		Map<String, double[]> mards = new LinkedHashMap<String, double[]>();
+		Map<String, int[]> counts = new LinkedHashMap<String, int[]>();
+		int numAlgorithms = names.length;
+		double[][] byRange = new double[AccuracyMetrics.RANGES.length][numAlgorithms];
+		int[] rangeCounts = new int[AccuracyMetrics.RANGES.length];
+		double[][] byHours = new double[AccuracyMetrics.HOURS.length][numAlgorithms];
+		int[] hoursCounts = new int[AccuracyMetrics.HOURS.length];
+		for (Map.Entry<SensorTrace, List<Schedule>> entry : results.entrySet()) {
+			SensorTrace trace = entry.getKey();
+			Schedule given = entry.getValue().get(0);
+			// A family is averaged in the sensor first, so a sensor with more calibrations does not count more
+			Map<String, double[]> sensorMards = new LinkedHashMap<String, double[]>();
+			Map<String, int[]> sensorCounts = new HashMap<String, int[]>();
+			for (Schedule schedule : entry.getValue()) {
+				StringBuilder line = new StringBuilder(trace.sensor.id + ", " + schedule.name + ", " + schedule.size + ", " + schedule.points[0]);
+				for (int a = 0; a < numAlgorithms; a++) {
+					line.append(", ").append(schedule.error[a] / schedule.points[a]);
+				}
+				report.println(line);
+				if (schedule.points[0] == 0) continue;
+				double[] mard = sensorMards.get(schedule.family);
+				if (mard == null) {
+					mard = new double[numAlgorithms + 1];
+					sensorMards.put(schedule.family, mard);
+					sensorCounts.put(schedule.family, new int[1]);
+				}
+				for (int a = 0; a < numAlgorithms; a++) {
+					mard[a] += schedule.error[a] / schedule.points[a];
+				}
+				mard[numAlgorithms] += schedule.size;
+				sensorCounts.get(schedule.family)[0]++;
+				if (schedule.dropped < 0 || given.points[0] == 0) continue;
+				int i = schedule.dropped;
+				int range = AccuracyMetrics.Bucket(AccuracyMetrics.RANGE_LIMITS, trace.measured_bg[i]);
+				int hours = AccuracyMetrics.Bucket(AccuracyMetrics.HOURS_LIMITS, (trace.calib_timestamps[i] - trace.calib_timestamps[i - 1]) / 3600000.0);
+				for (int a = 0; a < numAlgorithms; a++) {
+					double change = schedule.error[a] / schedule.points[a] - given.error[a] / given.points[a];
+					byRange[range][a] += change;
+					byHours[hours][a] += change;
+				}
+				rangeCounts[range]++;
+				hoursCounts[hours]++;
+			}
+			for (Map.Entry<String, double[]> family : sensorMards.entrySet()) {
+				double[] mard = mards.get(family.getKey());
+				if (mard == null) {
+					mard = new double[numAlgorithms + 1];
+					mards.put(family.getKey(), mard);
+					counts.put(family.getKey(), new int[1]);
+				}
+				int count = sensorCounts.get(family.getKey())[0];
+				for (int a = 0; a <= numAlgorithms; a++) {
+					mard[a] += family.getValue()[a] / count;
+				}
+				counts.get(family.getKey())[0]++;
+			}
+		}
+
+		System.out.println("\n*** MARD of every calibration schedule, averaged over " + results.size() + " sensors");
+		StringBuilder header = new StringBuilder(String.format("%-14s %12s", "schedule", "calibrations"));
+		for (String name : names) {
+			header.append(String.format(" %20s", name.length() > 20 ? name.substring(0, 20) : name));
+		}
+		System.out.println(header);
+		for (Map.Entry<String, double[]> entry : mards.entrySet()) {
+			double[] mard = entry.getValue();
+			int count = counts.get(entry.getKey())[0];
+			// The last one is the number of calibrations that were given
+			StringBuilder line = new StringBuilder(String.format("%-14s %12.1f", entry.getKey(), mard[numAlgorithms] / count));
+			for (int a = 0; a < numAlgorithms; a++) {
+				line.append(String.format(" %20.5f", mard[a] / count));
+			}
+			System.out.println(line);
+		}
+		if (!dropEach) return;
+		System.out.println("\n*** How much leaving one calibration out adds to the MARD of its sensor (more is a more useful calibration)");
+		PrintChanges("bg", AccuracyMetrics.RANGES, byRange, rangeCounts, names);
+		PrintChanges("since the last", AccuracyMetrics.HOURS, byHours, hoursCounts, names);
+	}
+
+	private static void PrintChanges(String title, String[] groups, double[][] changes, int[] counts, String[] names) {
+		StringBuilder header = new StringBuilder(String.format("%-26s", title));
+		for (String group : groups) {
+			header.append(String.format(" %8s", group));
+		}
+		System.out.println(header);
+		StringBuilder points = new StringBuilder(String.format("%-26s", "calibrations"));
+		for (int count : counts) {
+			points.append(String.format(" %8d", count));
+		}
+		System.out.println(points);
+		for (int a = 0; a < names.length; a++) {
+			StringBuilder line = new StringBuilder(String.format("%-26s", names[a].length() > 26 ? names[a].substring(0, 26) : names[a]));
+			for (int g = 0; g < groups.length; g++) {
+				line.append(counts[g] == 0 ? String.format(" %8s", "-") : String.format(" %+8.4f", changes[g][a] / counts[g]));
+			}
+			System.out.println(line);
+		}
+	}
+
+	// Runs the simulator from the command line, the schedules of every sensor go to simulate.csv.
+	static void Run(List<SensorTrace> traces, AlgorithmFactory[] factories, String[] names, int threads) {
+		ScheduleSimulator simulator = new ScheduleSimulator(factories, names);
+		String reportName = "simulate.csv";
+		System.out.println("Simulating calibration schedules with " + String.join(", ", names) + " on " + threads + " threads, every schedule goes to " + reportName);
+		long start = System.currentTimeMillis();
+		Map<SensorTrace, List<Schedule>> results = simulator.run(traces, threads);
+		long fromStart = 0;
+		for (Map.Entry<SensorTrace, List<Schedule>> entry : results.entrySet()) {
+			fromStart += (long)entry.getKey().rawSize * entry.getValue().size() * factories.length;
+		}
+		System.out.println("Done in " + (System.currentTimeMillis() - start) + " ms, " + simulator.readings.get() + " readings were replayed instead of " +
+						   fromStart + " for every schedule on its own");
+		try (PrintWriter report = new PrintWriter(new BufferedWriter(new FileWriter(reportName)))) {
+			simulator.report(results, report);
+		} catch (IOException e) {
+			System.err.println( e.getClass().getName() + ": " + e.getMessage() );
+		}
+	}
+
+	final AlgorithmFactory[] factories;
+	final String[] names;
+	// The schedules, every one of them is made for every sensor
+	int[] delays = { 5, 10, 15, 20, 30 };
+	int[] intervals = { 12, 24 };
+	boolean dropEach = true;
+	long maxCalibrationDistance = RawData.MAX_DISTANCE;
+	// Without them every branch is replayed from the start, to compare
+	boolean checkpoints = true;
+	// Readings that were pushed to the algorithms
+	final AtomicLong readings = new AtomicLong();
+}
+
+
+// Checks the algorithms on many exports in one run (--batch): the .sqlite files of a directory, or a manifest
+// with one file per line. A number of workers load and check files at once, but a file is only loaded when its
+// estimated size fits in what is left of the memory budget. A file that can not be read or checked is reported
+// and the others go on. At the end the MARD of the sensors of all the files is averaged per algorithm.
+class BatchEvaluator {
+
+	// The outcome of one file.
+	static class FileResult {
+		FileResult(int index, File file) {
+			this.index = index;
+			this.file = file;
+		}
+
+		final int index;
+		final File file;
+		// Why the file failed, null if it did not
+		String error;
+		int sensors;
+		int validSensors;
+		double[] totalMard;
+		AccuracyMetrics[] metrics;
+		long millis;
+	}
+
+	BatchEvaluator(AlgorithmFactory[] factories, String[] names, int workers, int memoryBudgetMegabytes) {
+		this.factories = factories;
+		this.names = names;
+		this.workers = workers;
+		this.memoryBudgetMegabytes = memoryBudgetMegabytes;
+	}
+
+	// The .sqlite files of a directory, or the files listed in a manifest (relative to it, # starts a comment).
+	static List<File> Files(String path) throws IOException {
+		File file = new File(path);
+		List<File> files = new ArrayList<File>();
+		if (file.isDirectory()) {
+			File[] children = file.listFiles((dir, name) -> name.endsWith(".sqlite"));
+			if (children == null) {
+				throw new IOException("Can not read the directory " + path);
+			}
+			Arrays.sort(children);
+			files.addAll(Arrays.asList(children));
+			return files;
+		}
+		try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) continue;
+				File listed = new File(line);
+				files.add(listed.isAbsolute() ? listed : new File(file.getAbsoluteFile().getParentFile(), line));
+			}
+		}
+		return files;
+	}
+
+	// Reading an export takes about as much memory as the db file at most, real exports have
+	// many columns that we do not read.
+	static int EstimatedMegabytes(File db) {
+		return (int)Math.max(1, (db.length() + (1 << 20) - 1) >> 20);
+	}
+
+	List<FileResult> run(List<File> files) {
+		// The native library of the SQLite driver crashes when it is first used by several threads at once
+		try {
+			Class.forName("org.sqlite.JDBC");
+			DriverManager.getConnection("jdbc:sqlite::memory:").close();
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+		Semaphore memory = new Semaphore(memoryBudgetMegabytes, true);
+		ExecutorService pool = Executors.newFixedThreadPool(workers);
+		CompletionService<FileResult> done = new ExecutorCompletionService<FileResult>(pool);
+		try {
+			for (int i = 0; i < files.size(); i++) {
+				int index = i;
+				done.submit(() -> check(index, files.get(index), memory));
+			}
+			FileResult[] results = new FileResult[files.size()];
+			for (int i = 0; i < files.size(); i++) {
+				FileResult result = done.take().get();
+				results[result.index] = result;
+				System.out.println("[" + (i + 1) + "/" + files.size() + "] " + result.file + ": " +
+								   (result.error != null ? "failed, " + result.error : result.validSensors + " of " + result.sensors + " sensors checked") +
+								   " in " + result.millis / 1000.0 + " seconds");
+			}
+			return Arrays.asList(results);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private FileResult check(int index, File file, Semaphore memory) throws InterruptedException {
+		FileResult result = new FileResult(index, file);
+		// A file larger than the budget is checked when nothing else is loaded
+		int megabytes = Math.min(memoryBudgetMegabytes, EstimatedMegabytes(file));
+		memory.acquire(megabytes);
+		long start = System.currentTimeMillis();
+		try {
+			List<SensorTrace> traces = snapshot ? ExportSnapshot.Read(file.getPath(), true) : SQLiteJdbc.LoadExport(file.getPath(), true);
+			AlgorithmChecker checker = new AlgorithmChecker();
+			checker.quiet = true;
+			checker.metrics = metrics;
+			checker.cache = cache;
+			List<SensorResult> sensorResults = checker.checkSensors(traces, factories, names, threads);
+			result.sensors = traces.size();
+			result.totalMard = new double[names.length];
+			if (metrics) {
+				result.metrics = AccuracyMetrics.Create(names.length + 1);
+			}
+			for (SensorResult sensorResult : sensorResults) {
+				if (sensorResult.mard == null) continue;
+				result.validSensors++;
+				for (int a = 0; a < names.length; a++) {
+					result.totalMard[a] += sensorResult.mard[a];
+				}
+				if (metrics) {
+					for (int a = 0; a < result.metrics.length; a++) {
+						result.metrics[a].add(sensorResult.metrics[a]);
+					}
+				}
+			}
+		} catch (Throwable e) {
+			// Whatever went wrong (an algorithm that throws an Error, a db too large for the heap), it is the
+			// failure of this file and the others go on
+			result.error = e.getClass().getName() + ": " + e.getMessage();
+		} finally {
+			memory.release(megabytes);
+			result.millis = System.currentTimeMillis() - start;
+		}
+		return result;
+	}
+
+	// Prints the MARD of every file and of all of them, writes the same to reportName as csv,
+	// and returns the average MARD of the sensors of all the files.
+	double[] report(List<FileResult> results, String reportName) {
+		double[] totalMard = new double[names.length];
+		int validSensors = 0;
+		int failed = 0;
+		AccuracyMetrics[] metrics = AccuracyMetrics.Create(names.length + 1);
+
+		System.out.println("\n*** MARD of every algorithm per file");
+		StringBuilder header = new StringBuilder(String.format("%-30s %8s", "file", "sensors"));
+		for (String name : names) {
+			header.append(String.format(" %20s", name.length() > 20 ? name.substring(0, 20) : name));
+		}
+		System.out.println(header);
+		try (PrintWriter csv = new PrintWriter(new BufferedWriter(new FileWriter(reportName)))) {
+			csv.println("file,error,sensors,checked sensors," + String.join(",", names));
+			for (FileResult result : results) {
+				String name = result.file.getName();
+				StringBuilder line = new StringBuilder(String.format("%-30s ", name.length() > 30 ? name.substring(0, 30) : name));
+				if (result.error != null) {
+					failed++;
+					System.out.println(line.append("failed"));
+					csv.println(result.file + "," + result.error.replace(',', ';') + ",,,");
+					continue;
+				}
+				line.append(String.format("%8d", result.validSensors));
+				StringBuilder csvLine = new StringBuilder(result.file + ",," + result.sensors + "," + result.validSensors);
+				for (int a = 0; a < names.length; a++) {
+					double mard = result.totalMard[a] / result.validSensors;
+					line.append(String.format(" %20.5f", mard));
+					csvLine.append("," + mard);
+					totalMard[a] += result.totalMard[a];
+				}
+				validSensors += result.validSensors;
+				if (result.metrics != null) {
+					for (int a = 0; a < metrics.length; a++) {
+						metrics[a].add(result.metrics[a]);
+					}
+				}
+				System.out.println(line);
+				csv.println(csvLine);
+			}
+		} catch (IOException e) {
+			System.err.println( e.getClass().getName() + ": " + e.getMessage() );
+		}
+		StringBuilder line = new StringBuilder(String.format("%-30s %8d", "all files", validSensors));
+		for (int a = 0; a < names.length; a++) {
+			totalMard[a] /= validSensors;
+			line.append(String.format(" %20.5f", totalMard[a]));
+		}
+		System.out.println(line);
+		if (failed > 0) {
+			System.out.println("\n*** " + failed + " of " + results.size() + " files failed:");
+			for (FileResult result : results) {
+				if (result.error != null) {
+					System.out.println(result.file + ": " + result.error);
+				}
+			}
+		}
+		if (this.metrics) {
+			String[] allNames = Arrays.copyOf(names, names.length + 1);
+			allNames[names.length] = "xDrip (in the db)";
+			AccuracyMetrics.Print(allNames, metrics, System.out);
+		}
+		System.out.println("\nResults written to " + reportName);
+		return totalMard;
+	}
+
+	// Read through the snapshots of the exports
+	boolean snapshot = true;
+	// Collect and print AccuracyMetrics
+	boolean metrics;
+	// Threads that check the sensors of one file
+	int threads = 1;
+	// Shared by all the files, so a sensor that is in several of them is checked once
+	ResultCache cache;
+
+	final AlgorithmFactory[] factories;
+	final String[] names;
+	final int workers;
+	final int memoryBudgetMegabytes;
+}
+
+
+// Keeps exports in memory and checks algorithms on them when asked over HTTP on localhost (--serve port), so trying
+// a change does not pay for starting java, loading the driver and reading the export every time:
+//   /check?db=db2.sqlite&algorithm=xDripAlgorithm&algorithm=LineFitAlgorithm   like the command line, also with
+//          &metrics, &quality, &stats, &verbose and &threads=n, and values for the parameters of tunable
+//          algorithms, like &ageAdjustDays=2.5
+//   /datasets lists the exports in memory, /unload?db=... forgets one, /stop stops the server
+// The answer is what the command line prints. An export is read the first time it is asked for and again when it
+// changes. The class files are watched as well: after javac wrote other code, the next job runs in a new class
+// loader with all the classes of the program. They can not be loaded one by one, they are in one package and
+// classes of different loaders do not see each other's package private members. The JDK, the driver and the
+// exports stay, the exports as arrays that every class loader can use.
+class EvaluationServer {
+
+	// A loaded export, as java types only (see Detach).
+	static class Dataset {
+		Dataset(File file) {
+			this.file = file;
+		}
+
+		final File file;
+		List<Object[]> traces;
+		long modified;
+		long length;
+	}
+
+	// Sends the output of the thread that runs a job to the job, and of any other thread to the console.
+	static class JobOutput extends OutputStream {
+		JobOutput(OutputStream console, ThreadLocal<OutputStream> current) {
+			this.console = console;
+			this.current = current;
+		}
+
+		public void write(int b) throws IOException {
+			OutputStream job = current.get();
+			(job != null ? job : console).write(b);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			OutputStream job = current.get();
+			(job != null ? job : console).write(b, off, len);
+		}
+
+		public void flush() throws IOException {
+			if (current.get() == null) console.flush();
+		}
+
+		final OutputStream console;
+		final ThreadLocal<OutputStream> current;
+	}
+
+	// Defines the classes of the program from the bytes that were read, and leaves the others to its parent.
+	static class ProgramClassLoader extends ClassLoader {
+		ProgramClassLoader(Map<String, byte[]> classes, ClassLoader parent) {
+			super(parent);
+			this.classes = classes;
+		}
+
+		protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+			byte[] bytes = classes.get(name);
+			if (bytes == null) return super.loadClass(name, resolve);
+			synchronized (getClassLoadingLock(name)) {
+				Class<?> c = findLoadedClass(name);
+				if (c == null) c = defineClass(name, bytes, 0, bytes.length);
+				if (resolve) resolveClass(c);
+				return c;
+			}
+		}
+
+		final Map<String, byte[]> classes;
+	}
+
+	interface Job {
+		public void run(Map<String, List<String>> query) throws Exception;
+	}
+
+	EvaluationServer(boolean snapshot) {
+		this.snapshot = snapshot;
+		URL location = SQLiteJdbc.class.getProtectionDomain().getCodeSource().getLocation();
+		File classes = null;
+		try {
+			classes = new File(location.toURI());
+		} catch (Exception e) {
+			// Not a file, so nothing to watch
+		}
+		directory = classes != null && classes.isDirectory() ? classes : null;
+		loader = SQLiteJdbc.class.getClassLoader();
+		if (directory != null) {
+			try {
+				code = ReadClasses(directory);
+			} catch (IOException e) {
+				System.err.println( e.getClass().getName() + ": " + e.getMessage() );
+			}
+		}
+	}
+
+	void start(int port, int workers) throws IOException {
+		console = System.out;
+		System.setOut(new PrintStream(new JobOutput(System.out, jobOutput), true));
+		System.setErr(new PrintStream(new JobOutput(System.err, jobOutput), true));
+
+		pool = Executors.newFixedThreadPool(workers);
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.setExecutor(pool);
+		server.createContext("/check", exchange -> handle(exchange, this::check));
+		server.createContext("/datasets", exchange -> handle(exchange, query -> datasets()));
+		server.createContext("/unload", exchange -> handle(exchange, query -> unload(query)));
+		server.createContext("/stop", exchange -> handle(exchange, query -> stop()));
+		server.start();
+		console.println("Serving on http://localhost:" + server.getAddress().getPort() + "/ with " + workers + " workers, like /check?db=db2.sqlite&algorithm=xDripAlgorithm" +
+						(directory == null ? "" : ", watching the classes in " + directory));
+	}
+
+	// Runs the job with its output going to the answer. A bad request is a 400 with the reason, anything else a 500,
+	// also an Error like a LinkageError of classes that are still being written.
+	private void handle(HttpExchange exchange, Job job) throws IOException {
+		long start = System.nanoTime();
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		int status = 200;
+		jobOutput.set(body);
+		try {
+			job.run(Query(exchange.getRequestURI().getRawQuery()));
+		} catch (IllegalArgumentException e) {
+			status = 400;
+			System.out.println(e.getMessage());
+		} catch (Throwable e) {
+			status = 500;
+			System.out.println( e.getClass().getName() + ": " + e.getMessage() );
+		} finally {
+			System.out.flush();
+			System.err.flush();
+			jobOutput.remove();
+		}
+		long millis = (System.nanoTime() - start) / 1000000;
+		byte[] bytes = body.toByteArray();
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+		console.println(exchange.getRequestURI() + " " + status + " in " + millis + " ms");
+	}
+
+	private void check(Map<String, List<String>> query) throws Exception {
+		List<String> db = query.get("db");
+		if (db == null) {
+			throw new IllegalArgumentException("Which db? Like /check?db=db2.sqlite&algorithm=xDripAlgorithm");
+		}
+		ClassLoader program = program();
+		List<Object[]> traces = dataset(db.get(0), program);
+		Method evaluate = program.loadClass(EvaluationServer.class.getName()).getDeclaredMethod("Evaluate", List.class, Map.class);
+		evaluate.setAccessible(true);
+		try {
+			evaluate.invoke(null, traces, query);
+		} catch (InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) throw (Exception)cause;
+			throw (Error)cause;
+		}
+	}
+
+	private void datasets() {
+		for (Dataset dataset : datasets.values()) {
+			synchronized (dataset) {
+				if (dataset.traces != null) System.out.println(dataset.file + ": " + dataset.traces.size() + " sensors");
+			}
+		}
+	}
+
+	private void unload(Map<String, List<String>> query) throws IOException {
+		List<String> db = query.get("db");
+		if (db == null || datasets.remove(new File(db.get(0)).getCanonicalPath()) == null) {
+			throw new IllegalArgumentException("Not loaded: " + db);
+		}
+		System.out.println("Unloaded " + db.get(0));
+	}
+
+	private void stop() {
+		System.out.println("Stopping");
+		// After this answer was sent
+		new Thread(() -> {
+			server.stop(1);
+			pool.shutdown();
+		}).start();
+	}
+
+	// The export, read by the classes of the program if it is not in memory or changed since it was read.
+	private List<Object[]> dataset(String db, ClassLoader program) throws Exception {
+		File file = new File(db).getCanonicalFile();
+		if (!file.isFile()) {
+			throw new IllegalArgumentException("No such db " + db);
+		}
+		Dataset dataset = datasets.computeIfAbsent(file.getPath(), path -> new Dataset(file));
+		synchronized (dataset) {
+			if (dataset.traces == null || dataset.modified != file.lastModified() || dataset.length != file.length()) {
+				dataset.modified = file.lastModified();
+				dataset.length = file.length();
+				dataset.traces = null;
+				Method load = program.loadClass(EvaluationServer.class.getName()).getDeclaredMethod("Load", String.class, boolean.class);
+				load.setAccessible(true);
+				try {
+					@SuppressWarnings("unchecked")
+					List<Object[]> traces = (List<Object[]>)load.invoke(null, file.getPath(), snapshot);
+					dataset.traces = traces;
+				} catch (InvocationTargetException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof Exception) throw (Exception)cause;
+					throw (Error)cause;
+				}
+				console.println("Loaded " + dataset.traces.size() + " sensors from " + file);
+			}
+			return dataset.traces;
+		}
+	}
+
+	// The class loader of the program as it is on disk now, a new one when a class file has other bytes. All the
+	// classes are defined right away, if one of them can not be (compile.sh is still writing it) the previous
+	// loader is kept and this throws, the next request tries again.
+	private synchronized ClassLoader program() throws IOException, ClassNotFoundException {
+		if (directory == null || code == null) return loader;
+		Map<String, byte[]> classes = ReadClasses(directory);
+		boolean changed = classes.size() != code.size();
+		for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+			if (changed) break;
+			changed = !Arrays.equals(entry.getValue(), code.get(entry.getKey()));
+		}
+		if (changed) {
+			ClassLoader program = new ProgramClassLoader(classes, SQLiteJdbc.class.getClassLoader());
+			try {
+				for (String name : classes.keySet()) {
+					Class.forName(name, false, program);
+				}
+			} catch (LinkageError e) {
+				console.println("The classes changed but can not be loaded, still using the ones before: " + e);
+				throw e;
+			}
+			code = classes;
+			loader = program;
+			console.println("The classes changed, loaded " + classes.size() + " classes again");
+		}
+		return loader;
+	}
+
+	// The bytes of every class file in the directory, by class name. Only the files that changed since the last
+	// time are read again.
+	private static Map<String, byte[]> ReadClasses(File directory) throws IOException {
+		Map<String, byte[]> classes = new HashMap<String, byte[]>();
+		File[] files = directory.listFiles((dir, name) -> name.endsWith(".class"));
+		if (files == null) throw new IOException("Can not list " + directory);
+		for (File file : files) {
+			String name = file.getName().substring(0, file.getName().length() - ".class".length());
+			long[] stamp = stamps.get(name);
+			if (stamp != null && stamp[0] == file.lastModified() && stamp[1] == file.length() && readBytes.containsKey(name)) {
+				classes.put(name, readBytes.get(name));
+				continue;
+			}
+			byte[] bytes = Files.readAllBytes(file.toPath());
+			stamps.put(name, new long[] { file.lastModified(), file.length() });
+			readBytes.put(name, bytes);
+			classes.put(name, bytes);
+		}
+		return classes;
+	}
+
+	// Called in the class loader of the program: reads the export and returns it detached from its classes.
+	static List<Object[]> Load(String db, boolean snapshot) throws Exception {
+		return Detach(snapshot ? ExportSnapshot.Read(db, true) : SQLiteJdbc.LoadExport(db, true));
+	}
+
+	// Called in the class loader of the program: runs one check like the command line does.
+	static void Evaluate(List<Object[]> detached, Map<String, List<String>> query) {
+		List<SensorTrace> traces = Attach(detached);
+		List<String> names = query.containsKey("algorithm") ? query.get("algorithm") : Collections.singletonList("xDripAlgorithm");
+		AlgorithmFactory[] factories = new AlgorithmFactory[names.size()];
+		String[] labels = new String[names.size()];
+		Set<String> parameters = new HashSet<String>();
+		for (int i = 0; i < factories.length; i++) {
+			String name = names.get(i);
+			ParameterizedFactory tunable = AlgorithmRegistry.FindTunable(name);
+			boolean tuned = false;
+			if (tunable != null) {
+				double[] values = tunable.defaultValues.clone();
+				for (int p = 0; p < values.length; p++) {
+					List<String> value = query.get(tunable.parameterNames[p]);
+					if (value == null) continue;
+					try {
+						values[p] = Double.parseDouble(value.get(0));
+					} catch (NumberFormatException e) {
+						throw new IllegalArgumentException("Bad value " + value.get(0) + " for " + tunable.parameterNames[p]);
+					}
+					tunable.check(p, values[p]);
+					parameters.add(tunable.parameterNames[p]);
+					tuned = true;
+				}
+				factories[i] = tunable.factory(values);
+			} else {
+				factories[i] = AlgorithmRegistry.Find(name);
+			}
+			if (factories[i] == null) {
+				throw new IllegalArgumentException("Unknown algorithm " + name + ", known algorithms are " + AlgorithmRegistry.Names());
+			}
+			labels[i] = tuned ? factories[i].create().toString() : name;
+		}
+		for (String key : query.keySet()) {
+			if (!OPTIONS.contains(key) && !parameters.contains(key)) {
+				throw new IllegalArgumentException("Unknown option " + key + ", the options are " + OPTIONS + " and the parameters of " + AlgorithmRegistry.TunableNames());
+			}
+		}
+
+		AlgorithmChecker checker = new AlgorithmChecker();
+		checker.quiet = !query.containsKey("verbose");
+		checker.metrics = query.containsKey("metrics");
+		checker.quality = query.containsKey("quality");
+		if (query.containsKey("stats")) checker.sinks.add(new StatsSink());
+		int threads = query.containsKey("threads") ? Math.max(1, Integer.parseInt(query.get("threads").get(0))) : 1;
+		System.out.println("Checking " + traces.size() + " sensors");
+		if (factories.length == 1) {
+			checker.checkAlgorithm(traces, factories[0], threads);
+		} else {
+			checker.checkAlgorithms(traces, factories, labels, threads);
+		}
 	}
 
-	public void startSensor(long sensorStartTime) {
-		startTime = sensorStartTime;
-		lastCalib = null;
+	// The traces as arrays and strings, which are the same classes in every class loader. The arrays are not copied.
+	static List<Object[]> Detach(List<SensorTrace> traces) {
+		List<Object[]> detached = new ArrayList<Object[]>();
+		for (SensorTrace trace : traces) {
+			Sensor sensor = trace.sensor;
+			detached.add(new Object[] {
+				new long[] { sensor.started_at, sensor.stopped_at }, sensor.uuid, new int[] { sensor.id, trace.rawSize, trace.calibrationSize },
+				trace.timestamps, trace.raw_values, trace.calib_timestamps, trace.measured_bg, trace.xdrip_dist, trace.xdrip_slope, trace.xdrip_intercept });
+		}
+		return detached;
 	}
 
-	public void calibrationReceived(List<Calibration> cal, List<RawData> rawData) {
-		if (cal.size()==0 || rawData.size()==0) return;
-		lastCalib = cal.get(cal.size()-1);
+	static List<SensorTrace> Attach(List<Object[]> detached) {
+		List<SensorTrace> traces = new ArrayList<SensorTrace>();
+		for (Object[] fields : detached) {
+			long[] times = (long[])fields[0];
+			int[] sizes = (int[])fields[2];
+			SensorTrace trace = new SensorTrace(new Sensor(times[0], times[1], (String)fields[1], sizes[0]));
+			trace.rawSize = sizes[1];
+			trace.calibrationSize = sizes[2];
+			trace.timestamps = (long[])fields[3];
+			trace.raw_values = (double[])fields[4];
+			trace.calib_timestamps = (long[])fields[5];
+			trace.measured_bg = (double[])fields[6];
+			trace.xdrip_dist = (double[])fields[7];
+			trace.xdrip_slope = (double[])fields[8];
+			trace.xdrip_intercept = (double[])fields[9];
+			traces.add(trace);
+		}
+		return traces;
 	}
 
-	public double calculateBG(List<RawData> rawData, long bgTimeStamp) {
-		// Apply age adjusting
-		double raw_data = rawData.get(rawData.size()-1).raw_value;
-		double age_adjusted_raw_value;
-		double adjust_for = (86400000 * 1.9) - (rawData.get(rawData.size()-1).timestamp - startTime);
-		if (adjust_for > 0) {
-			age_adjusted_raw_value = (((.45) * (adjust_for / (86400000 * 1.9))) * raw_data) + raw_data;
-		} else {
-			age_adjusted_raw_value = raw_data;
+	// Splits a query like db=a.sqlite&algorithm=x&algorithm=y&metrics, a name without a value has an empty one.
+	static Map<String, List<String>> Query(String rawQuery) throws UnsupportedEncodingException {
+		Map<String, List<String>> query = new LinkedHashMap<String, List<String>>();
+		if (rawQuery == null) return query;
+		for (String part : rawQuery.split("&")) {
+			if (part.isEmpty()) continue;
+			int equals = part.indexOf('=');
+			String name = URLDecoder.decode(equals < 0 ? part : part.substring(0, equals), "UTF-8");
+			String value = equals < 0 ? "" : URLDecoder.decode(part.substring(equals + 1), "UTF-8");
+			query.computeIfAbsent(name, key -> new ArrayList<String>()).add(value);
 		}
-		double bg = lastCalib.xdrip_slope * age_adjusted_raw_value + lastCalib.xdrip_intercept;
-		return bg;
+		return query;
 	}
-}
 
-class AlgorithmChecker {
+	static final Set<String> OPTIONS = new HashSet<String>(Arrays.asList("db", "algorithm", "metrics", "quality", "stats", "verbose", "threads"));
 
-	void plotRaw(List<RawData> rawBg, List<Calibration> calibrations, List<RawData> calculatedBg, long sensorStart, String fileName) {
-		if (rawBg!=null)
+	// Runs the server from the command line, and reads the db first if one was given.
+	static void Run(int port, int workers, boolean snapshot, String db) {
+		EvaluationServer evaluationServer = new EvaluationServer(snapshot);
 		try {
-			PrintWriter pw = new PrintWriter(new FileWriter(fileName+"_raw.csv"));
-			for (RawData raw : rawBg) {
-				// time in days.
-				double timeFromStart = (double)(raw.timestamp - sensorStart) / 60000 / 60 / 24;
-				pw.println(timeFromStart+", "+raw.raw_value);
-			}
-			pw.close();
-		} catch (Exception e)
-		{
+			evaluationServer.start(port, workers);
+			if (db != null) evaluationServer.dataset(db, evaluationServer.program());
+		} catch (Exception e) {
 			System.err.println( e.getClass().getName() + ": " + e.getMessage() );
 		}
-		if (calibrations!=null)
-		try {
-			PrintWriter pw = new PrintWriter(new FileWriter(fileName+"_calib.csv"));
-			for (Calibration cal : calibrations) {
-				// time in days.
-				double timeFromStart = (double)(cal.timestamp - sensorStart) / 60000 / 60 / 24;
-				pw.println(timeFromStart+", "+cal.measured_bg);
+	}
+
+	final boolean snapshot;
+	// Where the class files of the program are, null if they are in a jar
+	final File directory;
+	private final Map<String, Dataset> datasets = new ConcurrentHashMap<String, Dataset>();
+	// The class loader of the jobs and the class files it has
+	private ClassLoader loader;
+	private Map<String, byte[]> code;
+	private PrintStream console;
+	// Where the output of the job of every thread goes
+	private final ThreadLocal<OutputStream> jobOutput = new ThreadLocal<OutputStream>();
+	private HttpServer server;
+	private ExecutorService pool;
+	// The class files that were read, and their time and length then
+	private static final Map<String, long[]> stamps = new HashMap<String, long[]>();
+	private static final Map<String, byte[]> readBytes = new HashMap<String, byte[]>();
+}
+
+
+// Made up sensors in the shape of an xDrip export, so benchmarks and tests do not need anybody's real data.
+// The sensors come one after the other with a raw reading every 5 minutes, two calibrations at the start
+// and more on a schedule after that. The fields below shape the data, the defaults give clean sensors.
+// It can also be run to write a database: java -cp ".:sqlite-jdbc-3.7.2.jar" SyntheticExport --help
+class SyntheticExport {
+
+	static final long READING_INTERVAL = 5 * 60000;
+	// Rows written between two commits, so that huge databases do not need a huge journal
+	static final int ROWS_PER_TRANSACTION = 200000;
+	static final int ROWS_PER_BATCH = 10000;
+
+	SyntheticExport(long seed) {
+		random = new Random(seed);
+	}
+
+	static List<SensorTrace> Generate(int numSensors, double days, long seed) {
+		SyntheticExport export = new SyntheticExport(seed);
+		export.days = days;
+		List<SensorTrace> traces = new ArrayList<SensorTrace>();
+		for (int s = 1; s <= numSensors; s++) {
+			traces.add(export.nextSensor());
+		}
+		return traces;
+	}
+
+	// Every sensor starts an hour after the previous one stopped.
+	SensorTrace nextSensor() {
+		long length = (long)(days * 86400000);
+		numSensors++;
+		SensorTrace trace = new SensorTrace(new Sensor(sensorStart, sensorStart + length, "synthetic-" + numSensors, numSensors));
+		// Every sensor has its own sensitivity
+		double slope = 0.8 + 0.4 * random.nextDouble();
+		double intercept = -20 + 20 * random.nextDouble();
+		double phase = random.nextDouble() * 2 * Math.PI;
+		// With an override calibration the second calibration of the start comes an hour late,
+		// Calibration.FilterByDate then duplicates the first one.
+		boolean override = overrideProbability > 0 && random.nextDouble() < overrideProbability;
+		long nextCalibration = sensorStart + 2 * 3600000;
+		int numCalibrations = 0;
+		long gapEnd = 0;
+		for (long t = sensorStart + READING_INTERVAL; t < sensorStart + length; t += READING_INTERVAL) {
+			double bg = 130 + 50 * Math.sin(2 * Math.PI * (t - sensorStart) / 86400000.0 + phase) + bgNoise * random.nextGaussian();
+			// An old sensor gives less raw for the same bg
+			double sensorSlope = slope * (1 + decayPerDay * (t - sensorStart) / 86400000.0);
+			if (gapProbability > 0 && t >= gapEnd && random.nextDouble() < gapProbability) {
+				gapEnd = t + READING_INTERVAL + (long)(random.nextDouble() * maxGapHours * 3600000);
+			}
+			if (t >= gapEnd) {
+				double raw = (bg - intercept) / sensorSlope;
+				if (rawNoise > 0) {
+					raw += rawNoise * random.nextGaussian();
+				}
+				if (spikeProbability > 0 && random.nextDouble() < spikeProbability) {
+					// Mostly compression lows, sometimes a jump up
+					raw *= random.nextDouble() < 0.8 ? 0.4 + 0.3 * random.nextDouble() : 1.3 + 0.3 * random.nextDouble();
+				}
+				trace.addRaw(t, raw);
+			}
+			if (t >= nextCalibration) {
+				double measured = bg + 8 * random.nextGaussian();
+				// xDrip stores how far the calibration was from its estimate without a sign
+				trace.addCalibration(t + 60000, measured, Math.abs(measured - bg), sensorSlope, intercept);
+				numCalibrations++;
+				if (numCalibrations == 1) {
+					nextCalibration = t + (override ? 3600000 : READING_INTERVAL);
+				} else {
+					nextCalibration = t + (long)(calibrationHours * 3600000);
+					if (calibrationJitterHours > 0) {
+						nextCalibration += (long)((random.nextDouble() - 0.5) * calibrationJitterHours * 3600000);
+					}
+				}
 			}
-			pw.close();
-		} catch (Exception e)
-		{
-			System.err.println( e.getClass().getName() + ": " + e.getMessage() );
 		}
-		if (calculatedBg!=null)
-		try {
-			PrintWriter pw = new PrintWriter(new FileWriter(fileName+"_calc.csv"));
-			for (RawData raw : calculatedBg) {
-				// time in days.
-				double timeFromStart = (double)(raw.timestamp - sensorStart) / 60000 / 60 / 24;
-				pw.println(timeFromStart+", "+raw.raw_value);
+		sensorStart += length + 3600000;
+		return trace;
+	}
+
+	// Writes the traces to a new SQLite database, with the tables and columns that the loaders read.
+	static void Write(List<SensorTrace> traces, String dbName) throws Exception {
+		Writer writer = new Writer(dbName);
+		for (SensorTrace trace : traces) {
+			writer.write(trace);
+		}
+		writer.close();
+	}
+
+	// Writes sensors one at a time, so a database of any size can be made without keeping it in memory.
+	// The rows are inserted in batches and committed every ROWS_PER_TRANSACTION rows, the indexes
+	// are only made at the end.
+	static class Writer {
+
+		Writer(String dbName) throws Exception {
+			Class.forName("org.sqlite.JDBC");
+			c = DriverManager.getConnection("jdbc:sqlite:" + dbName);
+			Statement stmt = c.createStatement();
+			// Nothing to recover if the machine crashes in the middle, we just make it again
+			stmt.executeUpdate("PRAGMA journal_mode = OFF");
+			stmt.executeUpdate("PRAGMA synchronous = OFF");
+			c.setAutoCommit(false);
+			stmt.executeUpdate("CREATE TABLE SENSORS (_id INTEGER PRIMARY KEY AUTOINCREMENT, started_at REAL, stopped_at REAL, latest_battery_level INTEGER, uuid TEXT)");
+			stmt.executeUpdate("CREATE TABLE BGREADINGS (_id INTEGER PRIMARY KEY AUTOINCREMENT, sensor INTEGER, timestamp REAL, raw_data REAL, calculated_value REAL)");
+			stmt.executeUpdate("CREATE TABLE CALIBRATION (_id INTEGER PRIMARY KEY AUTOINCREMENT, sensor INTEGER, timestamp REAL, bg REAL, distance_from_estimate REAL, slope REAL, intercept REAL)");
+			stmt.close();
+
+			sensors = c.prepareStatement("INSERT INTO SENSORS (_id, started_at, stopped_at, uuid) VALUES (?, ?, ?, ?)");
+			readings = c.prepareStatement("INSERT INTO BGREADINGS (sensor, timestamp, raw_data) VALUES (?, ?, ?)");
+			calibrations = c.prepareStatement("INSERT INTO CALIBRATION (sensor, timestamp, bg, distance_from_estimate, slope, intercept) VALUES (?, ?, ?, ?, ?, ?)");
+		}
+
+		void write(SensorTrace trace) throws SQLException {
+			write(trace, trace.sensor.stopped_at);
+		}
+
+		// A sensor that is still in use has stopped_at 0 in the export
+		void write(SensorTrace trace, long stoppedAt) throws SQLException {
+			Sensor sensor = trace.sensor;
+			sensors.setInt(1, sensor.id);
+			sensors.setDouble(2, sensor.started_at);
+			sensors.setDouble(3, stoppedAt);
+			sensors.setString(4, sensor.uuid);
+			sensors.executeUpdate();
+			for (int i = 0; i < trace.rawSize; i++) {
+				readings.setInt(1, sensor.id);
+				readings.setDouble(2, trace.timestamps[i]);
+				readings.setDouble(3, trace.raw_values[i]);
+				readings.addBatch();
+				if (++batched >= ROWS_PER_BATCH) {
+					flush();
+				}
+			}
+			for (int i = 0; i < trace.calibrationSize; i++) {
+				calibrations.setInt(1, sensor.id);
+				calibrations.setDouble(2, trace.calib_timestamps[i]);
+				calibrations.setDouble(3, trace.measured_bg[i]);
+				calibrations.setDouble(4, trace.xdrip_dist[i]);
+				calibrations.setDouble(5, trace.xdrip_slope[i]);
+				calibrations.setDouble(6, trace.xdrip_intercept[i]);
+				calibrations.addBatch();
+				if (++batched >= ROWS_PER_BATCH) {
+					flush();
+				}
+			}
+			flush();
+		}
+
+		private void flush() throws SQLException {
+			readings.executeBatch();
+			calibrations.executeBatch();
+			uncommitted += batched;
+			rows += batched;
+			batched = 0;
+			if (uncommitted >= ROWS_PER_TRANSACTION) {
+				c.commit();
+				uncommitted = 0;
 			}
-			pw.close();
-		} catch (Exception e)
-		{
-			System.err.println( e.getClass().getName() + ": " + e.getMessage() );
 		}
 
+		void close() throws SQLException {
+			flush();
+			sensors.close();
+			readings.close();
+			calibrations.close();
+			Statement stmt = c.createStatement();
+			stmt.executeUpdate("CREATE INDEX index_BgReadings_sensor ON BGREADINGS (sensor)");
+			stmt.executeUpdate("CREATE INDEX index_BgReadings_timestamp ON BGREADINGS (timestamp)");
+			stmt.executeUpdate("CREATE INDEX index_Calibration_sensor ON CALIBRATION (sensor)");
+			stmt.close();
+			c.commit();
+			c.close();
+		}
+
+		long rows;
+
+		private final Connection c;
+		private final PreparedStatement sensors;
+		private final PreparedStatement readings;
+		private final PreparedStatement calibrations;
+		private int batched;
+		private int uncommitted;
 	}
 
-	double checkAlgorithm(List<Sensor> sensors, List<RawData> rawBg, List<Calibration> calibrations, BgAlgorithm algorithm) {
-		
-		double totalError = 0;
-		int numValidSensors = 0;
-		for (Sensor sensor: sensors) {
-			long startTime = sensor.started_at;
-			long endTime = sensor.stopped_at;
-			
-			List<RawData> sensorRawBg = RawData.FilterBySensor(rawBg, sensor.id);
-			List<Calibration> sensorCalibrations = Calibration.FilterBySensor(calibrations, sensor.id);
-			List<RawData> bgCalculated = new LinkedList<RawData>();
+	public static void main(String args[]) throws Exception {
+		SyntheticExport export = new SyntheticExport(1);
+		int numSensors = 10;
+		boolean running = false;
+		String dbName = null;
+		boolean badUsage = false;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--running")) {
+				running = true;
+			} else if (!args[i].startsWith("--")) {
+				badUsage |= dbName != null;
+				dbName = args[i];
+			} else if (i + 1 >= args.length) {
+				badUsage = true;
+			} else if (args[i].equals("--sensors")) {
+				numSensors = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--seed")) {
+				export.random.setSeed(Long.parseLong(args[++i]));
+			} else if (args[i].equals("--days")) {
+				export.days = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("--bg-noise")) {
+				export.bgNoise = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("--noise")) {
+				export.rawNoise = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("--spikes")) {
+				export.spikeProbability = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("--gaps")) {
+				export.gapProbability = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("--max-gap")) {
+				export.maxGapHours = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("--decay")) {
+				export.decayPerDay = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("--calibrations")) {
+				export.calibrationHours = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("--calibration-jitter")) {
+				export.calibrationJitterHours = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("--overrides")) {
+				export.overrideProbability = Double.parseDouble(args[++i]);
+			} else {
+				badUsage = true;
+			}
+		}
+		if (dbName == null || badUsage) {
+			System.err.println("usage of program is: java -classpath \".:sqlite-jdbc-3.7.2.jar\" SyntheticExport [options] out.sqlite");
+			System.err.println("  --sensors n              number of sensors (10)");
+			System.err.println("  --days d                 length of every sensor (7)");
+			System.err.println("  --seed n                 the same seed gives the same database (1)");
+			System.err.println("  --bg-noise sd            noise of the real bg, seen by the sensor and the meter (5)");
+			System.err.println("  --noise sd               noise of the sensor only (0)");
+			System.err.println("  --spikes p               chance of a reading to be a compression low or a jump (0)");
+			System.err.println("  --gaps p                 chance of a gap starting at a reading (0)");
+			System.err.println("  --max-gap hours          longest gap (3)");
+			System.err.println("  --decay fraction         loss of sensitivity per day (0)");
+			System.err.println("  --calibrations hours     time between calibrations after the first two (12)");
+			System.err.println("  --calibration-jitter h   calibrations come up to h/2 hours early or late (0)");
+			System.err.println("  --overrides p            chance of a sensor to start with an override calibration (0)");
+			System.err.println("  --running                the last sensor is still in use (stopped_at is 0)");
+			return;
+		}
+		if (new File(dbName).exists()) {
+			System.err.println(dbName + " already exists, not writing over it");
+			return;
+		}
+		long start = System.currentTimeMillis();
+		Writer writer = new Writer(dbName);
+		for (int s = 1; s <= numSensors; s++) {
+			SensorTrace trace = export.nextSensor();
+			writer.write(trace, running && s == numSensors ? 0 : trace.sensor.stopped_at);
+			if (s % 100 == 0) {
+				System.out.println(s + " sensors written");
+			}
+		}
+		writer.close();
+		System.out.println("Wrote " + numSensors + " sensors and " + writer.rows + " readings and calibrations to " + dbName +
+						   " in " + (System.currentTimeMillis() - start) / 1000.0 + " seconds");
+	}
 
-			double mard = checkSensor(sensor, sensorRawBg, sensorCalibrations, algorithm, bgCalculated);
-			if (mard<0) continue;
+	double days = 7;
+	double bgNoise = 5;
+	double rawNoise = 0;
+	double spikeProbability = 0;
+	double gapProbability = 0;
+	double maxGapHours = 3;
+	double decayPerDay = 0;
+	double calibrationHours = 12;
+	double calibrationJitterHours = 0;
+	double overrideProbability = 0;
 
-			plotRaw(sensorRawBg, sensorCalibrations, bgCalculated, startTime, "sensor"+sensor.id);
+	private final Random random;
+	private int numSensors;
+	// 1-Jan-2015
+	private long sensorStart = 1420070400000L;
+}
 
-			totalError += mard;
-			numValidSensors++;
+
+// A binary copy of a parsed export, written next to it (db2.sqlite.snapshot) the first time it is read.
+// Reading it back is a few bulk copies out of a memory mapped file instead of parsing every row through JDBC.
+// The snapshot keeps the size, modification time and a hash of the export it was made from, when any
+// of them changes the export is parsed again and a new snapshot is written.
+//
+// The file is little endian: a header, a directory with the offset and length of every sensor, and the
+// sensors, each with its id, times, uuid and then the columns of its readings and calibrations.
+// Everything is aligned to 8 bytes. Change VERSION when the format or what ReadExport returns changes.
+class ExportSnapshot {
+
+	static final long MAGIC = 0x31504e5347474742L;
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 40;
+	static final int DIRECTORY_ENTRY_SIZE = 16;
+	// Pages of the export that go into its hash. The first one is always in, SQLite counts the changes
+	// to the file there.
+	static final int HASH_PAGES = 32;
+	static final int PAGE_SIZE = 4096;
+
+	static File SnapshotFile(String dbName) {
+		return new File(dbName + ".snapshot");
+	}
+
+	// Reads the export, from its snapshot if there is a good one. Throws if the export can not be read.
+	static List<SensorTrace> Read(String dbName, boolean quiet) throws Exception {
+		File file = SnapshotFile(dbName);
+		long[] key = null;
+		Instrumentation.Phase phase = Instrumentation.Begin("load.snapshot");
+		try {
+			key = Key(new File(dbName));
+			List<SensorTrace> traces = key == null ? null : Load(file, key);
+			Instrumentation.End(phase);
+			if (traces != null) {
+				if (!quiet) System.out.println("Read " + traces.size() + " sensors from " + file);
+				return traces;
+			}
+		} catch (Exception e) {
+			Instrumentation.End(phase);
+			System.err.println("Ignoring " + file + " " + e.getClass().getName() + ": " + e.getMessage());
 		}
-		
-		double averageError = totalError / numValidSensors;
-		
-		System.out.println("\n*** Average error for [" + algorithm + "] algorithm is " + averageError );
-		return averageError;
+		phase = Instrumentation.Begin("load.jdbc");
+		List<SensorTrace> traces;
+		try {
+			traces = SQLiteJdbc.LoadExport(dbName, quiet);
+		} finally {
+			Instrumentation.End(phase);
+		}
+		if (key != null) {
+			try {
+				Save(traces, file, key);
+			} catch (IOException e) {
+				System.err.println("Could not write " + file + " " + e.getClass().getName() + ": " + e.getMessage());
+			}
+		}
+		return traces;
 	}
-	
-	double checkSensor(Sensor sensor, List<RawData> rawBg, List<Calibration> calibrations, BgAlgorithm algorithm, List<RawData> bgCalculated) {
-		System.out.println("\n--- Checking sensor ---\n" + sensor+ "\ncalibrations.size() = " + calibrations.size());
-		
-		if (calibrations.size() < 2 || rawBg.size() < 10 || sensor.days<3) {
-			System.err.println("We are ignoring this sensor since we don't have enough data for it");
-			return -1.0;
+
+	// Size, modification time and a hash of pages spread over the file, or null if there is no such file.
+	// Hashing only some pages keeps this fast for huge exports, SQLite changes the first page on every write.
+	static long[] Key(File db) throws IOException {
+		if (!db.isFile()) return null;
+		long size = db.length();
+		CRC32 crc = new CRC32();
+		byte[] page = new byte[PAGE_SIZE];
+		try (RandomAccessFile in = new RandomAccessFile(db, "r")) {
+			long pages = (size + PAGE_SIZE - 1) / PAGE_SIZE;
+			long step = Math.max(1, pages / HASH_PAGES);
+			for (long p = 0; p < pages; p += step) {
+				in.seek(p * PAGE_SIZE);
+				int read = in.read(page);
+				if (read > 0) {
+					crc.update(page, 0, read);
+				}
+			}
 		}
-		System.out.println("rawBg.size() = " + rawBg.size() + "\nfirst raw is [" + rawBg.get(0) + "]\nlast raw is  [" +rawBg.get(rawBg.size() - 1)+"]");
-		double error = 0;
-		double xdripError = 0;
-		
-		int numberOfCalibrations = 0;
-		algorithm.startSensor(sensor.started_at);
-		
-		bgCalculated.clear();
-		List<Calibration> calibHistory = new LinkedList<Calibration>();
-		List<RawData> rawDataHistory = new LinkedList<RawData>();
-		int rawIndex = 0;
-		for(int i = 0 ; i < calibrations.size(); i++) {
-			Calibration calibration = calibrations.get(i);
-			long timeStamp = calibration.timestamp;
-			double measuredBg = calibration.measured_bg;
-			calibHistory.add(calibration);
-
-			// add rawdata that occured before this calibration
-			while (rawIndex<rawBg.size() && rawBg.get(rawIndex).timestamp <= timeStamp) {
-				rawDataHistory.add(rawBg.get(rawIndex));
-				// Calculate the bg with the algorith, we use this to plot the algorithm results
-				if (i>=2) { // only if we already had 2 calibrations
-					double bg = algorithm.calculateBG(rawDataHistory, rawBg.get(rawIndex).timestamp);
-					RawData bgData = new RawData(bg, rawBg.get(rawIndex).timestamp, rawBg.get(rawIndex).sensor_id);
-					bgCalculated.add(bgData);
+		return new long[] { size, db.lastModified(), crc.getValue() };
+	}
+
+	// Returns null if the file is not there or was made from a different export.
+	static List<SensorTrace> Load(File file, long[] key) throws IOException {
+		if (!file.isFile()) return null;
+		try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+			ByteBuffer header = Map(channel, 0, HEADER_SIZE);
+			if (header.getLong() != MAGIC || header.getInt() != VERSION) return null;
+			int numSensors = header.getInt();
+			if (header.getLong() != key[0] || header.getLong() != key[1] || header.getLong() != key[2]) return null;
+
+			ByteBuffer directory = Map(channel, HEADER_SIZE, (long)numSensors * DIRECTORY_ENTRY_SIZE);
+			List<SensorTrace> traces = new ArrayList<SensorTrace>(numSensors);
+			for (int s = 0; s < numSensors; s++) {
+				// Every sensor is mapped by itself, a single mapping can not be larger than 2GB
+				ByteBuffer record = Map(channel, directory.getLong(), directory.getLong());
+				int id = record.getInt();
+				int uuidLength = record.getInt();
+				int rawSize = record.getInt();
+				int calibrationSize = record.getInt();
+				long started_at = record.getLong();
+				long stopped_at = record.getLong();
+				if (uuidLength > record.remaining() || record.remaining() - Align(Math.max(0, uuidLength)) != 16L * rawSize + 40L * calibrationSize) {
+					// Not what was written, do not trust any of it
+					return null;
 				}
-				rawIndex++;
+				String uuid = null;
+				if (uuidLength >= 0) {
+					byte[] bytes = new byte[uuidLength];
+					record.get(bytes);
+					record.position(Align(record.position()));
+					uuid = new String(bytes, "UTF-8");
+				}
+				SensorTrace trace = new SensorTrace(new Sensor(started_at, stopped_at, uuid, id));
+				trace.timestamps = GetLongs(record, rawSize);
+				trace.raw_values = GetDoubles(record, rawSize);
+				trace.rawSize = rawSize;
+				trace.calib_timestamps = GetLongs(record, calibrationSize);
+				trace.measured_bg = GetDoubles(record, calibrationSize);
+				trace.xdrip_dist = GetDoubles(record, calibrationSize);
+				trace.xdrip_slope = GetDoubles(record, calibrationSize);
+				trace.xdrip_intercept = GetDoubles(record, calibrationSize);
+				trace.calibrationSize = calibrationSize;
+				traces.add(trace);
 			}
-			//List<RawData> rawDataHistory = RawData.FilterByDate(rawBg, sensor.started_at, timeStamp);
-			RawData rawBgTime = RawData.getByTime(rawBg, timeStamp);
-			if (rawBgTime == null) {
-				// We did not find a close enough point, so we simply ignore this calibration
-				System.err.println("We are ignoring this calibration since we did not find data to match it.");
-				continue;
+			return traces;
+		}
+	}
+
+	// Writes to a temporary file that is renamed at the end, so a snapshot is never seen half written.
+	static void Save(List<SensorTrace> traces, File file, long[] key) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		try (FileChannel channel = new RandomAccessFile(temp, "rw").getChannel()) {
+			channel.truncate(0);
+			byte[][] uuids = new byte[traces.size()][];
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + traces.size() * DIRECTORY_ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			header.putLong(MAGIC).putInt(VERSION).putInt(traces.size()).putLong(key[0]).putLong(key[1]).putLong(key[2]);
+			long offset = header.capacity();
+			for (int s = 0; s < traces.size(); s++) {
+				SensorTrace trace = traces.get(s);
+				uuids[s] = trace.sensor.uuid == null ? null : trace.sensor.uuid.getBytes("UTF-8");
+				long length = RecordSize(trace, uuids[s]);
+				header.putLong(offset).putLong(length);
+				offset += length;
 			}
-			// Skip error calculation for the first two calibrations
-			if (i>=2) {
-				double calculatedBg = algorithm.calculateBG(rawDataHistory, timeStamp);
-				error += Math.abs(measuredBg - calculatedBg) / measuredBg;
-				xdripError += calibration.xdrip_dist / measuredBg;
-				numberOfCalibrations++;
+			header.flip();
+			Write(channel, header);
+
+			for (int s = 0; s < traces.size(); s++) {
+				SensorTrace trace = traces.get(s);
+				Sensor sensor = trace.sensor;
+				ByteBuffer record = ByteBuffer.allocate((int)RecordSize(trace, uuids[s])).order(ByteOrder.LITTLE_ENDIAN);
+				record.putInt(sensor.id).putInt(uuids[s] == null ? -1 : uuids[s].length);
+				record.putInt(trace.rawSize).putInt(trace.calibrationSize);
+				record.putLong(sensor.started_at).putLong(sensor.stopped_at);
+				if (uuids[s] != null) {
+					record.put(uuids[s]);
+					record.position(Align(record.position()));
+				}
+				record.asLongBuffer().put(trace.timestamps, 0, trace.rawSize);
+				record.position(record.position() + 8 * trace.rawSize);
+				record.asDoubleBuffer().put(trace.raw_values, 0, trace.rawSize);
+				record.position(record.position() + 8 * trace.rawSize);
+				record.asLongBuffer().put(trace.calib_timestamps, 0, trace.calibrationSize);
+				record.position(record.position() + 8 * trace.calibrationSize);
+				for (double[] column : new double[][] { trace.measured_bg, trace.xdrip_dist, trace.xdrip_slope, trace.xdrip_intercept }) {
+					record.asDoubleBuffer().put(column, 0, trace.calibrationSize);
+					record.position(record.position() + 8 * trace.calibrationSize);
+				}
+				record.flip();
+				Write(channel, record);
 			}
-			// Provide data to algorithm in order to train or adjust paramaters
-			algorithm.calibrationReceived(calibHistory, rawDataHistory);
 		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
 
-		// add calculated bg until end of sensor
-		while (rawIndex<rawBg.size()) {
-			rawDataHistory.add(rawBg.get(rawIndex));
-			// Calculate the bg with the algorith, we use this to plot the algorithm results
-			double bg = algorithm.calculateBG(rawDataHistory, rawBg.get(rawIndex).timestamp);
-			RawData bgData = new RawData(bg, rawBg.get(rawIndex).timestamp, rawBg.get(rawIndex).sensor_id);
-			bgCalculated.add(bgData);
-			rawIndex++;
+	private static long RecordSize(SensorTrace trace, byte[] uuid) {
+		return 32 + (uuid == null ? 0 : Align(uuid.length)) + 16L * trace.rawSize + 40L * trace.calibrationSize;
+	}
+
+	private static int Align(int position) {
+		return (position + 7) & ~7;
+	}
+
+	private static ByteBuffer Map(FileChannel channel, long offset, long length) throws IOException {
+		return channel.map(FileChannel.MapMode.READ_ONLY, offset, length).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static void Write(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
 		}
+	}
 
-		double averageError = error / numberOfCalibrations;
-		double averageErrorxdrip = xdripError / numberOfCalibrations;
-		
-		System.out.println("Average MARD error for this sensor = " + averageError + "\nMARD for xDrip based on latest calculated bg = [" + averageErrorxdrip +"]");
-		return averageError;
+	private static long[] GetLongs(ByteBuffer buffer, int size) {
+		long[] values = new long[size];
+		buffer.asLongBuffer().get(values);
+		buffer.position(buffer.position() + 8 * size);
+		return values;
+	}
+
+	private static double[] GetDoubles(ByteBuffer buffer, int size) {
+		double[] values = new double[size];
+		buffer.asDoubleBuffer().get(values);
+		buffer.position(buffer.position() + 8 * size);
+		return values;
 	}
-	
 }
 
 
+// The sensors of an export read one at a time (--lazy), for exports that do not fit in memory. The sensors
+// and their stop times are read first, the stop times with MAX over the readings and calibrations of every
+// sensor, and then the readings and calibrations of a sensor are read by prepared statements (on the sensor
+// index) when it is its turn. The next sensor is read on a background thread while this one is checked, so
+// only the sensor being checked and the next one are in memory.
+class LazyExport implements Iterable<SensorTrace>, Closeable {
+
+	LazyExport(String dbName, boolean quiet) throws Exception {
+		// SQLite would make an empty db
+		if (!new File(dbName).isFile()) {
+			throw new FileNotFoundException(dbName);
+		}
+		Class.forName("org.sqlite.JDBC");
+		c = DriverManager.getConnection("jdbc:sqlite:" + dbName);
+		try {
+			c.setAutoCommit(false);
+			if (!quiet) System.out.println("Opened database successfully");
+
+			// The sensor stop time is the latest of its stop time, last raw reading and last calibration,
+			// like ReadExport does
+			Statement stmt = c.createStatement();
+			ResultSet rs = stmt.executeQuery("SELECT _id, uuid, started_at, stopped_at, " +
+											 "(SELECT MAX(timestamp) FROM BGREADINGS WHERE sensor = SENSORS._id), " +
+											 "(SELECT MAX(timestamp) FROM CALIBRATION WHERE sensor = SENSORS._id) " +
+											 "FROM SENSORS ORDER BY _id;");
+			while (rs.next()) {
+				Sensor sensor = new Sensor((long)rs.getDouble(3), (long)rs.getDouble(4), rs.getString(2), rs.getInt(1));
+				sensor.stopped_at = Math.max(sensor.stopped_at, Math.max((long)rs.getDouble(5), (long)rs.getDouble(6)));
+				sensor.updateDays();
+				sensors.add(sensor);
+			}
+			rs.close();
+			if (!quiet) {
+				System.out.println("Sensors read successfully (" + sensors.size() + " sensors, their readings are read one sensor at a time)");
+				// Without an index every sensor reads the whole table
+				rs = stmt.executeQuery("EXPLAIN QUERY PLAN SELECT timestamp FROM BGREADINGS WHERE sensor = 1;");
+				boolean indexed = false;
+				while (rs.next()) {
+					indexed |= rs.getString("detail").contains("INDEX");
+				}
+				rs.close();
+				if (!indexed) System.err.println("There is no index on BGREADINGS.sensor, --lazy will be slow");
+			}
+			stmt.close();
+			readings = c.prepareStatement("SELECT timestamp, raw_data FROM BGREADINGS WHERE sensor = ? ORDER BY timestamp;");
+			calibrations = c.prepareStatement("SELECT timestamp, bg, distance_from_estimate, slope, intercept FROM CALIBRATION " +
+											  "WHERE sensor = ? ORDER BY timestamp;");
+		} catch (Exception e) {
+			c.close();
+			throw e;
+		}
+		// A daemon, so a checker that stops in the middle does not keep the program running
+		reader = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "LazyExport");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	List<Sensor> sensors() {
+		return sensors;
+	}
+
+	// Sensors are read in order, one ahead of the one that is returned. Read errors are thrown from next()
+	// as RuntimeExceptions.
+	public Iterator<SensorTrace> iterator() {
+		return new Iterator<SensorTrace>() {
+			public boolean hasNext() {
+				return index < sensors.size();
+			}
+
+			public SensorTrace next() {
+				if (!hasNext()) throw new NoSuchElementException();
+				if (next == null) next = prefetch(index);
+				try {
+					SensorTrace trace = next.get();
+					index++;
+					next = hasNext() ? prefetch(index) : null;
+					return trace;
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException(e);
+				} catch (ExecutionException e) {
+					throw new RuntimeException(e.getCause());
+				}
+			}
+
+			int index;
+			Future<SensorTrace> next;
+		};
+	}
+
+	private Future<SensorTrace> prefetch(int index) {
+		Sensor sensor = sensors.get(index);
+		return reader.submit(() -> read(sensor));
+	}
+
+	// Only called on the reader thread, one at a time.
+	private SensorTrace read(Sensor sensor) throws SQLException {
+		Instrumentation.Phase phase = Instrumentation.Begin("load.sensor");
+		try {
+			SensorTrace trace = new SensorTrace(sensor);
+			readings.setInt(1, sensor.id);
+			ResultSet rs = readings.executeQuery();
+			while (rs.next()) {
+				trace.addRaw((long)rs.getDouble(1), rs.getDouble(2));
+			}
+			rs.close();
+			calibrations.setInt(1, sensor.id);
+			rs = calibrations.executeQuery();
+			while (rs.next()) {
+				trace.addCalibration((long)rs.getDouble(1), rs.getDouble(2), rs.getDouble(3), rs.getDouble(4), rs.getDouble(5));
+			}
+			rs.close();
+			return trace;
+		} finally {
+			Instrumentation.End(phase);
+		}
+	}
+
+	public void close() throws IOException {
+		reader.shutdownNow();
+		try {
+			reader.awaitTermination(1, TimeUnit.MINUTES);
+			c.close();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (SQLException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private final Connection c;
+	private final List<Sensor> sensors = new ArrayList<Sensor>();
+	private PreparedStatement readings;
+	private PreparedStatement calibrations;
+	private final ExecutorService reader;
+}
+
 
 // A simple class to read SensorData from xDrip database
 public class SQLiteJdbc
@@ -633,39 +7310,361 @@ public class SQLiteJdbc
 
 	public static void main( String args[] ) {
 		
-		if(args.length != 1) {
-			System.err.println("usage of program is: java -classpath \".;sqlite-jdbc-3.8.7.jar\" SQLiteJdbc dbname" );
+		int threads = -1;
+		String dbName = null;
+		List<String> names = new ArrayList<String>();
+		String sweepMethod = null;
+		int samples = 100;
+		long seed = 1;
+		boolean snapshot = true;
+		boolean lazy = false;
+		String output = null;
+		int plotPoints = 0;
+		String downsampling = "lttb";
+		boolean metrics = false;
+		boolean quality = false;
+		boolean simulate = false;
+		// Cross validation, with folds 0 leaves one out
+		boolean crossValidate = false;
+		int folds = 0;
+		boolean splitByDb = false;
+		int servePort = -1;
+		String batch = null;
+		int workers = Runtime.getRuntime().availableProcessors();
+		int memoryMegabytes = (int)(Runtime.getRuntime().maxMemory() / 4 * 3 >> 20);
+		String cacheDirectory = null;
+		long cacheMegabytes = 256;
+		boolean badUsage = false;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--no-snapshot")) {
+				snapshot = false;
+			} else if (args[i].equals("--lazy")) {
+				lazy = true;
+			} else if (args[i].equals("--threads") && i + 1 < args.length) {
+				// 0 means one thread per core
+				threads = Integer.parseInt(args[++i]);
+				if (threads <= 0) {
+					threads = Runtime.getRuntime().availableProcessors();
+				}
+			} else if (args[i].equals("--instrument") && i + 1 < args.length) {
+				Instrumentation.Enable(args[++i]);
+			} else if (args[i].equals("--metrics")) {
+				metrics = true;
+			} else if (args[i].equals("--quality")) {
+				quality = true;
+			} else if (args[i].equals("--simulate")) {
+				simulate = true;
+			} else if (args[i].equals("--cv") && i + 1 < args.length) {
+				crossValidate = true;
+				String split = args[++i];
+				folds = split.equals("loso") ? 0 : Integer.parseInt(split);
+				badUsage |= !split.equals("loso") && folds < 2;
+			} else if (args[i].equals("--cv-by") && i + 1 < args.length) {
+				String by = args[++i];
+				splitByDb = by.equals("db");
+				badUsage |= !splitByDb && !by.equals("sensor");
+			} else if (args[i].equals("--serve") && i + 1 < args.length) {
+				servePort = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--cache") && i + 1 < args.length) {
+				cacheDirectory = args[++i];
+			} else if (args[i].equals("--cache-size") && i + 1 < args.length) {
+				cacheMegabytes = Math.max(1, Long.parseLong(args[++i]));
+			} else if (args[i].equals("--output") && i + 1 < args.length) {
+				output = args[++i];
+			} else if (args[i].equals("--plot-points") && i + 1 < args.length) {
+				plotPoints = Math.max(0, Integer.parseInt(args[++i]));
+			} else if (args[i].equals("--downsample") && i + 1 < args.length) {
+				downsampling = args[++i];
+				badUsage |= !downsampling.equals("lttb") && !downsampling.equals("minmax");
+			} else if (args[i].equals("--batch") && i + 1 < args.length) {
+				batch = args[++i];
+			} else if (args[i].equals("--workers") && i + 1 < args.length) {
+				workers = Math.max(1, Integer.parseInt(args[++i]));
+			} else if (args[i].equals("--memory") && i + 1 < args.length) {
+				memoryMegabytes = Math.max(1, Integer.parseInt(args[++i]));
+			} else if (args[i].equals("--sweep") && i + 1 < args.length) {
+				sweepMethod = args[++i];
+			} else if (args[i].equals("--samples") && i + 1 < args.length) {
+				samples = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--seed") && i + 1 < args.length) {
+				seed = Long.parseLong(args[++i]);
+			} else if (args[i].equals("--optimizer-budget") && i + 1 < args.length) {
+				BudgetedOptimizer.DefaultMaxEvaluations = Math.max(1, Integer.parseInt(args[++i]));
+			} else if (args[i].startsWith("--")) {
+				badUsage = true;
+			} else if (dbName == null) {
+				dbName = args[i];
+			} else {
+				names.add(args[i]);
+			}
+		}
+		if (batch != null && dbName != null) {
+			// There is no db, they are all algorithms
+			names.add(0, dbName);
+			dbName = null;
+		}
+		boolean serve = servePort >= 0;
+		if((dbName == null && batch == null && !serve) || badUsage ||
+		   (serve && (batch != null || sweepMethod != null || simulate || lazy || output != null || !names.isEmpty())) || (sweepMethod != null && (names.isEmpty() || batch != null)) ||
+		   (batch != null && (output != null || lazy || quality)) || (sweepMethod != null && (lazy || quality || simulate)) ||
+		   (simulate && (batch != null || lazy || quality || output != null || cacheDirectory != null)) ||
+		   (crossValidate && (names.isEmpty() || batch != null || sweepMethod != null || simulate || serve || lazy || quality || metrics || output != null))) {
+			System.err.println("usage of program is: java -classpath \".;sqlite-jdbc-3.8.7.jar\" SQLiteJdbc [--threads n] [--no-snapshot | --lazy] [--optimizer-budget n] [--output csv|csv.gz|binary|stats|none,...] [--plot-points n [--downsample lttb|minmax]] [--instrument file.json] [--metrics] [--quality] [--cache dir [--cache-size mb]] dbname [algorithm ...]" );
+			System.err.println("                 or: java -classpath \".;sqlite-jdbc-3.8.7.jar\" SQLiteJdbc [--threads n] [--no-snapshot] --sweep grid|random|lhs [--samples n] [--seed n] dbname algorithm name=min:max[:steps] ..." );
+			System.err.println("                 or: java -classpath \".;sqlite-jdbc-3.8.7.jar\" SQLiteJdbc [--threads n] [--no-snapshot] --simulate dbname [algorithm ...]" );
+			System.err.println("                 or: java -classpath \".;sqlite-jdbc-3.8.7.jar\" SQLiteJdbc [--threads n] [--no-snapshot] [--cache dir [--cache-size mb]] --cv loso|folds [--cv-by sensor|db] [--seed n] dbname|directory|manifest algorithm [name=min:max[:steps] ...] ..." );
+			System.err.println("                 or: java -classpath \".;sqlite-jdbc-3.8.7.jar\" SQLiteJdbc [--workers n] [--no-snapshot] --serve port [dbname]" );
+			System.err.println("                 or: java -classpath \".;sqlite-jdbc-3.8.7.jar\" SQLiteJdbc --batch directory|manifest [--workers n] [--memory mb] [--threads n] [--no-snapshot] [--metrics] [--cache dir [--cache-size mb]] [algorithm ...]" );
+			System.err.println("algorithms: " + AlgorithmRegistry.Names() + " or the class name of any other BgAlgorithm");
+			System.err.println("            with filters for the raw readings after an @, like xDripAlgorithm@outliers+kalman(10,25): " + FilterChain.NAMES);
+			return;
+		}
+		if (serve) {
+			EvaluationServer.Run(servePort, workers, snapshot, dbName);
+			return;
+		}
+		if (sweepMethod != null) {
+			// Tuning runs on all the cores unless told otherwise
+			List<SensorTrace> traces = ReadExport(dbName, snapshot);
+			ParameterSweep.Run(traces, names.get(0), names.subList(1, names.size()), sweepMethod, samples, seed,
+							   threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+			Instrumentation.Report();
+			return;
+		}
+		if (crossValidate) {
+			// A manifest is a list of dbs, a path like one of the dbs of a directory is a db
+			boolean oneDb = !new File(dbName).isDirectory() && (dbName.endsWith(".sqlite") || dbName.endsWith(".db"));
+			if (splitByDb && oneDb) {
+				System.err.println("--cv-by db needs a directory or a manifest of dbs, " + dbName + " is one db");
+				return;
+			}
+			List<File> files;
+			try {
+				files = splitByDb || new File(dbName).isDirectory() ? BatchEvaluator.Files(dbName) : Collections.singletonList(new File(dbName));
+			} catch (IOException e) {
+				System.err.println( e.getClass().getName() + ": " + e.getMessage() );
+				return;
+			}
+			ResultCache cache = cacheDirectory == null ? null : new ResultCache(new File(cacheDirectory), cacheMegabytes << 20);
+			// On all the cores unless told otherwise, like tuning
+			CrossValidation.Run(files, splitByDb, folds, seed, names, threads > 0 ? threads : Runtime.getRuntime().availableProcessors(),
+								snapshot, cache);
+			if (cache != null) cache.printStats(System.out);
+			Instrumentation.Report();
+			return;
+		}
+		if (threads < 0) {
+			// The simulator runs on all the cores unless told otherwise, like tuning
+			threads = simulate ? Runtime.getRuntime().availableProcessors() : 1;
+		}
+		if (names.isEmpty()) {
+			names.add("xDripAlgorithm");
+		}
+		AlgorithmFactory[] factories = new AlgorithmFactory[names.size()];
+		for (int i = 0; i < factories.length; i++) {
+			factories[i] = AlgorithmRegistry.Find(names.get(i));
+			if (factories[i] == null) {
+				System.err.println("Unknown algorithm " + names.get(i) + ", known algorithms are " + AlgorithmRegistry.Names());
+				return;
+			}
+		}
+		if (simulate) {
+			ScheduleSimulator.Run(ReadExport(dbName, snapshot), factories, names.toArray(new String[0]), threads);
+			Instrumentation.Report();
 			return;
 		}
+		ResultCache cache = cacheDirectory == null ? null : new ResultCache(new File(cacheDirectory), cacheMegabytes << 20);
 	
-		List<Sensor> Sensors = ReadSensors(args[0]);
-		List<RawData> rawBg = ReadRawBg(args[0]);
-		List<Calibration> calibrations = ReadCalibrations(args[0]);
-		FixSensorsStopTime(Sensors, rawBg, calibrations);
-		
+		if (batch != null) {
+			List<File> files;
+			try {
+				files = BatchEvaluator.Files(batch);
+			} catch (IOException e) {
+				System.err.println( e.getClass().getName() + ": " + e.getMessage() );
+				return;
+			}
+			System.out.println("Checking " + files.size() + " files on " + workers + " workers with " + memoryMegabytes + "MB of memory");
+			BatchEvaluator evaluator = new BatchEvaluator(factories, names.toArray(new String[0]), workers, memoryMegabytes);
+			evaluator.snapshot = snapshot;
+			evaluator.metrics = metrics;
+			evaluator.threads = threads;
+			evaluator.cache = cache;
+			evaluator.report(evaluator.run(files), "batch_results.csv");
+			if (cache != null) cache.printStats(System.out);
+			Instrumentation.Report();
+			return;
+		}
+
 		AlgorithmChecker algorithmChecker = new AlgorithmChecker();
+		algorithmChecker.metrics = metrics;
+		algorithmChecker.quality = quality;
+		algorithmChecker.cache = cache;
+		for (String sink : (output == null ? "csv" : output).split(",")) {
+			if (sink.equals("csv") || sink.equals("csv.gz")) {
+				algorithmChecker.sinks.add(new CsvSink(new File("."), sink.endsWith(".gz"), plotPoints, downsampling));
+			} else if (sink.equals("binary")) {
+				algorithmChecker.sinks.add(new BinarySink(new File(".")));
+			} else if (sink.equals("stats")) {
+				algorithmChecker.sinks.add(new StatsSink());
+			} else if (!sink.equals("none")) {
+				System.err.println("Unknown output " + sink + ", use csv, csv.gz, binary, stats or none (or several, like csv,stats)");
+				return;
+			}
+		}
 
-		algorithmChecker.checkAlgorithm(Sensors, rawBg, calibrations, new xDripAlgorithm());
-//		algorithmChecker.checkAlgorithm(Sensors, rawBg, calibrations, new LineFitAlgorithm());
-		
+		// Everything at once, or one sensor at a time while checking
+		Iterable<SensorTrace> traces;
+		LazyExport lazyExport = null;
+		if (lazy) {
+			try {
+				lazyExport = new LazyExport(dbName, false);
+			} catch ( Exception e ) {
+				System.err.println( e.getClass().getName() + ": " + e.getMessage() );
+				return;
+			}
+			traces = lazyExport;
+		} else {
+			Instrumentation.Phase phase = Instrumentation.Begin("load");
+			traces = ReadExport(dbName, snapshot);
+			Instrumentation.End(phase);
+		}
+
+		try {
+			if (factories.length == 1) {
+				algorithmChecker.checkAlgorithm(traces, factories[0], threads);
+			} else {
+				// Compare all the algorithms on one pass over the data
+				algorithmChecker.checkAlgorithms(traces, factories, names.toArray(new String[0]), threads);
+			}
+		} finally {
+			if (lazyExport != null) {
+				try {
+					lazyExport.close();
+				} catch (IOException e) {
+					System.err.println( e.getClass().getName() + ": " + e.getMessage() );
+				}
+			}
+		}
+	}
+
+	// Reads the whole export through one connection, only the columns that we use.
+	// Readings and calibrations are ordered by sensor, so they are split to their sensors in one pass,
+	// and the sensors stop time is fixed on the way (see FixSensorsStopTime).
+	// Exits if the export can not be read, like the other loaders.
+	public static List<SensorTrace> ReadExport(String dbName)
+	{
+		return ReadExport(dbName, false);
+	}
+
+	// The same, through the snapshot of the export if snapshot is set (see ExportSnapshot).
+	public static List<SensorTrace> ReadExport(String dbName, boolean snapshot)
+	{
+		try {
+			return snapshot ? ExportSnapshot.Read(dbName, false) : LoadExport(dbName, false);
+		} catch ( Exception e ) {
+			System.err.println( e.getClass().getName() + ": " + e.getMessage() );
+			System.exit(0);
+			return null;
+		}
+	}
+
+	// Throws instead of exiting, for reading many exports in one run.
+	static List<SensorTrace> LoadExport(String dbName, boolean quiet) throws Exception
+	{
+		// SQLite would make an empty db
+		if (!new File(dbName).isFile()) {
+			throw new FileNotFoundException(dbName);
+		}
+		Connection c = null;
+		List<SensorTrace> traces = new ArrayList<SensorTrace>();
+		Map<Integer, SensorTrace> bySensor = new HashMap<Integer, SensorTrace>();
+		try {
+			Class.forName("org.sqlite.JDBC");
+			c = DriverManager.getConnection("jdbc:sqlite:" + dbName);
+			c.setAutoCommit(false);
+			if (!quiet) System.out.println("Opened database successfully");
+
+			Statement stmt = c.createStatement();
+			ResultSet rs = stmt.executeQuery( "SELECT _id, uuid, started_at, stopped_at FROM SENSORS ORDER BY _id;" );
+			while ( rs.next() ) {
+				int id = rs.getInt(1);
+				String  uuid = rs.getString(2);
+				long started_at= (long)rs.getDouble(3);
+				long stopped_at= (long)rs.getDouble(4);
+				SensorTrace trace = new SensorTrace(new Sensor(started_at, stopped_at, uuid, id));
+				traces.add(trace);
+				bySensor.put(id, trace);
+			}
+			rs.close();
+			if (!quiet) System.out.println("Sensors read successfully (" + traces.size() + " sensors)");
+
+			rs = stmt.executeQuery( "SELECT sensor, timestamp, raw_data FROM BGREADINGS ORDER BY sensor, timestamp;" );
+			SensorTrace trace = null;
+			int lastId = 0;
+			while ( rs.next() ) {
+				int id = rs.getInt(1);
+				if (trace == null || id != lastId) {
+					trace = bySensor.get(id);
+					lastId = id;
+				}
+				if (trace == null) continue;
+				trace.addRaw((long)rs.getDouble(2), rs.getDouble(3));
+			}
+			rs.close();
+			if (!quiet) System.out.println("Rawdata read successfully");
+
+			rs = stmt.executeQuery( "SELECT sensor, timestamp, bg, distance_from_estimate, slope, intercept FROM CALIBRATION ORDER BY sensor, timestamp;" );
+			trace = null;
+			while ( rs.next() ) {
+				int id = rs.getInt(1);
+				if (trace == null || id != lastId) {
+					trace = bySensor.get(id);
+					lastId = id;
+				}
+				if (trace == null) continue;
+				trace.addCalibration((long)rs.getDouble(2), rs.getDouble(3), rs.getDouble(4), rs.getDouble(5), rs.getDouble(6));
+			}
+			rs.close();
+			if (!quiet) System.out.println("Calibrations read successfully");
+			stmt.close();
+		} finally {
+			if (c != null) {
+				c.close();
+			}
+		}
+
+		// The sensor stop time is the latest of its stop time, last raw reading and last calibration.
+		for (SensorTrace trace : traces) {
+			Sensor sensor = trace.sensor;
+			if (trace.rawSize > 0) {
+				sensor.stopped_at = Math.max(sensor.stopped_at, trace.timestamps[trace.rawSize - 1]);
+			}
+			if (trace.calibrationSize > 0) {
+				sensor.stopped_at = Math.max(sensor.stopped_at, trace.calib_timestamps[trace.calibrationSize - 1]);
+			}
+			sensor.updateDays();
+		}
+		return traces;
 	}
-	public static void FixSensorsStopTime(List<Sensor> sensors, List<RawData> rawBg, List<Calibration> calibrations) {
-		long[] sensorEnd = new long[sensors.get(sensors.size()-1).id+1];
 
+	public static void FixSensorsStopTime(List<Sensor> sensors, List<RawData> rawBg, List<Calibration> calibrations) {
+		// By id, the ids can be far apart
+		Map<Integer, Sensor> byId = new HashMap<Integer, Sensor>();
 		for (Sensor sensor : sensors) {
-			sensorEnd[sensor.id] = sensor.stopped_at;
+			byId.put(sensor.id, sensor);
 		}
 		// Find last raw reading
 		for (RawData raw : rawBg) {
-			sensorEnd[raw.sensor_id] = Math.max(raw.timestamp, sensorEnd[raw.sensor_id]);
+			Sensor sensor = byId.get(raw.sensor_id);
+			if (sensor != null) sensor.stopped_at = Math.max(raw.timestamp, sensor.stopped_at);
 		}
 		// Find last calibration
 		for (Calibration calib : calibrations) {
-			sensorEnd[calib.sensor_id] = Math.max(calib.timestamp, sensorEnd[calib.sensor_id]);
+			Sensor sensor = byId.get(calib.sensor_id);
+			if (sensor != null) sensor.stopped_at = Math.max(calib.timestamp, sensor.stopped_at);
 		}
-		// Update sensor stop time
 		for (Sensor sensor : sensors) {
-			sensor.stopped_at = sensorEnd[sensor.id];
+			sensor.updateDays();
 		}
 	}
 
@@ -0,0 +1,2 @@
+javac -cp '.:sqlite-jdbc-3.7.2.jar' SQLiteJdbc.java Benchmarks.java
+java -cp '.:sqlite-jdbc-3.7.2.jar' Benchmarks "$@" | tee bench_output.txt
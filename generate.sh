@@ -0,0 +1,2 @@
+javac -cp '.:sqlite-jdbc-3.8.7.jar' SQLiteJdbc.java
+java -cp '.:sqlite-jdbc-3.8.7.jar' SyntheticExport "$@"
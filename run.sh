@@ -1,2 +1,2 @@
-java -cp '.:sqlite-jdbc-3.7.2.jar' SQLiteJdbc $1
+java -cp '.:sqlite-jdbc-3.7.2.jar' SQLiteJdbc "$@"
 